@@ -8,12 +8,53 @@
 #
 # The output files are placed in /jobs_out/$1. The dash manifest is named 
 # stream.mpd. Also the first frame is copied to the output directory named as
-# thumbnail.jpg.
+# thumbnail.jpg (the Pipeline Manager replaces it with a scaled down one when
+# the stream is published).
 #
 # Once the encoding is completed, the input directory is deleted.
+#
+# Long image sequences may be encoded in parallel by several encoders. Each
+# encoder encodes a range of frames (a chunk) into /jobs_out/$1/chunks, using
+# a fixed GOP size so all the chunks start with a key frame. Then, the chunks
+# are stitched (without re-encoding) into the MPEG-DASH stream.
+#
+# An encoding interrupted (i.e. by a restart of the Pipeline Manager) may be
+# resumed from its last complete DASH segment, if it was encoded with a fixed
+# GOP size (full mode). The complete segments are joined into a first chunk,
+# the remaining frames are encoded into a second one, and both are stitched.
+#
+# A sequence may be encoded into several renditions (an adaptive bitrate
+# ladder) from a single decoding of its frames: the decoded frames are split
+# and scaled to each rendition, and all of them are output as representations
+# of the same adaptation set of stream.mpd.
+#
+# The frames may be piped into the standard input instead (input=pipe), in
+# order, as a sequence of JPEG images. Then only the output is written to the
+# volumes: the Pipeline Manager streams the frames from the archive uploaded
+# into /jobs_in/$1, and the thumbnail is output by ffmpeg from the first one.
+# Since a truncated input can not be told from a complete one, the input
+# directory is not deleted (the Pipeline Manager deletes it once the stream
+# is complete). Resuming a piped encoding restarts it.
+#
+# Live sequences are encoded while their frames arrive (in file name order). A
+# frame arriving after one with a greater name has been encoded is skipped.
+# While encoding, ffmpeg keeps the DASH manifest dynamic, so the stream can be
+# played before it is completed.
 # 
 # Usage:
 #    encode.sh <dir_name> [frame_rate]
+#    encode.sh <dir_name> <frame_rate> full <gop> [ladder]
+#    encode.sh <dir_name> <frame_rate> resume <gop> <frames_n> [ladder]
+#    encode.sh <dir_name> <frame_rate> live <gop> <frames_n> <idle_timeout> \
+#              [ladder]
+#    encode.sh <dir_name> <frame_rate> chunk <chunk_idx> <first_frame> \
+#              <frames_n> <gop> [ladder]
+#    encode.sh <dir_name> <frame_rate> stitch
+#
+# The encoding modes accept the x264 parameters chosen by the Pipeline Manager
+# as trailing <name>=<value> arguments: threads=<n>, preset=<preset> and
+# tune=<tune>. If not given, ffmpeg's defaults are used. The full, resume and
+# chunk modes also accept input=pipe.
 #
 # Argumnents:
 #    <dir_name>: sub-directory within /jobs_in containing the image sequence to
@@ -21,6 +62,38 @@
 #                /jobs_out where the output stream files will be placed.
 #    [frame_rate]: (optional) frame rate in fps. If not specified it will use
 #                environment E_FPS (5fps by default).
+#    full:       encode all the frames with a fixed GOP size, so each DASH
+#                segment contains exactly <gop> frames.
+#      <gop>:         number of frames between key frames.
+#    resume:     resume an interrupted full mode encoding. If there is no
+#                complete segment, the encoding is restarted.
+#      <gop>:         GOP size of the interrupted encoding.
+#      <frames_n>:    number of frames of the sequence.
+#    live:       encode the frames as they arrive, with a fixed GOP size. A
+#                frame is encoded once the next one is there (so it has been
+#                entirely written) or once all the frames are there.
+#      <gop>:          number of frames between key frames.
+#      <frames_n>:     number of frames of the sequence.
+#      <idle_timeout>: seconds without new frames after which the stream is
+#                      ended with the frames received so far.
+#    chunk:      encode only a range of frames into a chunk. The frames are
+#                taken in file name order.
+#      <chunk_idx>:   index of the chunk, used to name its output file.
+#      <first_frame>: index of the first frame of the chunk (0 based).
+#      <frames_n>:    number of frames of the chunk.
+#      <gop>:         number of frames between key frames.
+#    stitch:     build the MPEG-DASH stream from all the encoded chunks. The
+#                chunks and the input directory are deleted.
+#    [ladder]:   (optional) renditions to encode, as <height>:<bitrate_kbps>
+#                separated by commas, i.e. 720:2500,360:800. If not specified,
+#                a single rendition of the original size is encoded. Resuming
+#                an encoding with a ladder restarts it.
+#    threads=<n>:      (optional) threads used by x264, the encoder's share of
+#                      the container's CPUs.
+#    preset=<preset>:  (optional) x264 preset, i.e. veryfast.
+#    tune=<tune>:      (optional) x264 tune profile, i.e. stillimage.
+#    input=pipe:       (optional) the frames are read from the standard input
+#                      (only the chunk's ones in chunk mode).
 #
 # Envioronment variables:
 #  - E_FPS: Frame rate of the ingested image sequence. The same frame rate will
@@ -32,6 +105,30 @@
 ###  Copyright (c) 2020 Hernan Perrone (hernan.perrone@gmail.com)
 ################################################################################
 
+# The ffmpeg filter graphs contain brackets, disable the file name expansion
+set -f
+
+# File name order is byte order, as in the Pipeline Manager. The frames are
+# listed NUL separated (find -print0), since their names are chosen by the
+# uploaders and may contain blanks, quotes or backslashes.
+export LC_ALL=C
+
+# Take the x264 parameters and the input option out of the positional
+# arguments
+x264_args=""
+pipe_input=""
+args=""
+for arg in "$@"; do
+    case "${arg}" in
+        threads=*) x264_args="${x264_args} -threads ${arg#threads=}" ;;
+        preset=*)  x264_args="${x264_args} -preset ${arg#preset=}" ;;
+        tune=*)    x264_args="${x264_args} -tune ${arg#tune=}" ;;
+        input=pipe) pipe_input=1 ;;
+        *)         args="${args} ${arg}" ;;
+    esac
+done
+set -- ${args}
+
 # If E_FPS is not set, set it to 5fps
 if [[ -z "${E_FPS}" ]]; then
     E_FPS=5
@@ -41,32 +138,296 @@ if [[ -z "${frame_rate}" ]]; then
     frame_rate=${E_FPS}
 fi
 
-# Create output directory
-mkdir /jobs_out/$1
+mode=$3
+
+# Encodes a range of frames into a chunk. The frames are piped to ffmpeg in
+# file name order.
+encode_chunk() {
+    chunk_dir=/jobs_out/$1/chunks
+    chunk_file=${chunk_dir}/`printf "chunk_%05d.mp4" $4`
+    mkdir -p ${chunk_dir}
+
+    # Piped frames are the chunk's ones already. The first chunk outputs the
+    # thumbnail, since there are no frame files to copy it from.
+    if [[ -n "${pipe_input}" ]]; then
+        chunk_out_args=""
+        if [[ $5 -eq 0 ]]; then
+            chunk_out_args=`thumbnail_args $1`
+        fi
+        encode_chunk_frames "$@"
+        return $?
+    fi
+
+    find /jobs_in/$1 -maxdepth 1 -name '*.jpg' -print0 | sort -z | \
+        tail -z -n +$(($5 + 1)) | head -z -n $6 | xargs -0 cat | \
+        encode_chunk_frames "$@"
+}
+
+# Encodes the frames read from the standard input into a chunk (see
+# encode_chunk), along with the outputs in ${chunk_out_args}.
+encode_chunk_frames() {
+    /usr/bin/ffmpeg -f image2pipe -framerate ${frame_rate} -c:v mjpeg \
+        -i - -c:v libx264 ${x264_args} -g $7 -keyint_min $7 \
+        -sc_threshold 0 `video_args "$8"` -r ${frame_rate} -y ${chunk_file} \
+        ${chunk_out_args}
+}
+
+# ffmpeg arguments outputting the first input frame, as it is, as the
+# thumbnail of the stream $1
+thumbnail_args() {
+    echo "-map 0:v -frames:v 1 -c:v copy -update 1 -y" \
+        "/jobs_out/$1/thumbnail.jpg"
+}
+
+# Stitches all the chunks (in index order) into the MPEG-DASH stream.
+stitch_chunks() {
+    chunk_dir=/jobs_out/$1/chunks
+    find ${chunk_dir} -name 'chunk_*.mp4' | sort | \
+        sed "s/^\(.*\)$/file '\1'/" > ${chunk_dir}/chunks.txt
+
+    /usr/bin/ffmpeg -f concat -safe 0 -i ${chunk_dir}/chunks.txt -map 0 \
+        -c copy -adaptation_sets id=0,streams=v \
+        -f dash /jobs_out/$1/stream.mpd || return 1
+
+    # Only the frames, not the preflight's rejected directory. Piped frames
+    # are not there, the first chunk output the thumbnail.
+    first_frame=`first_frame $1`
+    if [[ -n "${first_frame}" ]]; then
+        cp "${first_frame}" /jobs_out/$1/thumbnail.jpg
+    fi
+
+    rm -rf ${chunk_dir}
+    rm -rf /jobs_in/$1
+}
+
+# Outputs the path of the first frame of the sequence $1, in file name order
+first_frame() {
+    find /jobs_in/$1 -maxdepth 1 -name '*.jpg' -print0 | sort -z | \
+        head -z -n 1 | tr -d '\0'
+}
+
+# ffmpeg arguments encoding the video into the renditions of the ladder $1
+# from a single decoding. Without a ladder, a single rendition of the original
+# size is encoded.
+video_args() {
+    if [[ -z "$1" ]]; then
+        echo "-vf format=pix_fmts=yuv420p"
+        return
+    fi
 
-# Frame rate of the ingested image sequence
-ffmpeg_in_args="-framerate ${frame_rate}"
+    n=0
+    splits=""
+    scales=""
+    maps=""
+    for rendition in `echo $1 | tr ',' ' '`; do
+        height=${rendition%%:*}
+        bitrate=${rendition##*:}
+        splits="${splits}[s${n}]"
+        scales="${scales};[s${n}]scale=-2:${height}[v${n}]"
+        maps="${maps} -map [v${n}] -b:v:${n} ${bitrate}k"
+        maps="${maps} -maxrate:v:${n} ${bitrate}k"
+        maps="${maps} -bufsize:v:${n} $((bitrate * 2))k"
+        n=$((n + 1))
+    done
 
-# File name pattern of the ingested images
-ffmpeg_in_args="${ffmpeg_in_args} -pattern_type glob"
+    echo "-filter_complex [0:v]format=pix_fmts=yuv420p,split=${n}${splits}${scales}${maps}"
+}
 
-# Output stream codec (H.264)
-ffmpeg_out_args="${ffmpeg_out_args} -c:v libx264"
+# Encodes all the frames into the MPEG-DASH stream. The ffmpeg output video
+# arguments are given from $2 on (see video_args).
+encode_full() {
+    dir_name=$1
+    shift
 
-# Output stream format (MPEG-DASH)
-ffmpeg_out_args="${ffmpeg_out_args} -f dash"
+    # Create output directory
+    mkdir /jobs_out/${dir_name}
 
-# Output video pixel format (YUV4:2:0)
-ffmpeg_out_args="${ffmpeg_out_args} -vf format=pix_fmts=yuv420p"
+    # Frame rate of the ingested image sequence
+    ffmpeg_in_args="-framerate ${frame_rate}"
 
-# Output video frame rate
-ffmpeg_out_args="${ffmpeg_out_args} -r ${frame_rate}"
+    # File name pattern of the ingested images, or the piped images. The
+    # thumbnail is then output from the first one.
+    if [[ -n "${pipe_input}" ]]; then
+        ffmpeg_in_args="-f image2pipe ${ffmpeg_in_args} -c:v mjpeg"
+        ffmpeg_input="-"
+        thumbnail_out_args=`thumbnail_args ${dir_name}`
+    else
+        ffmpeg_in_args="${ffmpeg_in_args} -pattern_type glob"
+        ffmpeg_input="/jobs_in/${dir_name}/*.jpg"
+        thumbnail_out_args=""
+    fi
 
-/usr/bin/ffmpeg ${ffmpeg_in_args} -i "/jobs_in/${1}/*.jpg" ${ffmpeg_out_args} /jobs_out/${1}/stream.mpd
+    # Output stream codec (H.264)
+    ffmpeg_out_args="-c:v libx264 ${x264_args} $*"
 
-# Copy the first frame to the output directory to use as thumbnail
-first_frame=`ls -1tS /jobs_in/${1}/ | head -n 1`
-cp /jobs_in/${1}/${first_frame} /jobs_out/${1}/thumbnail.jpg
+    # Output stream format (MPEG-DASH), all the renditions in one adaptation
+    # set
+    ffmpeg_out_args="${ffmpeg_out_args} -adaptation_sets id=0,streams=v"
+    ffmpeg_out_args="${ffmpeg_out_args} -f dash"
+
+    # Output video frame rate
+    ffmpeg_out_args="${ffmpeg_out_args} -r ${frame_rate}"
+
+    /usr/bin/ffmpeg ${ffmpeg_in_args} -i "${ffmpeg_input}" \
+        ${ffmpeg_out_args} /jobs_out/${dir_name}/stream.mpd \
+        ${thumbnail_out_args} || return 1
+
+    # Copy the first frame to the output directory to use as thumbnail
+    if [[ -z "${pipe_input}" ]]; then
+        cp "`first_frame ${dir_name}`" /jobs_out/${dir_name}/thumbnail.jpg
+    fi
+
+    # Delete input files
+    if [[ -z "${pipe_input}" ]]; then
+        rm -rf /jobs_in/${dir_name}
+    fi
+}
+
+# ffmpeg arguments producing a key frame (and a DASH segment) every $1 frames
+fixed_gop_args() {
+    seg_duration=`awk "BEGIN { print $1 / ${frame_rate} }"`
+    echo "-g $1 -keyint_min $1 -sc_threshold 0 -seg_duration ${seg_duration}"
+}
+
+# Resumes an interrupted full mode encoding from its last complete segment.
+resume_full() {
+    out_dir=/jobs_out/$1
+    chunk_dir=${out_dir}/chunks
+    gop=$4
+
+    # The input is deleted once the stream is complete, there is nothing to
+    # resume
+    if [[ ! -d /jobs_in/$1 && -f ${out_dir}/stream.mpd ]]; then
+        return 0
+    fi
+
+    # The last segment written may be incomplete, discard it. Encodings with
+    # several renditions are restarted, and so are the piped ones (all the
+    # frames are piped, not the remaining ones).
+    segments_n=`find ${out_dir} -name 'chunk-stream0-*.m4s' 2>/dev/null | \
+        wc -l`
+    segments_n=$((segments_n - 1))
+    if [[ -n "$6" || -n "${pipe_input}" || ${segments_n} -le 0 || \
+            ! -f ${out_dir}/init-stream0.m4s ]]; then
+        rm -rf ${out_dir}
+        encode_full $1 `fixed_gop_args ${gop}` `video_args "$6"`
+        return $?
+    fi
+
+    # Join the complete segments into the first chunk
+    mkdir -p ${chunk_dir}
+    find ${out_dir} -name 'chunk-stream0-*.m4s' -print0 | sort -z | \
+        head -z -n ${segments_n} | \
+        xargs -0 cat ${out_dir}/init-stream0.m4s > ${chunk_dir}/chunk_00000.mp4
+    find ${out_dir} -maxdepth 1 -name '*.m4s' -delete
+    rm -f ${out_dir}/stream.mpd
+
+    # Encode the remaining frames into the second one
+    first_frame=$((segments_n * gop))
+    if [[ $5 -gt ${first_frame} ]]; then
+        encode_chunk $1 ${frame_rate} chunk 1 ${first_frame} \
+            $(($5 - first_frame)) ${gop} || return 1
+    fi
+
+    stitch_chunks $1
+}
+
+# Outputs the NUL separated names read from the standard input that sort
+# after $1 (all of them if it is empty).
+names_after() {
+    while IFS= read -r -d '' name; do
+        if [[ -z "$1" ]] || [ "${name}" \> "$1" ]; then
+            printf '%s\0' "${name}"
+        fi
+    done
+}
+
+# Outputs the frames of the sequence $1 (in file name order) as they arrive,
+# until $2 frames are there and output or no frame arrives for $3 seconds. The
+# first frame is copied as the thumbnail. Only the frames sorting after the
+# last one output are output, so a frame arriving late (after a frame with a
+# greater name) is skipped rather than shifting the sequence.
+feed_frames() {
+    fed=0
+    idle=0
+    last=""
+    all=`mktemp`
+    frames=`mktemp`
+    while true; do
+        find /jobs_in/$1 -maxdepth 1 -name '*.jpg' -print0 | sort -z > ${all}
+        total=`tr -cd '\0' < ${all} | wc -c`
+        names_after "${last}" < ${all} > ${frames}
+        count=`tr -cd '\0' < ${frames} | wc -c`
+        if [[ ${idle} -lt $3 && ${total} -lt $2 ]]; then
+            # The last frame may be still being written
+            count=$((count - 1))
+        fi
+
+        if [[ ${count} -le 0 ]]; then
+            if [[ ${total} -ge $2 ]]; then
+                break
+            fi
+            if [[ ${idle} -ge $3 ]]; then
+                echo "No frames for $3s, ending the stream" >&2
+                break
+            fi
+            idle=$((idle + 1))
+            sleep 1
+            continue
+        fi
+
+        if [[ -z "${last}" ]]; then
+            cp "`head -z -n 1 ${frames} | tr -d '\0'`" \
+                /jobs_out/$1/thumbnail.jpg
+        fi
+        head -z -n ${count} ${frames} | xargs -0 cat
+        last=`head -z -n ${count} ${frames} | tail -z -n 1 | tr -d '\0'`
+        fed=$((fed + count))
+        if [[ ${total} -ge $2 ]]; then
+            break # All the frames are there, and output
+        fi
+        if [[ ${idle} -ge $3 ]]; then
+            echo "No frames for $3s, ending the stream" >&2
+            break
+        fi
+        idle=0
+    done
+    if [[ ${fed} -lt ${total} ]]; then
+        echo "$((total - fed)) frames arrived out of order, skipped" >&2
+    fi
+    rm -f ${all} ${frames}
+}
+
+# Encodes a live sequence while its frames arrive.
+encode_live() {
+    rm -rf /jobs_out/$1
+    mkdir -p /jobs_out/$1
+
+    feed_frames $1 $5 $6 | \
+        /usr/bin/ffmpeg -f image2pipe -framerate ${frame_rate} -c:v mjpeg \
+            -i - -c:v libx264 ${x264_args} `fixed_gop_args $4` \
+            `video_args "$7"` -r ${frame_rate} \
+            -adaptation_sets id=0,streams=v \
+            -f dash /jobs_out/$1/stream.mpd || return 1
+
+    rm -rf /jobs_in/$1
+}
+
+if [[ "${mode}" == "chunk" ]]; then
+    encode_chunk "$@"
+    exit $?
+elif [[ "${mode}" == "stitch" ]]; then
+    stitch_chunks "$@"
+    exit $?
+elif [[ "${mode}" == "full" ]]; then
+    encode_full $1 `fixed_gop_args $4` `video_args "$5"`
+    exit $?
+elif [[ "${mode}" == "resume" ]]; then
+    resume_full "$@"
+    exit $?
+elif [[ "${mode}" == "live" ]]; then
+    encode_live "$@"
+    exit $?
+fi
 
-# Delete input files
-rm -rf /jobs_in/$1
+encode_full $1 `video_args`
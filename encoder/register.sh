@@ -9,6 +9,18 @@
 # The script traps the SIGTERM signal, and blocks indefinitely until receiving
 # it. On termination, it deletes its file from the /encoders directory.
 #
+# Before registering, it launches the worker agent (worker.sh) listening for
+# the Pipeline Manager connections on port E_WORKER_PORT.
+#
+# The file declares the CPU resources of the container, so the Pipeline
+# Manager shares them among the jobs encoded at the same time:
+#    cpus=<n>          CPUs the container may use: its cgroup CPU quota (v2 or
+#                      v1), or its CPUs if it has no quota.
+#    host=<id>         boot id of the host, the same for all its containers.
+#    host_cpus=<n>     CPUs of the host.
+# It is written into a hidden file and renamed, so it is complete once the
+# container is registered.
+#
 ###  # Released under MIT License
 ###  Copyright (c) 2020 Hernan Perrone (hernan.perrone@gmail.com)
 ################################################################################
@@ -18,6 +30,30 @@ container_id=`cat /etc/hostname`
 unregister() {
     echo "Unregister container ${container_id}..."
     rm /encoders/${container_id}
+    kill ${worker_pid} 2>/dev/null
+}
+
+# Prints the CPUs the container may use
+container_cpus() {
+    cpus=`nproc`
+    quota=""
+    if [ -f /sys/fs/cgroup/cpu.max ]; then
+        read quota period < /sys/fs/cgroup/cpu.max
+    elif [ -f /sys/fs/cgroup/cpu/cpu.cfs_quota_us ]; then
+        quota=`cat /sys/fs/cgroup/cpu/cpu.cfs_quota_us`
+        period=`cat /sys/fs/cgroup/cpu/cpu.cfs_period_us`
+    fi
+
+    # "max" (v2) or -1 (v1) when there is no quota
+    case "${quota}" in
+        ''|max|-*)
+            echo ${cpus}
+            ;;
+        *)
+            awk "BEGIN { q = ${quota} / ${period}; \
+                print (q < ${cpus}) ? q : ${cpus} }"
+            ;;
+    esac
 }
 
 echo "Starting container ${container_id}..."
@@ -27,7 +63,15 @@ trap 'unregister' SIGINT
 trap 'unregister' SIGQUIT
 trap 'unregister' SIGTSTP
 
-touch /encoders/${container_id}
+socat TCP-LISTEN:${E_WORKER_PORT},reuseaddr,fork EXEC:/worker.sh &
+worker_pid=$!
+
+cat > /encoders/.${container_id} <<EOF
+cpus=`container_cpus`
+host=`cat /proc/sys/kernel/random/boot_id`
+host_cpus=`grep -c ^processor /proc/cpuinfo`
+EOF
+mv /encoders/.${container_id} /encoders/${container_id}
 
 sleep infinity &
 wait $!
@@ -0,0 +1,168 @@
+#!/bin/sh
+
+################################################################################
+### Encoder worker agent. Serves the encoding requests of the Pipeline Manager
+### over a persistent connection.
+#
+# This script is launched by socat (see register.sh) for each connection, with
+# its standard input and output attached to the connection. It avoids the cost
+# of launching `docker exec` for each job.
+#
+# The protocol is line based. Each line is a message composed of a command and
+# its arguments, separated by a single space:
+#
+#   Requests (Pipeline Manager -> worker):
+#     SUBMIT <job_id> <dir_name> <frame_rate> [<args>...]
+#                                               starts encoding a job. The
+#                                               arguments are passed to
+#                                               encode.sh
+#     STREAM <job_id> <dir_name> <frame_rate> [<args>...]
+#                                               as SUBMIT, but the rest of the
+#                                               connection's input is the
+#                                               job's frames, fed to the
+#                                               encoding's standard input.
+#                                               The connection is closed once
+#                                               the job ends
+#     CANCEL <job_id>                           aborts an ongoing job
+#     PING                                      checks the worker is alive
+#
+# The directory name may only contain letters, digits, '.', '_' and '-' (and
+# it may not start with '.'), and the arguments the characters of encode.sh's
+# arguments. Requests with other characters are answered with an ERROR, since
+# they would not be passed to encode.sh as they are.
+#
+#   Responses (worker -> Pipeline Manager):
+#     PROGRESS <job_id> <text>   a line output by the encoding process
+#     RESULT <job_id> <code>     the job ended, with the given exit code
+#     PONG                       reply to PING
+#     ERROR <text>               invalid request
+#
+# Envioronment variables:
+#  - E_ENCODE_CMD: command used to encode a job (default /encode.sh). It
+#       receives the same arguments as encode.sh. It is useful to run this
+#       worker locally with a stand-in encoding command, i.e.:
+#          E_ENCODE_CMD=/bin/echo \
+#              socat TCP-LISTEN:7000,reuseaddr,fork EXEC:./worker.sh
+#
+###  # Released under MIT License
+###  Copyright (c) 2020 Hernan Perrone (hernan.perrone@gmail.com)
+################################################################################
+
+if [ -z "${E_ENCODE_CMD}" ]; then
+    E_ENCODE_CMD=/encode.sh
+fi
+
+# The request arguments are split into words, but never expanded as globs
+set -f
+
+# Job ids submitted through this connection
+job_ids=""
+
+# The pid of each job's encoding command, in <job_id>.pid
+run_dir=$(mktemp -d "${TMPDIR:-/tmp}/worker.XXXXXX") || exit 1
+trap 'rm -rf "${run_dir}"' EXIT
+
+# Checks the arguments of a request: <dir_name> <frame_rate> [<args>...]
+valid_args() {
+    case "$1" in
+        ''|.*|*[!A-Za-z0-9._-]*) return 1 ;;
+    esac
+    for arg in "$@"; do
+        case "${arg}" in
+            ''|*[!A-Za-z0-9._,:=+/-]*) return 1 ;;
+        esac
+    done
+    return 0
+}
+
+# Runs the encoding command, reporting its output and exit code. ffmpeg
+# separates its status lines with carriage returns, so they are turned into
+# new lines to report them as they are output. The command reads the file
+# descriptor 3 as its standard input.
+encode() {
+    job_id=$1
+    shift
+    ( ${E_ENCODE_CMD} "$@" <&3 2>&1 &
+      echo $! > "${run_dir}/${job_id}.pid"
+      wait $!
+      echo "@@RESULT $?" ) | tr '\r' '\n' | \
+    while IFS= read -r line; do
+        case "${line}" in
+            "@@RESULT "*) echo "RESULT ${job_id} ${line#@@RESULT }" ;;
+            *)            echo "PROGRESS ${job_id} ${line}" ;;
+        esac
+    done
+    rm -f "${run_dir}/${job_id}.pid"
+}
+
+# Kills a process and its descendants. Each process is stopped while its
+# children are killed, so it neither reacts to their end nor launches others.
+kill_tree() {
+    kill -STOP "$1" 2>/dev/null || return
+    for child in $(pgrep -P "$1"); do
+        kill_tree "${child}"
+    done
+    kill "$1" 2>/dev/null
+    kill -CONT "$1" 2>/dev/null
+}
+
+# Kills the encoding command of a job and the ffmpeg process it launched.
+cancel() {
+    case "$1" in
+        ''|*[!0-9]*) return ;;
+    esac
+    if [ -f "${run_dir}/${1}.pid" ]; then
+        kill_tree "$(cat "${run_dir}/${1}.pid")"
+    fi
+}
+
+while IFS=' ' read -r cmd job_id args; do
+    case "${cmd}" in
+        SUBMIT)
+            case "${job_id}" in
+                ''|*[!0-9]*)
+                    echo "ERROR invalid job id ${job_id}"
+                    continue
+                    ;;
+            esac
+            if ! valid_args ${args}; then
+                echo "ERROR invalid arguments ${args}"
+                continue
+            fi
+            job_ids="${job_ids} ${job_id}"
+            encode "${job_id}" ${args} 3</dev/null &
+            ;;
+        STREAM)
+            case "${job_id}" in
+                ''|*[!0-9]*)
+                    echo "ERROR invalid job id ${job_id}"
+                    exit 1
+                    ;;
+            esac
+            if ! valid_args ${args}; then
+                echo "ERROR invalid arguments ${args}"
+                exit 1
+            fi
+            # The shell reads the request line byte by byte, so the frames
+            # that follow it are left for the encoding. Closing the
+            # connection aborts it.
+            encode "${job_id}" ${args} 3<&0
+            exit 0
+            ;;
+        CANCEL)
+            cancel "${job_id}"
+            ;;
+        PING)
+            echo "PONG"
+            ;;
+        *)
+            echo "ERROR unknown command ${cmd}"
+            ;;
+    esac
+done
+
+# The connection has been closed, abort any ongoing job
+for job_id in ${job_ids}; do
+    cancel "${job_id}"
+done
+wait
@@ -0,0 +1,82 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Helpers shared by the benchmarks.
+ * <p>
+ * The pipeline steps log every job to the standard output. The benchmarks
+ * keep formatting and printing the log messages, so their cost is measured,
+ * but the output is discarded so the JMH report stays readable.
+ */
+final class BenchSupport {
+
+    /** Original standard output, used for the benchmarks' own messages */
+    private static final PrintStream stdout = System.out;
+
+    private BenchSupport() {
+    }
+
+    /**
+     * @brief Discards everything printed to the standard output
+     */
+    static void silence() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    /**
+     * @brief Restores the standard output
+     */
+    static void restore() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * @brief Creates a job description
+     */
+    static JsonObject jobDesc(final String name, final int fps,
+            final int framesN, final int priority) {
+        return Json.createObjectBuilder()
+                .add("name", name)
+                .add("fps", fps)
+                .add("frames_n", framesN)
+                .add("priority", priority)
+                .build();
+    }
+
+    /**
+     * @brief Creates a job for the image sequence directory dir
+     */
+    static Job job(final String dir, final int framesN, final int priority) {
+        return new Job(Job.nextId(), new File(dir), 25,
+                jobDesc(dir, 25, framesN, priority));
+    }
+
+    static File createTempDir(final String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * @brief Deletes a directory and all its contents
+     */
+    static void delete(final File dir) throws IOException {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package hp.pipeman;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention on the encoders' shared queue (the EncoderPool's
+ * SchedulingQueue): a producer queuing jobs while many encoder threads retire
+ * them, for each scheduling policy.
+ * <p>
+ * The queue operations are non blocking, so the benchmark measures the cost
+ * of the lock and of the ordering, not the time spent waiting for jobs or
+ * room. The default group has 1 producer and 16 encoder threads; other
+ * mixes can be run with i.e. -tg 1,64.
+ */
+@State(Scope.Group)
+@Fork(2)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncoderQueueBenchmark {
+
+    /** Number of jobs created in advance, a power of 2 */
+    private static final int JOBS_N = 1024;
+
+    @Param({ "fifo", "priority", "sjf" })
+    public String policy;
+
+    private SchedulingQueue queue;
+    private Job jobs[];
+
+    /** Next job to queue, used only by the producer thread */
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Fixed seed, so every run queues the same jobs
+        final Random random = new Random(42);
+        jobs = new Job[JOBS_N];
+        for (int i = 0; i < JOBS_N; i++) {
+            jobs[i] = BenchSupport.job("seq" + i, 100 + random.nextInt(10000),
+                    random.nextInt(10));
+        }
+        queue = new SchedulingQueue(SchedulingPolicy.create(policy, -1),
+                BaseThreadPipeStep.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(1)
+    public boolean produce() {
+        final boolean queued = queue.offer(jobs[next]);
+        if (queued) {
+            next = (next + 1) & (JOBS_N - 1);
+        }
+        return queued;
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(16)
+    public Job consume() {
+        return queue.poll();
+    }
+}
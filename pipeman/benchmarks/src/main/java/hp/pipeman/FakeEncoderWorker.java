@@ -0,0 +1,349 @@
+package hp.pipeman;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the encoder containers' worker agent (encoder/worker.sh), used
+ * by the LoadHarness so pipeman runs without docker nor ffmpeg.
+ * <p>
+ * It speaks the worker protocol (see EncoderWorkerClient) on a local port,
+ * one connection per Encoder slot. Each SUBMIT takes frames / encodeFps
+ * seconds, reporting ffmpeg-like progress lines meanwhile, and has the same
+ * effects on the file system as encode.sh: the stream and its thumbnail are
+ * written into the output directory and the image sequence is deleted. The
+ * chunks of split jobs only take their time, and the stitch writes the
+ * stream.
+ * <p>
+ * The frames of a STREAM request are read from the connection and counted
+ * (by their JPEG start of image markers). Piped encodings leave the input in
+ * place, as encode.sh does, and the thumbnail is the first piped frame.
+ * <p>
+ * A fraction of the encodings (failRate) fail half way, so the retries and
+ * the encoder health tracking are exercised as well.
+ */
+final class FakeEncoderWorker implements Runnable {
+
+    /** Time between two progress lines (ms) */
+    private static final long PROGRESS_PERIOD = 500;
+
+    /** Time a stitch takes (ms) */
+    private static final long STITCH_MS = 50;
+
+    /** Longest request line */
+    private static final int MAX_LINE = 4096;
+
+    private final File inDir;
+    private final File outDir;
+
+    /** Frames encoded per second by each encoding */
+    private final double encodeFps;
+
+    /** Fraction of the encodings that fail */
+    private final double failRate;
+
+    private final Random random;
+
+    private final ServerSocket server;
+
+    /** Encodings in progress */
+    private final AtomicInteger active = new AtomicInteger();
+
+    FakeEncoderWorker(final File inDir, final File outDir,
+            final double encodeFps, final double failRate, final long seed)
+            throws IOException {
+        this.inDir = inDir;
+        this.outDir = outDir;
+        this.encodeFps = encodeFps;
+        this.failRate = failRate;
+        this.random = new Random(seed);
+        this.server = new ServerSocket(0, 128,
+                InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @brief Gets the port the worker listens on
+     */
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @brief Gets the number of encodings in progress
+     */
+    int getActive() {
+        return active.get();
+    }
+
+    void start() {
+        final Thread t = new Thread(this, "FAKE-WORKER");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                final Thread t = new Thread(() -> serve(socket),
+                        "FAKE-WORKER-" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ioe) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * @brief Serves the requests of a connection (an Encoder slot)
+     */
+    private void serve(final Socket socket) {
+        Session session = null;
+        try (Socket s = socket;
+                InputStream in = new BufferedInputStream(
+                        s.getInputStream())) {
+            final OutputStream out = s.getOutputStream();
+            String line;
+            while ((line = readLine(in)) != null) {
+                final String msg[] = line.trim().split(" ");
+                if (msg[0].equals("PING")) {
+                    send(out, "PONG");
+                } else if (msg[0].equals("STREAM") && msg.length >= 4) {
+                    // The rest of the input are the frames, the connection
+                    // serves this encoding only
+                    session = new Session(out, msg[1],
+                            Arrays.copyOfRange(msg, 2, msg.length));
+                    session.readFrames(in);
+                    session.run();
+                    return;
+                } else if (msg[0].equals("SUBMIT") && msg.length >= 4) {
+                    session = new Session(out, msg[1],
+                            Arrays.copyOfRange(msg, 2, msg.length));
+                    final Thread t = new Thread(session,
+                            "FAKE-ENCODE-" + msg[1]);
+                    t.setDaemon(true);
+                    t.start();
+                } else if (msg[0].equals("CANCEL") && session != null) {
+                    session.cancelled = true;
+                } else {
+                    send(out, "ERROR unknown request: " + line);
+                }
+            }
+        } catch (IOException ioe) {
+            // The Encoder closed the connection
+        }
+        if (session != null) {
+            session.cancelled = true;
+        }
+    }
+
+    /**
+     * @brief Reads a request line, leaving the bytes after it in the stream
+     *
+     * @return the line or null at the end of the stream
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (line.size() < MAX_LINE) {
+                line.write(c);
+            }
+        }
+        return c == -1 && line.size() == 0 ? null
+                : line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void send(final OutputStream out, final String msg)
+            throws IOException {
+        synchronized (out) {
+            out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    /** An encoding requested through a connection */
+    private final class Session implements Runnable {
+        private final OutputStream out;
+        private final String id;
+
+        /** encode.sh arguments: dir_name frame_rate mode [mode args] */
+        private final String args[];
+
+        volatile boolean cancelled = false;
+
+        /** Frames read from a STREAM request, -1 if not piped */
+        private long pipedFrames = -1;
+
+        /** First piped frame, null if none */
+        private byte firstFrame[] = null;
+
+        Session(final OutputStream out, final String id, final String args[]) {
+            this.out = out;
+            this.id = id;
+            this.args = args;
+        }
+
+        @Override
+        public void run() {
+            active.incrementAndGet();
+            int ret;
+            try {
+                ret = encode();
+            } catch (IOException ioe) {
+                ret = 1;
+            } catch (InterruptedException ie) {
+                ret = 255;
+            } finally {
+                active.decrementAndGet();
+            }
+            try {
+                send(out, "RESULT " + id + " " + ret);
+            } catch (IOException ioe) {
+                // The Encoder closed the connection
+            }
+        }
+
+        /**
+         * @brief Reads the frames piped after a STREAM request, until the
+         *        Encoder shuts down its output
+         */
+        void readFrames(final InputStream in) throws IOException {
+            final ByteArrayOutputStream first = new ByteArrayOutputStream();
+            final byte buf[] = new byte[64 * 1024];
+            long frames = 0;
+            int prev1 = 0;
+            int prev2 = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    final int c = buf[i] & 0xFF;
+                    // Start of image: FF D8 FF
+                    if (prev2 == 0xFF && prev1 == 0xD8 && c == 0xFF) {
+                        frames++;
+                    }
+                    if (frames <= 1) {
+                        first.write(c);
+                    }
+                    prev2 = prev1;
+                    prev1 = c;
+                }
+            }
+            pipedFrames = frames;
+            if (frames > 0) {
+                // Without the start of the second frame, if any
+                final byte b[] = first.toByteArray();
+                firstFrame = Arrays.copyOf(b,
+                        frames > 1 ? b.length - 2 : b.length);
+            }
+        }
+
+        private int encode() throws IOException, InterruptedException {
+            final String dir = args[0];
+            final String mode = args.length > 2 ? args[2] : "full";
+            final long frames;
+            switch (mode) {
+            case "chunk":
+                frames = Long.parseLong(args[5]);
+                break;
+            case "stitch":
+                frames = 0;
+                break;
+            default:
+                frames = pipedFrames >= 0 ? pipedFrames
+                        : countFrames(new File(inDir, dir));
+            }
+
+            final boolean fail;
+            synchronized (random) {
+                fail = random.nextDouble() < failRate;
+            }
+            final long totalMs = frames == 0 ? STITCH_MS
+                    : (long) (1000 * frames / encodeFps);
+            final long runMs = fail ? totalMs / 2 : totalMs;
+            final long start = System.currentTimeMillis();
+            long elapsed;
+            while ((elapsed = System.currentTimeMillis() - start) < runMs) {
+                if (cancelled) {
+                    return 255;
+                }
+                Thread.sleep(Math.min(PROGRESS_PERIOD, runMs - elapsed));
+                if (frames > 0) {
+                    progress(frames, System.currentTimeMillis() - start,
+                            totalMs);
+                }
+            }
+            if (fail) {
+                send(out, "PROGRESS " + id + " simulated encoder failure");
+                return 1;
+            }
+
+            if (!mode.equals("chunk")) {
+                output(dir);
+            }
+            return 0;
+        }
+
+        /**
+         * @brief Sends an ffmpeg status line
+         */
+        private void progress(final long frames, final long elapsedMs,
+                final long totalMs) throws IOException {
+            final long frame = Math.min(frames, frames * elapsedMs / totalMs);
+            final long t = frame * 1000 / Math.max(1,
+                    Integer.parseInt(args[1]));
+            send(out, String.format("PROGRESS %s frame=%d fps=%.0f q=-1.0 " +
+                    "size=N/A time=%02d:%02d:%02d.%02d bitrate=N/A speed=1x",
+                    id, frame, encodeFps, t / 3600000, t / 60000 % 60,
+                    t / 1000 % 60, t / 10 % 100));
+        }
+
+        /**
+         * @brief Writes the stream, as encode.sh does, and deletes the image
+         *        sequence unless it was piped
+         */
+        private void output(final String dir) throws IOException {
+            final File in = new File(inDir, dir);
+            final File out = new File(outDir, dir);
+            out.mkdirs();
+            Files.write(new File(out, "stream.mpd").toPath(),
+                    "<MPD/>\n".getBytes(StandardCharsets.UTF_8));
+            if (pipedFrames >= 0) {
+                if (firstFrame != null) {
+                    Files.write(new File(out, "thumbnail.jpg").toPath(),
+                            firstFrame);
+                }
+                return;
+            }
+            final File frames[] = in.listFiles(
+                    (d, name) -> name.endsWith(".jpg"));
+            if (frames != null && frames.length > 0) {
+                Arrays.sort(frames);
+                Files.copy(frames[0].toPath(),
+                        new File(out, "thumbnail.jpg").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            BenchSupport.delete(in);
+        }
+    }
+
+    private static long countFrames(final File dir) {
+        final String names[] = dir.list((d, name) -> name.endsWith(".jpg"));
+        return names == null ? 0 : names.length;
+    }
+}
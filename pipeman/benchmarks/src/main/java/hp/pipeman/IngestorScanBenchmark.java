@@ -0,0 +1,94 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a single pass of the Ingestor over the Ingest Storage, for the scan
+ * and poll ingest modes, over synthetic directory trees of different sizes.
+ * <p>
+ * Each image sequence directory has its job description file and a few
+ * frames, but it is still waiting for its last frame. So no job is ever
+ * ready and every pass checks all the directories, which is the steady state
+ * of an Ingest Storage with many sequences being copied. The directories'
+ * modification times are set in the past, so the poll mode trusts them from
+ * the first pass.
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IngestorScanBenchmark {
+
+    /** Frame files in each image sequence directory */
+    private static final int FRAMES_N = 8;
+
+    @Param({ "100", "1000", "10000" })
+    public int dirs;
+
+    @Param({ "scan", "poll" })
+    public String mode;
+
+    private File root;
+    private ScanIngestMonitor scanMonitor;
+    private PollIngestMonitor pollMonitor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchSupport.silence();
+        root = BenchSupport.createTempDir("pipeman-ingest");
+        final long past = System.currentTimeMillis() - 60000;
+        final byte desc[] = ("{\"name\":\"seq\",\"fps\":25,\"frames_n\":" +
+                (FRAMES_N + 1) + "}").getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < dirs; i++) {
+            final File dir = new File(root, "seq" + i);
+            dir.mkdir();
+            Files.write(new File(dir, Ingestor.JOB_DESC_FILE).toPath(), desc);
+            for (int f = 0; f < FRAMES_N; f++) {
+                new File(dir, String.format("frame%04d%s", f,
+                        Ingestor.FRAME_FILE_EXT)).createNewFile();
+            }
+            dir.setLastModified(past);
+        }
+
+        scanMonitor = new ScanIngestMonitor(root, 1000);
+        pollMonitor = new PollIngestMonitor(root, 1000, 2000,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        scanMonitor.close();
+        pollMonitor.close();
+        BenchSupport.delete(root);
+        BenchSupport.restore();
+    }
+
+    @Benchmark
+    public Object scanPass() {
+        if (mode.equals("poll")) {
+            pollMonitor.scan();
+            return pollMonitor;
+        }
+        return scanMonitor.scan();
+    }
+}
@@ -0,0 +1,548 @@
+package hp.pipeman;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * End to end soak and load harness: runs the whole PipeMan pipeline on
+ * synthetic image sequences, with FakeEncoderWorker standing in for the
+ * encoder containers, so it only needs a JVM (no docker nor ffmpeg).
+ * <p>
+ * The image sequences arrive into the ingest directory as a Poisson process
+ * of LOAD_RATE sequences per second, for LOAD_DURATION_S seconds. Their
+ * number of frames follows a log-normal distribution (LOAD_FRAMES_MEDIAN and
+ * LOAD_FRAMES_SIGMA, up to LOAD_FRAMES_MAX), and the frames are hard links to
+ * a single small JPEG, so the load on the disk is the metadata's. With
+ * LOAD_ARCHIVE set to tar or zip, the frames are uploaded as a single
+ * archive instead (see FrameArchive). Each sequence's jobdesc.json is written
+ * last, as the producers do.
+ * <p>
+ * Every LOAD_REPORT_S seconds it prints (and appends to LOAD_CSV, if set):
+ * the sequences published per second, the p50/p99 end to end latency (from
+ * the sequence's arrival to its publication in the catalog) of the ones
+ * published in the interval, the sequences in the pipeline, the queue depth
+ * of each step, the heap and the GC time. Once the arrivals end, it waits up
+ * to LOAD_DRAIN_S seconds for the pipeline to drain and prints the totals.
+ * <p>
+ * All the settings are read as the pipeman ones (system properties or
+ * environment variables), so the pipeline settings (P_*) are given the same
+ * way. See README.md.
+ */
+public final class LoadHarness {
+
+    /** Frames of the synthetic image sequences */
+    private static final int FRAME_WIDTH = 64;
+    private static final int FRAME_HEIGHT = 36;
+
+    private final File workDir;
+    private final File inDir;
+    private final File outDir;
+
+    private final double rate;
+    private final long durationMs;
+    private final int framesMedian;
+    private final double framesSigma;
+    private final int framesMax;
+    private final int fps;
+    private final long reportMs;
+    private final long drainMs;
+    private final boolean keepOutput;
+    private final Random random;
+
+    /** Format the frames are archived in (tar or zip), empty if they are
+     *  uploaded as files */
+    private final String archive;
+
+    /** Arrival time of the sequences not yet published (ms), by directory */
+    private final Map<String, Long> arrivals =
+            new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong arrived = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishedFrames = new AtomicLong();
+
+    /** End to end latency of each published sequence (ms), guarded by this */
+    private long latencies[] = new long[1024];
+    private int latenciesN = 0;
+
+    /** Frames of the sequences not yet published, by directory */
+    private final Map<String, Integer> frames =
+            new ConcurrentHashMap<String, Integer>();
+
+    private final PrintStream report = System.out;
+    private PrintStream csv = null;
+
+    private LoadHarness(final File workDir) {
+        this.workDir = workDir;
+        this.inDir = new File(workDir, "jobs_in");
+        this.outDir = new File(workDir, "jobs_out");
+        this.rate = Config.getDouble("LOAD_RATE", 1);
+        this.durationMs = 1000 * Config.getLong("LOAD_DURATION_S", 300);
+        this.framesMedian = Config.getInt("LOAD_FRAMES_MEDIAN", 150);
+        this.framesSigma = Config.getDouble("LOAD_FRAMES_SIGMA", 1);
+        this.framesMax = Config.getInt("LOAD_FRAMES_MAX", 10000);
+        this.fps = Config.getInt("LOAD_FPS", 25);
+        this.reportMs = 1000 * Math.max(1,
+                Config.getLong("LOAD_REPORT_S", 10));
+        this.drainMs = 1000 * Config.getLong("LOAD_DRAIN_S", 300);
+        this.keepOutput = Config.getBoolean("LOAD_KEEP_OUTPUT", false);
+        this.random = new Random(Config.getLong("LOAD_SEED", 1));
+        this.archive = Config.getString("LOAD_ARCHIVE", "").toLowerCase();
+    }
+
+    public static void main(final String args[]) throws Exception {
+        final String dir = Config.getString("LOAD_DIR", "");
+        final File workDir = dir.isEmpty()
+                ? BenchSupport.createTempDir("pipeman-load") : new File(dir);
+        new LoadHarness(workDir).run(dir.isEmpty());
+        System.exit(0);
+    }
+
+    private void run(final boolean deleteWorkDir) throws Exception {
+        inDir.mkdirs();
+        outDir.mkdirs();
+        final File encodersDir = new File(workDir, "encoders");
+        encodersDir.mkdirs();
+        final File frame = createFrame();
+
+        final FakeEncoderWorker worker = new FakeEncoderWorker(inDir, outDir,
+                Config.getDouble("LOAD_ENCODE_FPS", 250),
+                Config.getDouble("LOAD_FAIL_RATE", 0),
+                Config.getLong("LOAD_SEED", 1));
+        worker.start();
+
+        // Run the pipeline on the work directory, through the fake worker.
+        // The settings given explicitly prevail.
+        setDefault("P_JOBS_IN", inDir.getPath());
+        setDefault("P_JOBS_OUT", outDir.getPath());
+        setDefault("P_ENCODERS_DIR", encodersDir.getPath());
+        setDefault("P_JOURNAL_DIR", new File(workDir, "state").getPath());
+        setDefault("P_ENCODER_MODE", "worker");
+        System.setProperty("P_WORKER_HOST", "127.0.0.1");
+        System.setProperty("P_WORKER_PORT", "" + worker.getPort());
+        setDefault("P_FEED_PORT", "0");
+        setDefault("P_LOG_LEVEL", "warn");
+
+        final int encoders = Config.getInt("LOAD_ENCODERS", 4);
+        for (int i = 0; i < encoders; i++) {
+            Files.write(new File(encodersDir, "fake" + i).toPath(),
+                    "cpus=1\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final String csvFile = Config.getString("LOAD_CSV", "");
+        if (!csvFile.isEmpty()) {
+            csv = new PrintStream(csvFile, StandardCharsets.UTF_8);
+        }
+
+        report.println("Load: " + rate + " sequences/s for " +
+                durationMs / 1000 + "s, frames log-normal(median " +
+                framesMedian + ", sigma " + framesSigma + ", max " +
+                framesMax + "), " + encoders + " encoders x " +
+                Config.getInt("P_ENCODER_SLOTS", 1) + " slots at " +
+                Config.getDouble("LOAD_ENCODE_FPS", 250) + " fps, in " +
+                workDir);
+
+        final Thread pipeman = new Thread(() -> PipeMan.main(new String[0]),
+                "PIPEMAN");
+        pipeman.setDaemon(true);
+        pipeman.start();
+
+        // The Publisher is the last step PipeMan creates
+        while (!hasStep(Publisher.STEP_NAME)) {
+            Thread.sleep(10);
+        }
+        final Catalog catalog = Publisher.getInstance().getCatalog();
+        final Thread collector = new Thread(() -> collect(catalog),
+                "LOAD-COLLECTOR");
+        collector.setDaemon(true);
+        collector.start();
+
+        final Thread generator = new Thread(() -> generate(frame),
+                "LOAD-GENERATOR");
+        generator.setDaemon(true);
+        generator.start();
+
+        // Report until the arrivals end and the pipeline drains
+        final long start = System.currentTimeMillis();
+        long last = start;
+        int lastIndex = 0;
+        long lastPublished = 0;
+        long lastFrames = 0;
+        printHeader();
+        while (true) {
+            Thread.sleep(reportMs - (System.currentTimeMillis() - last) %
+                    reportMs);
+            final long now = System.currentTimeMillis();
+            final int index = getLatenciesN();
+            final long pub = published.get();
+            final long pubFrames = publishedFrames.get();
+            printRow(now - start, (pub - lastPublished) * 1000.0 / (now - last),
+                    (pubFrames - lastFrames) * 1000.0 / (now - last),
+                    getLatencies(lastIndex, index), worker.getActive());
+            last = now;
+            lastIndex = index;
+            lastPublished = pub;
+            lastFrames = pubFrames;
+
+            final long elapsed = now - start;
+            if (!generator.isAlive() && (arrivals.isEmpty() ||
+                    elapsed > durationMs + drainMs)) {
+                break;
+            }
+        }
+
+        printSummary(System.currentTimeMillis() - start);
+        if (csv != null) {
+            csv.close();
+        }
+        if (deleteWorkDir) {
+            BenchSupport.delete(workDir);
+        }
+    }
+
+    /**
+     * @brief Sets a pipeman setting, unless given explicitly
+     */
+    private static void setDefault(final String name, final String value) {
+        if (System.getProperty(name) == null && System.getenv(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static boolean hasStep(final String name) {
+        for (PipeStepMetrics m : Metrics.getSteps()) {
+            if (m.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @brief Writes the JPEG all the frames are linked to
+     */
+    private File createFrame() throws IOException {
+        final BufferedImage image = new BufferedImage(FRAME_WIDTH,
+                FRAME_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < FRAME_HEIGHT; y++) {
+            for (int x = 0; x < FRAME_WIDTH; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 7) << 8 | 128);
+            }
+        }
+        final File frame = new File(workDir, "frame.jpg");
+        ImageIO.write(image, "jpg", frame);
+        return frame;
+    }
+
+    /**
+     * @brief Creates the image sequences, at the arrival rate, until the
+     *        duration elapses
+     */
+    private void generate(final File frame) {
+        final long start = System.currentTimeMillis();
+        double next = 0;
+        int seq = 0;
+        try {
+            while (true) {
+                // Poisson arrivals: exponential time between them
+                next += -Math.log(1 - random.nextDouble()) * 1000 / rate;
+                if (next >= durationMs) {
+                    break;
+                }
+                final long wait = start + (long) next -
+                        System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+
+                final double size = framesMedian *
+                        Math.exp(framesSigma * random.nextGaussian());
+                final int framesN = (int) Math.max(1,
+                        Math.min(framesMax, Math.round(size)));
+                createSequence(String.format("load%07d", seq++), framesN,
+                        frame);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace(report);
+        } catch (InterruptedException ie) {
+            // Stopped
+        }
+    }
+
+    /**
+     * @brief Creates an image sequence directory and its jobdesc.json
+     */
+    private void createSequence(final String name, final int framesN,
+            final File frame) throws IOException {
+        final File dir = new File(inDir, name);
+        dir.mkdirs();
+        if (!archive.isEmpty()) {
+            writeArchive(dir, framesN, Files.readAllBytes(frame.toPath()));
+        }
+        for (int i = 0; i < framesN && archive.isEmpty(); i++) {
+            final File f = new File(dir, String.format("%06d.jpg", i));
+            try {
+                Files.createLink(f.toPath(), frame.toPath());
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(frame.toPath(), f.toPath());
+            }
+        }
+
+        final JsonObject desc = Json.createObjectBuilder()
+                .add("title", name)
+                .add("desc", "Synthetic image sequence")
+                .add("frames_n", framesN)
+                .add("fps", fps)
+                .build();
+        final File tmp = new File(dir, ".jobdesc.json");
+        Files.write(tmp.toPath(), desc.toString()
+                .getBytes(StandardCharsets.UTF_8));
+
+        frames.put(name, framesN);
+        arrivals.put(name, System.currentTimeMillis());
+        arrived.incrementAndGet();
+        Files.move(tmp.toPath(), new File(dir, Ingestor.JOB_DESC_FILE)
+                .toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @brief Writes the frames of a sequence into its archive, renamed into
+     *        place once complete
+     */
+    private void writeArchive(final File dir, final int framesN,
+            final byte frame[]) throws IOException {
+        final boolean zip = archive.equals("zip");
+        final File f = new File(dir, zip ? FrameArchive.ZIP_FILE
+                : FrameArchive.TAR_FILE);
+        final File tmp = new File(dir, "." + f.getName());
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16)) {
+            if (zip) {
+                writeZip(out, framesN, frame);
+            } else {
+                writeTar(out, framesN, frame);
+            }
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @brief Writes an ustar archive of the frames
+     */
+    private static void writeTar(final OutputStream out, final int framesN,
+            final byte frame[]) throws IOException {
+        final byte padding[] = new byte[(512 - frame.length % 512) % 512];
+        for (int i = 0; i < framesN; i++) {
+            final byte h[] = new byte[512];
+            putTarField(h, 0, String.format("%06d.jpg", i));
+            putTarField(h, 100, "0000644");
+            putTarField(h, 108, "0000000");
+            putTarField(h, 116, "0000000");
+            putTarField(h, 124, String.format("%011o", frame.length));
+            putTarField(h, 136, String.format("%011o",
+                    System.currentTimeMillis() / 1000));
+            h[156] = '0';
+            putTarField(h, 257, "ustar");
+            putTarField(h, 263, "00");
+            Arrays.fill(h, 148, 156, (byte) ' ');
+            int sum = 0;
+            for (byte b : h) {
+                sum += b & 0xFF;
+            }
+            putTarField(h, 148, String.format("%06o", sum));
+            out.write(h);
+            out.write(frame);
+            out.write(padding);
+        }
+        // End of archive
+        out.write(new byte[1024]);
+    }
+
+    private static void putTarField(final byte h[], final int off,
+            final String value) {
+        final byte b[] = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(b, 0, h, off, b.length);
+    }
+
+    /**
+     * @brief Writes a zip archive of the frames, stored (zip -0)
+     */
+    private static void writeZip(final OutputStream out, final int framesN,
+            final byte frame[]) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(frame);
+        final ZipOutputStream zip = new ZipOutputStream(out);
+        zip.setMethod(ZipOutputStream.STORED);
+        for (int i = 0; i < framesN; i++) {
+            final ZipEntry e = new ZipEntry(String.format("%06d.jpg", i));
+            e.setSize(frame.length);
+            e.setCompressedSize(frame.length);
+            e.setCrc(crc.getValue());
+            zip.putNextEntry(e);
+            zip.write(frame);
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    /**
+     * @brief Follows the catalog, recording the latency of each sequence
+     *        published
+     */
+    private void collect(final Catalog catalog) {
+        long seq = 0;
+        final List<JsonObject> changed = new ArrayList<JsonObject>();
+        try {
+            while (true) {
+                catalog.awaitChange(seq, 1000);
+                changed.clear();
+                seq = catalog.getChangesSince(seq, changed);
+                final long now = System.currentTimeMillis();
+                for (JsonObject entry : changed) {
+                    final String dir = entry.getString("dir", "");
+                    final Long arrival = arrivals.remove(dir);
+                    if (arrival == null) {
+                        continue;
+                    }
+                    addLatency(now - arrival);
+                    published.incrementAndGet();
+                    final Integer n = frames.remove(dir);
+                    publishedFrames.addAndGet(n == null ? 0 : n);
+                    if (!keepOutput) {
+                        BenchSupport.delete(new File(outDir, dir));
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            // Stopped
+        } catch (IOException ioe) {
+            ioe.printStackTrace(report);
+        }
+    }
+
+    private synchronized void addLatency(final long ms) {
+        if (latenciesN == latencies.length) {
+            latencies = Arrays.copyOf(latencies, 2 * latencies.length);
+        }
+        latencies[latenciesN++] = ms;
+    }
+
+    private synchronized int getLatenciesN() {
+        return latenciesN;
+    }
+
+    /**
+     * @brief Gets the latencies recorded between two indexes, sorted
+     */
+    private synchronized long[] getLatencies(final int from, final int to) {
+        final long l[] = Arrays.copyOfRange(latencies, from, to);
+        Arrays.sort(l);
+        return l;
+    }
+
+    private static long percentile(final long sorted[], final double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private void printHeader() {
+        final StringBuilder sb = new StringBuilder(
+                "elapsed_s,published_per_s,frames_per_s,latency_p50_ms," +
+                "latency_p99_ms,in_flight,encoding");
+        for (PipeStepMetrics m : Metrics.getSteps()) {
+            sb.append(",queue_").append(m.getName().toLowerCase());
+        }
+        sb.append(",heap_used_mb,heap_committed_mb,threads,gc_ms");
+        report.println(sb);
+        if (csv != null) {
+            csv.println(sb);
+        }
+    }
+
+    private void printRow(final long elapsedMs, final double perSecond,
+            final double framesPerSecond, final long sorted[],
+            final int encoding) {
+        final MemoryUsage heap =
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(elapsedMs / 1000)
+                .append(',').append(String.format("%.2f", perSecond))
+                .append(',').append(String.format("%.0f", framesPerSecond))
+                .append(',').append(percentile(sorted, 0.5))
+                .append(',').append(percentile(sorted, 0.99))
+                .append(',').append(arrivals.size())
+                .append(',').append(encoding);
+        for (PipeStepMetrics m : Metrics.getSteps()) {
+            sb.append(',').append(m.getQueueDepth());
+        }
+        sb.append(',').append(heap.getUsed() >> 20)
+                .append(',').append(heap.getCommitted() >> 20)
+                .append(',').append(
+                        ManagementFactory.getThreadMXBean().getThreadCount())
+                .append(',').append(getGCTime());
+        report.println(sb);
+        if (csv != null) {
+            csv.println(sb);
+            csv.flush();
+        }
+    }
+
+    private void printSummary(final long elapsedMs) {
+        final long all[] = getLatencies(0, getLatenciesN());
+        long errors = 0;
+        for (PipeStepMetrics m : Metrics.getSteps()) {
+            errors += m.getErrorCount();
+        }
+        report.println("Summary: " + arrived.get() + " sequences arrived, " +
+                published.get() + " published, " + arrivals.size() +
+                " not published, " + errors + " step errors in " +
+                elapsedMs / 1000 + "s");
+        report.println(String.format("Throughput: %.2f sequences/s, " +
+                "%.0f frames/s", published.get() * 1000.0 / elapsedMs,
+                publishedFrames.get() * 1000.0 / elapsedMs));
+        report.println("Latency (ms): p50=" + percentile(all, 0.5) +
+                " p90=" + percentile(all, 0.9) + " p99=" +
+                percentile(all, 0.99) + " max=" + percentile(all, 1));
+        for (PipeStepMetrics m : Metrics.getSteps()) {
+            report.println("Step " + m.getName() + ": wait " +
+                    m.getWaitTime() + ", service " + m.getServiceTime());
+        }
+    }
+
+    private static long getGCTime() {
+        long ms = 0;
+        for (GarbageCollectorMXBean gc :
+                ManagementFactory.getGarbageCollectorMXBeans()) {
+            ms += Math.max(0, gc.getCollectionTime());
+        }
+        return ms;
+    }
+}
@@ -0,0 +1,111 @@
+package hp.pipeman;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handoff of jobs between BaseThreadPipeSteps: the cost of queuing a job into
+ * a step until its thread processes it, with 1 to N consuming steps.
+ * <p>
+ * - handoff: throughput of 4 producer threads queuing jobs round robin into
+ *   the consuming steps. The steps' queues are bounded, so once full the
+ *   producers are throttled to the consumers' pace.
+ * - roundTrip: latency from queuing a job to its processing, with a single
+ *   producer and the steps idle.
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipeStepHandoffBenchmark {
+
+    /** Number of jobs created in advance, a power of 2 */
+    private static final int JOBS_N = 1024;
+
+    /** Consuming step, which just counts the jobs */
+    private static class Sink extends BaseThreadPipeStep {
+        private final AtomicLong processed;
+
+        Sink(final String name, final AtomicLong processed) {
+            super(name);
+            this.processed = processed;
+        }
+
+        @Override
+        protected boolean doProcessJob(final Job job) {
+            processed.incrementAndGet();
+            return true;
+        }
+    }
+
+    @Param({ "1", "2", "4", "8" })
+    public int consumers;
+
+    private Sink sinks[];
+    private Job jobs[];
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchSupport.silence();
+        jobs = new Job[JOBS_N];
+        for (int i = 0; i < JOBS_N; i++) {
+            jobs[i] = BenchSupport.job("seq" + i, 100, 0);
+        }
+
+        sinks = new Sink[consumers];
+        for (int i = 0; i < consumers; i++) {
+            sinks[i] = new Sink("BENCH" + i, processed);
+            sinks[i].pipeStart();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Sink s : sinks) {
+            s.pipeStop();
+        }
+        BenchSupport.restore();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(4)
+    public void handoff() {
+        final long n = sent.getAndIncrement();
+        sinks[(int) (n % consumers)].pipeStepQueueJob(
+                jobs[(int) (n & (JOBS_N - 1))]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(1)
+    public long roundTrip() {
+        final long n = sent.getAndIncrement();
+        final long before = processed.get();
+        sinks[(int) (n % consumers)].pipeStepQueueJob(
+                jobs[(int) (n & (JOBS_N - 1))]);
+        while (processed.get() == before) {
+            Thread.onSpinWait();
+        }
+        return n;
+    }
+}
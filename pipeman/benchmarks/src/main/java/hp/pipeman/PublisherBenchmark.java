@@ -0,0 +1,89 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Publisher.publishBatch() with a batch of one job, the publication
+ * path of a job arriving alone, as the catalog (streams.json) grows from 10
+ * to 100k published streams, with and without syncing each publication to
+ * disk (P_CATALOG_FSYNC).
+ * <p>
+ * The catalog is created in a temporary directory and filled with the given
+ * number of entries before the measurement. The background compaction of
+ * streams.json runs as in production (every second).
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PublisherBenchmark {
+
+    /** Entries appended per write while filling the catalog */
+    private static final int FILL_BATCH = 1000;
+
+    @Param({ "10", "1000", "10000", "100000" })
+    public int entries;
+
+    @Param({ "true", "false" })
+    public boolean fsync;
+
+    private File dir;
+    private Catalog catalog;
+    private Publisher publisher;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchSupport.silence();
+        dir = BenchSupport.createTempDir("pipeman-publish");
+        catalog = new Catalog(dir, 1000, fsync);
+
+        final List<JsonObject> batch = new ArrayList<JsonObject>();
+        for (int i = 0; i < entries; i++) {
+            batch.add(Publisher.createEntry(
+                    BenchSupport.job("seq" + i, 100, 0)));
+            if (batch.size() == FILL_BATCH || i == entries - 1) {
+                catalog.appendAll(batch);
+                batch.clear();
+            }
+        }
+
+        publisher = new Publisher(catalog);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        catalog.close();
+        BenchSupport.delete(dir);
+        BenchSupport.restore();
+    }
+
+    @Benchmark
+    public boolean publish() {
+        final List<Job> batch = new ArrayList<Job>();
+        batch.add(BenchSupport.job("new" + (next++), 100, 0));
+        return publisher.publishBatch(batch);
+    }
+}
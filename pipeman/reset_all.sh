@@ -11,3 +11,5 @@
 ################################################################################
 rm -rf /jobs_in/*
 rm -rf /jobs_out/*
+rm -rf /jobs_out/.cache
+rm -rf /var/lib/pipeman/*
@@ -1,10 +1,37 @@
 package hp.pipeman;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-public abstract class BaseThreadPipeStep extends Thread
-        implements PipeStep {
+/**
+ * Base implementation of a PipeStep that processes the Jobs in its own
+ * thread.
+ * <p>
+ * The incoming Jobs are kept in a bounded queue. Its capacity is set by the
+ * P_QUEUE_CAPACITY_&lt;name&gt; setting (i.e. P_QUEUE_CAPACITY_PUBLISH) or, if
+ * not defined, by P_QUEUE_CAPACITY (64 by default). When the queue is full,
+ * the previous step blocks until there is room for the Job, so a slow step
+ * throttles the ones before it instead of letting its queue grow.
+ * <p>
+ * The step is instrumented (see PipeStepMetrics): its queue depth, the time
+ * the jobs wait in its queue, the time doProcessJob takes and its results are
+ * published by Metrics.
+ * <p>
+ * The step runs as a task in a thread created by Threads, so depending on the
+ * P_THREAD_MODE setting it is a platform or a virtual thread.
+ * <p>
+ * The Jobs failed by a previous step (or by a parallel branch) are not
+ * processed, they are forwarded as they are to the next step, so they reach
+ * the end of the pipeline without doing any further work.
+ */
+public abstract class BaseThreadPipeStep implements PipeStep, Runnable {
+
+    /** Default capacity of the pipeline steps' queues */
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
 
     /** Next step in the pipeline */
     private PipeStep nextPipeStep = null;
@@ -13,11 +40,34 @@ public abstract class BaseThreadPipeStep extends Thread
     private final String pipeStepName;
 
     /** Queue of pending jobs */
-    private final Queue<Job> jobs_queue = new ConcurrentLinkedDeque<Job>();
+    private final BlockingQueue<Job> jobs_queue;
+
+    /** Instrumentation of this pipeline step */
+    private final PipeStepMetrics metrics;
+
+    /** Thread running this pipeline step, null if not started */
+    private volatile Thread thread = null;
 
     protected BaseThreadPipeStep(String name) {
-        super();
+        this(name, getQueueCapacity(name));
+    }
+
+    protected BaseThreadPipeStep(String name, int queueCapacity) {
         this.pipeStepName = name;
+        this.jobs_queue = new LinkedBlockingQueue<Job>(
+                Math.max(1, queueCapacity));
+        this.metrics = new PipeStepMetrics(name, this::getQueueSize, null);
+        Metrics.register(metrics);
+    }
+
+    /**
+     * @brief Gets the configured queue capacity of a pipeline step
+     *
+     * @param[in]  name  pipeline step name
+     */
+    static int getQueueCapacity(final String name) {
+        return Config.getInt("P_QUEUE_CAPACITY_" + name,
+                Config.getInt("P_QUEUE_CAPACITY", DEFAULT_QUEUE_CAPACITY));
     }
 
     @Override
@@ -36,12 +86,38 @@ public abstract class BaseThreadPipeStep extends Thread
         start(); // Start this pipeline step's thread
     }
 
+    /**
+     * @brief Starts this pipeline step's thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException(pipeStepName + " already started");
+        }
+        thread = Threads.newThread(pipeStepName, this, false);
+        thread.start();
+    }
+
+    /**
+     * @brief Waits for this pipeline step's thread to terminate
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        final Thread t = thread;
+        if (t != null) {
+            t.join();
+        }
+    }
+
     @Override
     public void pipeStop() {
         // Recursively, stop the pipeline steps' threads from front to back.
         try {
-            interrupt(); // Interrupt this pipeline step's thread 
-            join();      // and wait it to terminate
+            final Thread t = thread;
+            if (t != null) {
+                t.interrupt(); // Interrupt this pipeline step's thread
+                t.join();      // and wait it to terminate
+            }
         } catch (InterruptedException ie) {
             // do nothing
         }
@@ -51,12 +127,26 @@ public abstract class BaseThreadPipeStep extends Thread
         }
     }
 
+    /**
+     * Queues the job, blocking while this step's queue is full.
+     *
+     * @throws IllegalStateException if the calling thread is interrupted
+     *         while waiting for room in the queue
+     */
     @Override
     public void pipeStepQueueJob(final Job job) {
-        synchronized(jobs_queue) {
-            pipeStepLog("Queuing JOB #" + job.getId());
-            jobs_queue.add(job);
-            jobs_queue.notifyAll();
+        Log.event(Log.Level.DEBUG, pipeStepName, "queued", job.getId(), -1);
+        metrics.jobQueued(job);
+        try {
+            if (!jobs_queue.offer(job)) {
+                Log.event(Log.Level.INFO, pipeStepName, "waiting, queue full",
+                        job.getId(), -1);
+                jobs_queue.put(job);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted queuing JOB #" +
+                    job.getId(), ie);
         }
     }
 
@@ -68,21 +158,70 @@ public abstract class BaseThreadPipeStep extends Thread
      * interrupted
      */
     protected Job getNextJob() {
-        Job job = null;
+        try {
+            Job job = jobs_queue.poll();
+            if (job == null) {
+                Log.log(Log.Level.DEBUG, pipeStepName, "Waiting for a job");
+                job = jobs_queue.take();
+            }
+            metrics.jobRetired(job);
+            return job;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-        synchronized(jobs_queue) {
-            // Wait for a Job
-            while((job = jobs_queue.poll()) == null) {
-                pipeStepLog("Waiting for a job");
-                try {
-                    jobs_queue.wait(5000);
-                } catch (InterruptedException ie) {
-                    break;
-                }
+    /**
+     * @brief Retires the next job to be processed, waiting up to the given
+     *        time for it
+     *
+     * @param[in]  timeout  maximum time to wait (ms). 0 to do not wait.
+     * @return the next job to process or null if none has been queued within
+     *         the timeout or the thread have been interrupted
+     */
+    protected Job pollNextJob(final long timeout) {
+        try {
+            final Job job = jobs_queue.poll(timeout, TimeUnit.MILLISECONDS);
+            if (job != null) {
+                metrics.jobRetired(job);
             }
+            return job;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+    }
 
-        return job;
+    /**
+     * @brief Retires, without waiting, the jobs already queued
+     *
+     * @param[out] jobs     collection where the jobs are added
+     * @param[in]  maxJobs  maximum number of jobs to retire
+     * @return the number of jobs retired
+     */
+    protected int drainJobs(final Collection<Job> jobs, final int maxJobs) {
+        final List<Job> drained = new ArrayList<Job>();
+        jobs_queue.drainTo(drained, maxJobs);
+        for (Job job : drained) {
+            metrics.jobRetired(job);
+        }
+        jobs.addAll(drained);
+        return drained.size();
+    }
+
+    /**
+     * @brief Gets the instrumentation of this pipeline step
+     */
+    protected PipeStepMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @brief Gets the number of jobs waiting in this step's queue
+     */
+    public int getQueueSize() {
+        return jobs_queue.size();
     }
 
     @Override
@@ -95,49 +234,148 @@ public abstract class BaseThreadPipeStep extends Thread
                 continue; 
             }
 
+            if (curr_job.isFailed()) {
+                skipJob(curr_job);
+                continue;
+            }
+
             // At this point, the worker has a job. Lets start working.
-            pipeStepLog("Processing JOB #" + curr_job.getId());
+            Log.event(Log.Level.DEBUG, pipeStepName, "processing",
+                    curr_job.getId(), -1);
 
             synchronized(curr_job) {
                 curr_job.setStatus(Job.JobStatus.RUNNING);
             }
 
             boolean ret = false;
+            final long startTime = System.nanoTime();
             try {
                 ret = doProcessJob(curr_job);
             } catch (RuntimeException re) {
                 // Some basic error handling so the pipeline is not broken due
                 // to any problem with a particular job or step.
                 ret = false;
-                re.printStackTrace(System.out);
+                Log.error(pipeStepName, re);
             }
+            metrics.jobServiced(startTime);
 
-            synchronized(curr_job) {
+            completeJob(curr_job, ret);
+        }
+
+        pipeStepLog("Ended");
+    }
+
+    /**
+     * @brief Completes this step's processing of a job
+     *
+     * Sets the job status according to the processing result and queues it
+     * into the next step.
+     *
+     * @param[in,out] job    Job processed by this pipeline step
+     * @param[in]     ret    result of the job processing
+     */
+    protected void completeJob(final Job job, final boolean ret) {
+        completeJobs(List.of(job), ret);
+    }
+
+    /**
+     * @brief Completes this step's processing of a group of jobs
+     *
+     * As completeJob, but the jobs' transitions are recorded in the journal
+     * with a single write, before queuing any of them into the next step.
+     *
+     * @param[in,out] jobs   Jobs processed together by this pipeline step
+     * @param[in]     ret    result of the jobs processing
+     */
+    protected void completeJobs(final List<Job> jobs, final boolean ret) {
+        final List<PipeStep> nextPipeSteps = new ArrayList<PipeStep>();
+        final List<Job> done = new ArrayList<Job>();
+        final List<Job> passed = new ArrayList<Job>();
+        for (Job job : jobs) {
+            final PipeStep nextPipeStep = getNextPipeStep(job);
+            nextPipeSteps.add(nextPipeStep);
+            synchronized(job) {
                 if (!ret) {
-                    curr_job.setStatus(Job.JobStatus.ERROR);
+                    job.setStatus(Job.JobStatus.ERROR);
                 } else if (nextPipeStep == null) {
-                    curr_job.setStatus(Job.JobStatus.COMPLETED);
+                    job.setStatus(Job.JobStatus.COMPLETED);
                 }
             }
 
-            pipeStepLog("Processed JOB #" + curr_job.getId());
+            metrics.jobCompleted(ret);
+            if (ret && nextPipeStep == null) {
+                done.add(job);
+                Metrics.jobCompleted(job);
+            } else if (ret) {
+                passed.add(job);
+            }
+        }
+
+        if (!ret) {
+            JobJournal.getInstance().failed(jobs);
+        } else {
+            JobJournal.getInstance().done(done);
+            JobJournal.getInstance().stepCompleted(passed, pipeStepName);
+        }
+
+        for (int i = 0; i < jobs.size(); i++) {
+            final Job job = jobs.get(i);
+            final PipeStep nextPipeStep = nextPipeSteps.get(i);
+
+            // Time in this step, from the job being queued
+            Log.event(ret ? Log.Level.INFO : Log.Level.WARN, pipeStepName,
+                    ret ? "processed" : "failed", job.getId(),
+                    System.currentTimeMillis() - job.getQueueTime());
 
             // At this point, this step is completed job. Lets invoke the next.
             if (nextPipeStep != null) {
                 try {
-                    nextPipeStep.pipeStepQueueJob(curr_job);
+                    nextPipeStep.pipeStepQueueJob(job);
                 } catch (RuntimeException re) {
                     // Some basic error handling so the pipeline is not broken
                     // due to any problem with a particular job or step.
-                    re.printStackTrace(System.out);
-                    synchronized(curr_job) {
-                        curr_job.setStatus(Job.JobStatus.ERROR);
+                    Log.error(pipeStepName, re);
+                    synchronized(job) {
+                        job.setStatus(Job.JobStatus.ERROR);
                     }
+                    JobJournal.getInstance().failed(job);
                 }
             }
         }
+    }
 
-        pipeStepLog("Ended");
+    /**
+     * @brief Forwards a failed job to the next step without processing it
+     *
+     * The job keeps its ERROR status and it is not recorded in the journal
+     * again, the step that failed it already did.
+     *
+     * @param[in]  job  Job failed by a previous step
+     */
+    protected void skipJob(final Job job) {
+        Log.event(Log.Level.DEBUG, pipeStepName, "skipped, failed",
+                job.getId(), -1);
+        final PipeStep nextPipeStep = getNextPipeStep(job);
+        if (nextPipeStep != null) {
+            try {
+                nextPipeStep.pipeStepQueueJob(job);
+            } catch (RuntimeException re) {
+                Log.error(pipeStepName, re);
+            }
+        }
+    }
+
+    /**
+     * @brief Gets the pipeline step a processed job continues to
+     *
+     * By default, the next step in the pipeline. Steps that let some jobs
+     * skip the following steps override it.
+     *
+     * @param[in]  job  Job processed by this pipeline step
+     * @return the step or null if the job is completed
+     */
+    protected PipeStep getNextPipeStep(final Job job) {
+        return nextPipeStep;
     }
 
     /**
@@ -146,7 +384,7 @@ public abstract class BaseThreadPipeStep extends Thread
      * @param[in]  msg    log message
      */
     protected void pipeStepLog(final String msg) {
-        System.out.println("[" + pipeStepName + "]:" + msg);
+        Log.log(Log.Level.INFO, pipeStepName, msg);
     }
 
     /**
@@ -0,0 +1,477 @@
+package hp.pipeman;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+
+/**
+ * The Catalog maintains the list of published streams (streams.json) in the
+ * Video Feed.
+ * <p>
+ * Publishing a stream must not depend on the size of the catalog, so new
+ * entries are appended, one JSON object per line, to a journal file
+ * (streams.journal). A background thread compacts the catalog: it writes the
+ * whole list into a temporary file and swaps it in place of streams.json
+ * with an atomic rename, so readers never see a partially written file. Then
+ * the journal entries already included in streams.json are discarded.
+ * <p>
+ * Compactions are coalesced: at most one is performed every compaction
+ * period, regardless of the number of entries appended meanwhile.
+ * <p>
+ * On startup, streams.json is loaded and the journal replayed, so no entry is
+ * lost if pipeman stops before a compaction.
+ * <p>
+ * There is one entry per output directory: an entry appended for a directory
+ * already in the catalog (i.e. a live stream once completed) replaces the
+ * previous one.
+ * <p>
+ * Each entry added or replaced gets the next sequence number of the catalog,
+ * so the entries changed since a given sequence number are found without
+ * going through the whole catalog (see getChangesSince). The numbers start
+ * again on each instance, which is identified by its epoch.
+ * @see CatalogFeed
+ */
+class Catalog {
+
+    /** Materialized catalog file name */
+    static final String CATALOG_FILE = "streams.json";
+
+    /** Journal file name */
+    static final String JOURNAL_FILE = "streams.journal";
+
+    /** Materialized catalog file */
+    private final File catalogFile;
+
+    /** Journal file */
+    private final File journalFile;
+
+    /** Minimum time between two compactions (ms) */
+    private final long compactPeriod;
+
+    /** Whether the journal is synced to disk on each append */
+    private final boolean durable;
+
+    /** All the catalog entries, guarded by this */
+    private final List<JsonObject> entries = new ArrayList<JsonObject>();
+
+    /** Index in entries of each output directory, guarded by this */
+    private final Map<String, Integer> dirs = new HashMap<String, Integer>();
+
+    /** Sequence number of the last change of each entry, guarded by this */
+    private final List<Long> entrySeqs = new ArrayList<Long>();
+
+    /** Index in entries of the entry changed at each sequence number, only
+     *  the last change of each entry. Guarded by this. */
+    private final TreeMap<Long, Integer> changes = new TreeMap<Long, Integer>();
+
+    /** Sequence number of the last change, guarded by this */
+    private long seq = 0;
+
+    /** Identifies this instance's sequence numbers */
+    private final long epoch = System.currentTimeMillis();
+
+    /** Journal entries not yet compacted into streams.json, guarded by this */
+    private final List<JsonObject> journaled = new ArrayList<JsonObject>();
+
+    /** Journal file channel, opened in append mode, guarded by this */
+    private FileChannel journal;
+
+    /** Background compaction thread */
+    private final Thread compactor;
+
+    /** Whether the catalog has been closed, guarded by this */
+    private boolean closed = false;
+
+    /**
+     * Catalog constructor. Loads the current catalog and starts the background
+     * compaction thread.
+     *
+     * @param dir            directory where the catalog files are placed
+     * @param compactPeriod  minimum time between two compactions (ms)
+     * @param durable        whether appends are synced to disk
+     */
+    public Catalog(final File dir, final long compactPeriod,
+            final boolean durable) {
+        this.catalogFile = new File(dir, CATALOG_FILE);
+        this.journalFile = new File(dir, JOURNAL_FILE);
+        this.compactPeriod = compactPeriod;
+        this.durable = durable;
+
+        load();
+
+        compactor = new Thread(this::compactLoop, "catalog-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * @brief Appends an entry to the catalog
+     *
+     * The entry is written to the journal and it will be included in
+     * streams.json on the next compaction.
+     * @param[in]  entry  stream description to be published
+     * @throws IOException on error writing the journal
+     */
+    public void append(final JsonObject entry) throws IOException {
+        appendAll(List.of(entry));
+    }
+
+    /**
+     * @brief Appends a group of entries to the catalog
+     *
+     * All the entries are written to the journal with a single write and, if
+     * the catalog is durable, synced to disk before returning. So, once this
+     * function returns, the entries survive a crash.
+     * Entries whose output directory is already in the catalog replace the
+     * previous entry, unless they are equal (i.e. jobs republished after a
+     * crash recovery), in which case they are skipped.
+     * @param[in]  batch  stream descriptions to be published
+     * @throws IOException on error writing the journal. In such case, none of
+     *         the entries is added to the catalog.
+     */
+    public synchronized void appendAll(final List<JsonObject> batch)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Catalog closed");
+        }
+
+        if (journal == null) {
+            journal = FileChannel.open(journalFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+
+        final List<JsonObject> added = new ArrayList<JsonObject>();
+        for (JsonObject e : batch) {
+            final Integer i = dirs.get(e.getString("dir", ""));
+            if (i == null || !entries.get(i).equals(e)) {
+                added.add(e);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        added.forEach(e -> sb.append(toJson(e)).append('\n'));
+        final ByteBuffer buf = ByteBuffer.wrap(
+                sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            journal.write(buf);
+        }
+        if (durable) {
+            journal.force(false);
+        }
+
+        added.forEach(this::put);
+        journaled.addAll(added);
+        notifyAll(); // wake up the compactor and the awaitChange callers
+    }
+
+    /**
+     * @brief Returns the number of entries in the catalog
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @brief Gets the epoch of this instance's sequence numbers
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @brief Gets the sequence number of the last change
+     */
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @brief Gets the entries added or replaced after a sequence number
+     *
+     * @param[in]  since    sequence number, 0 to get all the entries
+     * @param[out] changed  list the entries are added to, in the order they
+     *                      were changed
+     * @return the sequence number of the last change, to be used as the next
+     *         call's since
+     */
+    public synchronized long getChangesSince(final long since,
+            final List<JsonObject> changed) {
+        for (Integer i : changes.tailMap(since, false).values()) {
+            changed.add(entries.get(i));
+        }
+        return seq;
+    }
+
+    /**
+     * @brief Waits for a change after a sequence number
+     *
+     * @param[in]  since    sequence number
+     * @param[in]  timeout  maximum time to wait (ms)
+     * @return the sequence number of the last change, equal to since if
+     *         there was none within the timeout or the catalog is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized long awaitChange(final long since, final long timeout)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+        while (seq <= since && left > 0 && !closed) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return seq;
+    }
+
+    /**
+     * @brief Stops the compaction thread, performing a last compaction
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            compactor.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            closeJournal();
+        }
+    }
+
+    /**
+     * @brief Loads streams.json and replays the journal
+     *
+     * Journal entries replace the entries of the same dir, so those already
+     * present in streams.json (the previous instance may have stopped after a
+     * compaction but before discarding the journal) are not duplicated. A
+     * truncated last line is ignored.
+     */
+    private synchronized void load() {
+        if (catalogFile.exists()) {
+            try (InputStream is = new FileInputStream(catalogFile)) {
+                for (JsonValue v : Json.createReader(is).readArray()) {
+                    if (v.getValueType() == JsonValue.ValueType.OBJECT) {
+                        put(v.asJsonObject());
+                    }
+                }
+            } catch (IOException | JsonException e) {
+                Log.error("CATALOG", e);
+            }
+        }
+
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                final JsonObject e;
+                try {
+                    e = Json.createReader(new StringReader(line)).readObject();
+                } catch (JsonException je) {
+                    log("Skipping corrupted journal entry");
+                    continue;
+                }
+                put(e);
+                journaled.add(e);
+            }
+        } catch (IOException ioe) {
+            Log.error("CATALOG", ioe);
+        }
+    }
+
+    /**
+     * @brief Adds an entry or replaces the one of the same output directory.
+     *        Must be called holding the lock.
+     */
+    private void put(final JsonObject entry) {
+        final String dir = entry.getString("dir", "");
+        Integer i = dirs.get(dir);
+        seq++;
+        if (i != null) {
+            entries.set(i, entry);
+            changes.remove(entrySeqs.get(i));
+            entrySeqs.set(i, seq);
+        } else {
+            i = entries.size();
+            dirs.put(dir, i);
+            entries.add(entry);
+            entrySeqs.add(seq);
+        }
+        changes.put(seq, i);
+    }
+
+    /**
+     * Compaction thread's body. Waits for journaled entries and compacts them,
+     * at most once every compaction period.
+     */
+    private void compactLoop() {
+        while (true) {
+            synchronized (this) {
+                while (journaled.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (journaled.isEmpty()) {
+                    return; // closed and nothing pending
+                }
+            }
+
+            try {
+                compact();
+            } catch (IOException ioe) {
+                Log.error("CATALOG", ioe);
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    continue; // perform the last compaction without delay
+                }
+                try {
+                    wait(compactPeriod);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @brief Writes the whole catalog into streams.json
+     *
+     * The catalog is written into a temporary file, synced to disk and then
+     * renamed over streams.json. The journal is rewritten with the entries
+     * appended while compacting (usually none).
+     */
+    void compact() throws IOException {
+        final List<JsonObject> snapshot;
+        final int journaledN;
+        synchronized (this) {
+            snapshot = new ArrayList<JsonObject>(entries);
+            journaledN = journaled.size();
+        }
+
+        final JsonArrayBuilder builder = Json.createArrayBuilder();
+        snapshot.forEach(e -> builder.add(e));
+
+        final File tmp = new File(catalogFile.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            JsonWriter writer = Json.createWriter(os);
+            writer.writeArray(builder.build());
+            os.getFD().sync();
+        }
+
+        try {
+            Files.move(tmp.toPath(), catalogFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp.toPath(), catalogFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        synchronized (this) {
+            journaled.subList(0, journaledN).clear();
+            rewriteJournal();
+        }
+
+        log("Compacted " + snapshot.size() + " entries");
+    }
+
+    /**
+     * @brief Replaces the journal contents with the pending entries
+     *
+     * The pending entries were already synced (and acknowledged) when
+     * appended, so they are written into a temporary file, synced to disk
+     * and then renamed over the journal, as streams.json is.
+     */
+    private void rewriteJournal() throws IOException {
+        closeJournal();
+        if (journaled.isEmpty()) {
+            Files.deleteIfExists(journalFile.toPath());
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        journaled.forEach(e -> sb.append(toJson(e)).append('\n'));
+        final File tmp = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            os.getFD().sync();
+        }
+
+        try {
+            Files.move(tmp.toPath(), journalFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp.toPath(), journalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ioe) {
+                Log.error("CATALOG", ioe);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * @brief Serializes a JSON object in a single line
+     */
+    static String toJson(final JsonObject obj) {
+        final StringWriter sw = new StringWriter();
+        try (JsonWriter writer = Json.createWriter(sw)) {
+            writer.writeObject(obj);
+        }
+        return sw.toString();
+    }
+
+    private void log(final String msg) {
+        Log.log(Log.Level.INFO, "CATALOG", msg);
+    }
+}
@@ -0,0 +1,293 @@
+package hp.pipeman;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.JsonObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the Catalog kept in memory by the Publisher over HTTP, so clients
+ * transfer only the streams published since their last request instead of
+ * the whole streams.json.
+ * <p>
+ * The feed is served on P_FEED_PORT (9401 by default, 0 disables it):
+ *  - GET /streams.json: the whole catalog, as in the Video Feed.
+ *  - GET /changes?since=&lt;cursor&gt;&amp;wait=&lt;seconds&gt;: the entries
+ *    added or replaced after the cursor, as a JSON object:
+ *    {"cursor": "...", "reset": false, "streams": [...]}. The cursor
+ *    returned is the one of the next request. Without a cursor, or with one
+ *    of a previous pipeman instance, all the entries are returned and reset
+ *    is true. If there are no changes, the request waits up to the given
+ *    seconds (at most P_FEED_MAX_WAIT_S) for a stream to be published.
+ * <p>
+ * Both carry the cursor of the catalog's last change as their ETag, so a
+ * request with a matching If-None-Match header (and no changes) gets a 304
+ * response without a body.
+ * <p>
+ * Requests are served by P_FEED_THREADS threads (32 by default), which bounds
+ * the number of clients waiting for changes at the same time.
+ * @see Catalog
+ */
+final class CatalogFeed {
+
+    /** Catalog served */
+    private final Catalog catalog;
+
+    /** Maximum time a request waits for changes (ms) */
+    private final long maxWait;
+
+    /** Number of requests waiting for changes */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** Threads serving the requests */
+    private final ExecutorService executor;
+
+    private final HttpServer server;
+
+    /** Last change included in fullBody, guarded by this */
+    private long fullSeq = -1;
+
+    /** Whole catalog as served at /streams.json, guarded by this */
+    private byte fullBody[] = null;
+
+    private CatalogFeed(final Catalog catalog, final HttpServer server) {
+        this.catalog = catalog;
+        this.server = server;
+        this.maxWait = 1000 * Math.max(0,
+                Config.getLong("P_FEED_MAX_WAIT_S", 30));
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(1, Config.getInt("P_FEED_THREADS", 32)),
+                r -> Threads.newThread("FEED", r, true));
+        server.setExecutor(executor);
+        server.createContext("/streams.json", this::handleStreams);
+        server.createContext("/changes", this::handleChanges);
+        Metrics.registerGauge("feed_waiting_requests",
+                "Catalog feed requests waiting for changes.", waiting::get);
+    }
+
+    /**
+     * @brief Starts serving a catalog on P_FEED_PORT
+     *
+     * @param[in]  catalog  the catalog to be served
+     * @return the feed or null if it is disabled or it could not be started
+     */
+    static CatalogFeed start(final Catalog catalog) {
+        final int port = Config.getInt("P_FEED_PORT", 9401);
+        if (port <= 0) {
+            return null;
+        }
+
+        try {
+            final CatalogFeed feed = new CatalogFeed(catalog,
+                    HttpServer.create(new InetSocketAddress(
+                            Config.getString("P_FEED_HOST", "0.0.0.0"),
+                            port), 0));
+            feed.server.start();
+            Log.log(Log.Level.INFO, "FEED", "Serving the catalog on port {}",
+                    port);
+            return feed;
+        } catch (IOException ioe) {
+            Log.error("FEED", "Unable to serve the catalog on port " + port,
+                    ioe);
+            return null;
+        }
+    }
+
+    /**
+     * @brief Stops serving the catalog
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @brief Formats the cursor of a catalog change
+     */
+    String toCursor(final long seq) {
+        return Long.toString(catalog.getEpoch(), 36) + "." + seq;
+    }
+
+    /**
+     * @brief Parses a cursor
+     *
+     * @return its sequence number or -1 if the cursor is not valid or it was
+     *         issued by a previous instance
+     */
+    long parseCursor(final String cursor) {
+        if (cursor == null) {
+            return -1;
+        }
+
+        final int dot = cursor.indexOf('.');
+        try {
+            if (dot < 0 || Long.parseLong(cursor.substring(0, dot), 36)
+                    != catalog.getEpoch()) {
+                return -1;
+            }
+            final long seq = Long.parseLong(cursor.substring(dot + 1));
+            return seq <= catalog.getSeq() ? seq : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private void handleStreams(final HttpExchange exchange)
+            throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final byte body[];
+            final long seq;
+            synchronized (this) {
+                if (fullSeq != catalog.getSeq()) {
+                    final List<JsonObject> entries =
+                            new ArrayList<JsonObject>();
+                    fullSeq = catalog.getChangesSince(0, entries);
+                    fullBody = toArray(entries).toString()
+                            .getBytes(StandardCharsets.UTF_8);
+                }
+                body = fullBody;
+                seq = fullSeq;
+            }
+            send(exchange, seq, body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleChanges(final HttpExchange exchange)
+            throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final Map<String, String> query;
+            final long wait;
+            try {
+                query = parseQuery(exchange.getRequestURI().getRawQuery());
+                wait = Math.min(maxWait, 1000 * Long.parseLong(
+                        query.getOrDefault("wait", "0")));
+            } catch (IllegalArgumentException iae) {
+                // Malformed escapes or wait
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            long since = parseCursor(query.get("since"));
+            final boolean reset = since < 0;
+            if (reset) {
+                since = 0;
+            }
+
+            if (!reset && wait > 0 && catalog.getSeq() <= since) {
+                waiting.incrementAndGet();
+                try {
+                    catalog.awaitChange(since, wait);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            }
+
+            final List<JsonObject> changed = new ArrayList<JsonObject>();
+            final long seq = catalog.getChangesSince(since, changed);
+            final StringBuilder sb = new StringBuilder();
+            sb.append("{\"cursor\":\"").append(toCursor(seq))
+                    .append("\",\"reset\":").append(reset)
+                    .append(",\"streams\":");
+            send(exchange, seq, toArray(sb, changed).append('}').toString()
+                    .getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @brief Sends a response, or 304 if the client has it already
+     *
+     * @param[in]  exchange  the request
+     * @param[in]  seq       last change included in the body
+     * @param[in]  body      JSON response body
+     */
+    private void send(final HttpExchange exchange, final long seq,
+            final byte body[]) throws IOException {
+        final String etag = "\"" + toCursor(seq) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        final String ifNoneMatch =
+                exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static StringBuilder toArray(final List<JsonObject> entries) {
+        return toArray(new StringBuilder(), entries);
+    }
+
+    /**
+     * @brief Appends the entries, as a JSON array, to a string builder
+     */
+    private static StringBuilder toArray(final StringBuilder sb,
+            final List<JsonObject> entries) {
+        sb.append('[');
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(Catalog.toJson(entries.get(i)));
+        }
+        return sb.append(']');
+    }
+
+    /**
+     * @brief Parses the parameters of a request's query string
+     */
+    static Map<String, String> parseQuery(final String rawQuery) {
+        final Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+
+        for (String param : rawQuery.split("&")) {
+            final int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(decode(param.substring(0, eq)),
+                        decode(param.substring(eq + 1)));
+            }
+        }
+        return params;
+    }
+
+    private static String decode(final String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+}
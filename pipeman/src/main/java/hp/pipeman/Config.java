@@ -0,0 +1,101 @@
+package hp.pipeman;
+
+/**
+ * Access to the Pipeline Manager's runtime settings.
+ * <p>
+ * Settings are read from the environment, following the same approach used
+ * by the encoder image (i.e. E_FPS). The Pipeline Manager settings are
+ * prefixed with "P_". A JVM system property with the same name takes
+ * precedence over the environment variable, which is useful when running
+ * pipeman outside its docker container.
+ */
+final class Config {
+
+    private Config() {
+    }
+
+    /**
+     * @brief Gets a string setting
+     *
+     * @param[in]  name  name of the setting
+     * @param[in]  def   value returned when the setting is not defined
+     * @return the setting value or def if not defined
+     */
+    static String getString(final String name, final String def) {
+        String val = System.getProperty(name);
+        if (val == null || val.isEmpty()) {
+            val = System.getenv(name);
+        }
+        return (val == null || val.isEmpty()) ? def : val.trim();
+    }
+
+    /**
+     * @brief Gets an integer setting
+     *
+     * @param[in]  name  name of the setting
+     * @param[in]  def   value returned when the setting is not defined or it
+     *                   is not a valid number
+     * @return the setting value or def
+     */
+    static int getInt(final String name, final int def) {
+        try {
+            return Integer.parseInt(getString(name, "" + def));
+        } catch (NumberFormatException nfe) {
+            System.out.println("[CONFIG]:Invalid value for " + name +
+                    ", using " + def);
+            return def;
+        }
+    }
+
+    /**
+     * @brief Gets a long integer setting
+     *
+     * @param[in]  name  name of the setting
+     * @param[in]  def   value returned when the setting is not defined or it
+     *                   is not a valid number
+     * @return the setting value or def
+     */
+    static long getLong(final String name, final long def) {
+        try {
+            return Long.parseLong(getString(name, "" + def));
+        } catch (NumberFormatException nfe) {
+            System.out.println("[CONFIG]:Invalid value for " + name +
+                    ", using " + def);
+            return def;
+        }
+    }
+
+    /**
+     * @brief Gets a floating point setting
+     *
+     * @param[in]  name  name of the setting
+     * @param[in]  def   value returned when the setting is not defined or it
+     *                   is not a valid number
+     * @return the setting value or def
+     */
+    static double getDouble(final String name, final double def) {
+        try {
+            return Double.parseDouble(getString(name, "" + def));
+        } catch (NumberFormatException nfe) {
+            System.out.println("[CONFIG]:Invalid value for " + name +
+                    ", using " + def);
+            return def;
+        }
+    }
+
+    /**
+     * @brief Gets a boolean setting
+     *
+     * @param[in]  name  name of the setting
+     * @param[in]  def   value returned when the setting is not defined
+     * @return true if the setting is "true", "yes" or "1"
+     */
+    static boolean getBoolean(final String name, final boolean def) {
+        final String val = getString(name, null);
+        if (val == null) {
+            return def;
+        }
+        return val.equalsIgnoreCase("true") || val.equalsIgnoreCase("yes")
+                || val.equals("1");
+    }
+}
@@ -0,0 +1,327 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ * Content addressed cache of encoded streams.
+ * <p>
+ * The streams are stored by the hash of their image sequence and encoding
+ * settings (see Hasher), one directory per hash within P_CACHE_DIR. The files
+ * are hard linked from (and to) /jobs_out when the cache is in the same file
+ * system, so caching a stream does not take additional space while it is
+ * published. Otherwise, they are copied.
+ * <p>
+ * The cache index (index.json) keeps the size of each cached stream in least
+ * recently used order. When the total size exceeds P_CACHE_MAX_MB, the least
+ * recently used streams are evicted. The index is rewritten (temporary file,
+ * sync and rename) on each change, so it survives a crash; cached directories
+ * not in the index (i.e. partially stored) are deleted on startup.
+ * <p>
+ * The cache is disabled (all the operations do nothing) if P_CACHE_DIR is not
+ * set.
+ * @see Hasher
+ */
+class EncodeCache {
+
+    /** Cache index file name */
+    static final String INDEX_FILE = "index.json";
+
+    /** Directory where the encoded streams are output (the Video Feed) */
+    static final File OUT_DIR = new File(
+            Config.getString("P_JOBS_OUT", "/jobs_out"));
+
+    private static EncodeCache sm_instance = null;
+
+    public static EncodeCache getInstance() {
+        synchronized (EncodeCache.class) {
+            if (sm_instance == null) {
+                final String dir = Config.getString("P_CACHE_DIR", "");
+                sm_instance = new EncodeCache(dir.isEmpty() ? null
+                        : new File(dir),
+                        Config.getLong("P_CACHE_MAX_MB", 10240) << 20);
+            }
+        }
+
+        return sm_instance;
+    }
+
+    /** Cache directory, null if the cache is disabled */
+    private final File cacheDir;
+
+    /** Total size of the cached streams above which they are evicted */
+    private final long maxBytes;
+
+    /** Size of each cached stream by hash, in least recently used order.
+     *  Guarded by this. */
+    private final LinkedHashMap<String, Long> index =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** Total size of the cached streams. Guarded by this. */
+    private long totalBytes = 0;
+
+    /**
+     * EncodeCache constructor
+     *
+     * @param dir       cache directory, null to disable the cache
+     * @param maxBytes  total size of the cached streams above which they are
+     *                  evicted
+     */
+    EncodeCache(final File dir, final long maxBytes) {
+        this.cacheDir = dir;
+        this.maxBytes = maxBytes;
+        if (dir != null) {
+            dir.mkdirs();
+            load();
+            Metrics.registerGauge("encode_cache_streams",
+                    "Encoded streams in the cache.", this::size);
+            Metrics.registerGauge("encode_cache_bytes",
+                    "Total size of the cached encoded streams.",
+                    this::getTotalBytes);
+        }
+    }
+
+    public boolean isEnabled() {
+        return cacheDir != null;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @brief Gets the directory where the Job's stream is output
+     */
+    static File getOutputDir(final Job job) {
+        return new File(OUT_DIR, job.getIn().getName());
+    }
+
+    /**
+     * @brief Copies the cached stream of a Job, if any, into its output
+     *        directory
+     *
+     * @param[in]  job  Job with its content hash already computed
+     * @return true if the stream was cached and it has been output
+     */
+    public boolean fetch(final Job job) {
+        final String hash = job.getContentHash();
+        if (cacheDir == null || hash == null) {
+            return false;
+        }
+
+        final File entry = new File(cacheDir, hash);
+        synchronized (this) {
+            // Marks the entry as recently used
+            if (index.get(hash) == null) {
+                return false;
+            }
+
+            // Linking while holding the lock, so it is not evicted meanwhile
+            final File out = getOutputDir(job);
+            try {
+                linkFiles(entry, out);
+            } catch (IOException ioe) {
+                Log.error("CACHE", "Unable to fetch " + hash + " into " + out,
+                        ioe);
+                deleteDir(out);
+                return false;
+            }
+            saveIndex();
+        }
+
+        return true;
+    }
+
+    /**
+     * @brief Stores the encoded stream of a Job
+     *
+     * Done once the Job has been encoded. Errors are logged, but they do not
+     * fail the Job.
+     *
+     * @param[in]  job  Job with its content hash computed
+     */
+    public void store(final Job job) {
+        final String hash = job.getContentHash();
+        if (cacheDir == null || hash == null) {
+            return;
+        }
+
+        final File entry = new File(cacheDir, hash);
+        synchronized (this) {
+            if (index.containsKey(hash)) {
+                return;
+            }
+
+            final long size;
+            try {
+                deleteDir(entry);
+                size = linkFiles(getOutputDir(job), entry);
+            } catch (IOException ioe) {
+                Log.error("CACHE", "Unable to store JOB #" + job.getId(), ioe);
+                deleteDir(entry);
+                return;
+            }
+
+            index.put(hash, size);
+            totalBytes += size;
+            evict();
+            saveIndex();
+            log("Stored JOB #" + job.getId() + " as " + hash + " (" +
+                    size / 1024 + "KB, " + totalBytes / 1024 + "KB in total)");
+        }
+    }
+
+    /**
+     * @brief Evicts the least recently used streams until the total size is
+     *        within the limit. Must be called holding the lock.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> it =
+                index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> e = it.next();
+            it.remove();
+            totalBytes -= e.getValue();
+            deleteDir(new File(cacheDir, e.getKey()));
+            log("Evicted " + e.getKey());
+        }
+    }
+
+    /**
+     * @brief Links (or copies) the regular files of a directory into another
+     *
+     * @return total size of the files
+     */
+    private static long linkFiles(final File from, final File to)
+            throws IOException {
+        final File files[] = from.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            throw new IOException("No files in " + from);
+        }
+
+        to.mkdirs();
+        long size = 0;
+        for (File f : files) {
+            final File dst = new File(to, f.getName());
+            try {
+                Files.createLink(dst.toPath(), f.toPath());
+            } catch (FileAlreadyExistsException faee) {
+                Files.copy(f.toPath(), dst.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | UnsupportedOperationException e) {
+                // i.e. different file systems
+                Files.copy(f.toPath(), dst.toPath());
+            }
+            size += f.length();
+        }
+        return size;
+    }
+
+    private static void deleteDir(final File dir) {
+        final File files[] = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * @brief Loads the index, discarding the entries whose directory is
+     *        missing and deleting the directories not in the index
+     */
+    private synchronized void load() {
+        final File indexFile = new File(cacheDir, INDEX_FILE);
+        if (indexFile.exists()) {
+            try (InputStream is = new FileInputStream(indexFile)) {
+                for (JsonValue v : Json.createReader(is).readArray()) {
+                    final JsonObject e = v.asJsonObject();
+                    final String hash = e.getString("hash", "");
+                    if (new File(cacheDir, hash).isDirectory()) {
+                        final long size = e.getJsonNumber("size").longValue();
+                        index.put(hash, size);
+                        totalBytes += size;
+                    }
+                }
+            } catch (IOException | JsonException | ClassCastException e) {
+                Log.error("CACHE",
+                        "Unable to load the index, clearing the cache", e);
+                index.clear();
+                totalBytes = 0;
+            }
+        }
+
+        final Set<String> known = new HashSet<String>(index.keySet());
+        final File dirs[] = cacheDir.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!known.contains(dir.getName())) {
+                    deleteDir(dir);
+                }
+            }
+        }
+
+        evict();
+        saveIndex();
+        log("Loaded " + index.size() + " cached streams (" +
+                totalBytes / 1024 + "KB)");
+    }
+
+    /**
+     * @brief Rewrites the index. Must be called holding the lock.
+     */
+    private void saveIndex() {
+        final JsonArrayBuilder array = Json.createArrayBuilder();
+        index.forEach((hash, size) -> array.add(Json.createObjectBuilder()
+                .add("hash", hash)
+                .add("size", size)));
+
+        final File indexFile = new File(cacheDir, INDEX_FILE);
+        final File tmp = new File(cacheDir, INDEX_FILE + ".tmp");
+        try {
+            try (FileOutputStream os = new FileOutputStream(tmp)) {
+                os.write(array.build()
+                        .toString().getBytes(StandardCharsets.UTF_8));
+                os.getFD().sync();
+            }
+
+            try {
+                Files.move(tmp.toPath(), indexFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp.toPath(), indexFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            Log.error("CACHE", ioe);
+        }
+    }
+
+    private void log(final String msg) {
+        Log.log(Log.Level.INFO, "CACHE", msg);
+    }
+}
@@ -0,0 +1,181 @@
+package hp.pipeman;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The x264 parameters a Job is encoded with: the number of threads, the
+ * preset and the tune profile.
+ * <p>
+ * The threads are the share of the encoder's CPUs (see EncoderResources), so
+ * the encoders sharing a host do not oversubscribe it. The preset is chosen
+ * by the work each thread has to do: the pixels of the frames (of all the
+ * renditions of the ABR ladder) times the frames to encode, divided among the
+ * threads. Light Jobs afford a slower preset, which compresses better, while
+ * heavy ones get a faster preset so they do not hold the encoder for long.
+ * Live Jobs get the preset by the pixel rate, so they are encoded in real
+ * time, and the zerolatency tune. Sequences of at most STILL_IMAGE_FPS frames
+ * per second get the stillimage tune.
+ * <p>
+ * Each parameter may be fixed with P_X264_THREADS, P_X264_PRESET and
+ * P_X264_TUNE ("none" for no tune). Instances are immutable.
+ * @see Encoder
+ */
+class EncodeParams {
+
+    /** Pixels of a frame, when the frame format is not known (720p) */
+    private static final long DEFAULT_PIXELS = 1280 * 720;
+
+    /** Height of a frame, when the frame format is not known */
+    private static final int DEFAULT_HEIGHT = 720;
+
+    /** Frame rate up to which the sequences are encoded as still images */
+    private static final int STILL_IMAGE_FPS = 2;
+
+    /** Presets by work (megapixels to encode per thread), in ascending
+     *  order: the first preset whose limit is not exceeded is chosen */
+    private static final String PRESETS[] = {
+            "medium", "fast", "faster", "veryfast", "superfast" };
+    private static final double PRESET_MAX_MPIXELS[] = {
+            2000, 10000, 40000, 150000, Double.MAX_VALUE };
+
+    /** Presets by pixel rate (megapixels per second and thread) of the live
+     *  Jobs, chosen as PRESETS */
+    private static final String LIVE_PRESETS[] = {
+            "veryfast", "superfast", "ultrafast" };
+    private static final double LIVE_PRESET_MAX_MPIXELS[] = {
+            8, 20, Double.MAX_VALUE };
+
+    /** Threads, 0 lets ffmpeg choose */
+    private final int threads;
+
+    private final String preset;
+
+    /** Tune profile, null for none */
+    private final String tune;
+
+    EncodeParams(final int threads, final String preset, final String tune) {
+        this.threads = threads;
+        this.preset = preset;
+        this.tune = tune;
+    }
+
+    /**
+     * @brief Chooses the parameters to encode a Job (or chunk) with
+     *
+     * @param[in]  job      Job to encode
+     * @param[in]  threads  threads available to the encoding (see
+     *                      EncoderResources.getThreads), 0 if unknown
+     */
+    static EncodeParams choose(final Job job, final int threads) {
+        final int t = Config.getInt("P_X264_THREADS", threads);
+        final double mpixels = getFramePixels(job) / 1e6;
+        // Threads sharing the work, assuming ffmpeg uses all the CPUs if
+        // unknown
+        final int workers = t > 0 ? t
+                : Runtime.getRuntime().availableProcessors();
+
+        String preset = Config.getString("P_X264_PRESET", "");
+        if (preset.isEmpty()) {
+            preset = job.isLive()
+                    ? pick(LIVE_PRESETS, LIVE_PRESET_MAX_MPIXELS,
+                            mpixels * job.getFPS() / workers)
+                    : pick(PRESETS, PRESET_MAX_MPIXELS,
+                            mpixels * getFrames(job) / workers);
+        }
+
+        String tune = Config.getString("P_X264_TUNE", "");
+        if (tune.isEmpty()) {
+            tune = job.isLive() ? "zerolatency"
+                    : job.getFPS() <= STILL_IMAGE_FPS ? "stillimage" : null;
+        } else if (tune.equalsIgnoreCase("none")) {
+            tune = null;
+        }
+
+        return new EncodeParams(Math.max(0, t), preset, tune);
+    }
+
+    private static String pick(final String presets[], final double limits[],
+            final double work) {
+        int i = 0;
+        while (work > limits[i]) {
+            i++;
+        }
+        return presets[i];
+    }
+
+    /**
+     * @brief Gets the frames to encode
+     *
+     * All the chunks of a split Job get the same preset, so they are taken
+     * as long as the first ones.
+     */
+    private static int getFrames(final Job job) {
+        if (!job.isChunk()) {
+            return job.getFramesN();
+        }
+        final Job parent = job.getParent();
+        return (parent.getFramesN() + parent.getChunksN() - 1) /
+                Math.max(1, parent.getChunksN());
+    }
+
+    /**
+     * @brief Gets the pixels encoded per frame, adding up all the renditions
+     *        of the ABR ladder
+     */
+    static double getFramePixels(final Job job) {
+        final JpegHeader format = (job.isChunk() ? job.getParent() : job)
+                .getFrameFormat();
+        final double pixels = format == null ? DEFAULT_PIXELS
+                : (double) format.getWidth() * format.getHeight();
+        final int height = format == null ? DEFAULT_HEIGHT
+                : format.getHeight();
+
+        if (job.getRenditions().isEmpty()) {
+            return pixels;
+        }
+
+        // The renditions keep the aspect ratio
+        double total = 0;
+        for (Rendition r : job.getRenditions()) {
+            final double scale = (double) r.getHeight() / height;
+            total += pixels * scale * scale;
+        }
+        return total;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+
+    public String getTune() {
+        return tune;
+    }
+
+    /**
+     * @brief Formats the parameters as the encoding script's arguments
+     *
+     * @return name=value arguments, appended after the mode's arguments
+     */
+    List<String> toArgs() {
+        final List<String> args = new ArrayList<String>();
+        if (threads > 0) {
+            args.add("threads=" + threads);
+        }
+        args.add("preset=" + preset);
+        if (tune != null) {
+            args.add("tune=" + tune);
+        }
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + (threads > 0 ? threads : "auto") +
+                " preset=" + preset + " tune=" + (tune == null ? "none" : tune);
+    }
+}
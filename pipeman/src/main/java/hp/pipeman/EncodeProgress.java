@@ -0,0 +1,129 @@
+package hp.pipeman;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshot of the progress of an ongoing encoding, as reported by ffmpeg in
+ * its status lines, i.e.:
+ * <pre>
+ * frame=  150 fps= 45 q=-1.0 size=N/A time=00:00:29.60 bitrate=N/A speed=5.9x
+ * </pre>
+ * Instances are immutable.
+ */
+class EncodeProgress {
+
+    /** Matches each key=value pair of an ffmpeg status line */
+    private static final Pattern FIELD =
+            Pattern.compile("([a-z_]+)=\\s*(\\S+)");
+
+    /** Number of frames encoded so far */
+    private final long frame;
+
+    /** Encoding rate (frames per second), 0 if unknown */
+    private final double fps;
+
+    /** Encoding speed relative to real time, 0 if unknown */
+    private final double speed;
+
+    /** Output bitrate (kbits/s), 0 if unknown */
+    private final double bitrate;
+
+    /** Time at which the snapshot was taken (ms) */
+    private final long timestamp;
+
+    public EncodeProgress(final long frame, final double fps,
+            final double speed, final double bitrate, final long timestamp) {
+        this.frame = frame;
+        this.fps = fps;
+        this.speed = speed;
+        this.bitrate = bitrate;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @brief Parses an ffmpeg status line
+     *
+     * @param[in]  line  a line output by ffmpeg
+     * @return the progress or null if the line is not a status line
+     */
+    static EncodeProgress parse(final String line) {
+        if (!line.startsWith("frame=")) {
+            return null;
+        }
+
+        long frame = -1;
+        double fps = 0;
+        double speed = 0;
+        double bitrate = 0;
+        final Matcher m = FIELD.matcher(line);
+        while (m.find()) {
+            final String val = m.group(2);
+            switch (m.group(1)) {
+                case "frame":
+                    frame = (long) parseNumber(val, -1);
+                    break;
+                case "fps":
+                    fps = parseNumber(val, 0);
+                    break;
+                case "speed":
+                    speed = parseNumber(val, 0);
+                    break;
+                case "bitrate":
+                    bitrate = parseNumber(val, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (frame < 0) {
+            return null;
+        }
+        return new EncodeProgress(frame, fps, speed, bitrate,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * @brief Parses the leading number of a value (i.e. "5.9x",
+     *        "1024.5kbits/s")
+     */
+    private static double parseNumber(final String val, final double def) {
+        int end = 0;
+        while (end < val.length() && (Character.isDigit(val.charAt(end))
+                || val.charAt(end) == '.')) {
+            end++;
+        }
+        try {
+            return Double.parseDouble(val.substring(0, end));
+        } catch (NumberFormatException nfe) {
+            return def;
+        }
+    }
+
+    public long getFrame() {
+        return frame;
+    }
+
+    public double getFPS() {
+        return fps;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public double getBitrate() {
+        return bitrate;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "frame=" + frame + " fps=" + fps + " speed=" + speed +
+                "x bitrate=" + bitrate + "kbits/s";
+    }
+}
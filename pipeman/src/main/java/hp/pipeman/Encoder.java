@@ -1,260 +1,762 @@
  package hp.pipeman;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
- * The Encoder class maintains a single Job queue for all the Encoder's
- * instances. The PipeMan creates one Encoder instance per each Docker
- * Container Encoder instance that is launched.
+ * An Encoder encodes the Jobs queued in its EncoderPool using a Docker
+ * Container Encoder instance. The EncoderPool creates P_ENCODER_SLOTS Encoder
+ * instances per each container registered.
  * <p>
- * Each Encoder instance has its own thread. Whenever a Job is queued into the
- * Encoder's queue, the first thread that is scheduled for execution, retires
- * the Job from the queue and triggers the encoding process in its associated
- * container. The thread remains blocked waiting for the encoding process to
- * complete, then it queues the Job into the next PipeStep in the pipeline 
- * chain and peeks the next Job to be processed or blocks until being signaled
- * of a new Job to be processed. 
+ * Each Encoder instance has its own thread (a platform or a virtual thread,
+ * see P_THREAD_MODE). Whenever a Job is queued into the pool's queue, the
+ * first thread that is scheduled for execution, retires the Job from the
+ * queue and triggers the encoding process in its associated container. The
+ * thread remains blocked waiting for the encoding process to complete, then
+ * it queues the Job into the next PipeStep in the pipeline chain and peeks
+ * the next Job to be processed or blocks until being signaled of a new Job to
+ * be processed.
+ * <p>
+ * The Encoder that completes the last chunk of a split Job stitches all the
+ * chunks into the final MPEG-DASH stream and queues the parent Job into the
+ * next PipeStep.
+ * <p>
+ * When its container unregisters, the Encoder is retired: it aborts the Job
+ * being encoded, if any, and queues it again into the pool.
+ * <p>
+ * The frames of an archived image sequence (see FrameArchive) are streamed
+ * into the encoding script's standard input, through a dedicated worker
+ * connection or the docker exec's one, instead of being read by the script
+ * from the ingest storage.
+ * <p>
+ * The results of its encodings are recorded in its container's
+ * EncoderHealth, and the Encoder does not take Jobs while the container is
+ * out of rotation. A failed Job is handed back to the pool to be retried
+ * (see EncoderPool.retryJob) and only fails once it runs out of retries.
+ * @see EncoderHealth
+ * @see EncoderPool
  * @see Job
- * @see PipeStep
  * @see PipeMan
  */
-class Encoder extends Thread implements PipeStep {
-    /** List of all encoder instances */
-    private static List<Encoder> instances = new ArrayList<Encoder>();
-
-    /** Queue of pending jobs */
-    private static final Queue<Job> jobs_queue = new ConcurrentLinkedDeque<Job>();
-
-    /** Next step in the pipeline */
-    private static PipeStep nextPipeStep = null;
+class Encoder implements Runnable {
+    /** Pool the encoder retires the jobs from */
+    private final EncoderPool pool;
 
     /** Id of the encoder's instance - this is the doker container id */
     private final String encoderId;
 
+    /** Health of the encoder's container, shared by its instances */
+    private final EncoderHealth health;
+
+    /** Persistent connection with the container's worker agent, null if
+     *  jobs are always launched using docker exec */
+    private final EncoderWorkerClient worker;
+
+    /** Time at which the worker connection is retried after failing (ms) */
+    private long workerRetryTime = 0;
+
+    /** Name of the encoder's thread. Used for logging. */
+    private final String threadName;
+
+    /** Thread running this encoder, null if not started */
+    private volatile Thread thread = null;
+
+    /** Whether the encoder's container unregistered */
+    private volatile boolean retired = false;
+
+    /** Whether the encoder is encoding a job */
+    private volatile boolean busy = false;
+
+    /** Lines of encoder output kept to be logged if the encoding fails */
+    private static final int OUTPUT_TAIL_LINES = 20;
+
+    /** Last lines output by the encoding process (not the progress ones) */
+    private final ArrayDeque<String> outputTail = new ArrayDeque<String>();
+
     /**
      * Encoder constructor
-     * @param encoderId  the docker container id to be associated with this 
+     * @param pool       the pool the encoder retires the jobs from.
+     * @param encoderId  the docker container id to be associated with this
      *                   encoder instance.
+     * @param slot       index of this instance among the ones associated with
+     *                   the same container (see P_ENCODER_SLOTS).
+     * @param health     health of the container, shared by its instances.
      */
-    public Encoder(final String encoderId) {
-        super();
+    public Encoder(final EncoderPool pool, final String encoderId,
+            final int slot, final EncoderHealth health) {
+        this.pool = pool;
         this.encoderId = encoderId;
-        instances.add(this);
+        this.health = health;
+        this.threadName = "ENC-" + encoderId + (slot > 0 ? "-" + slot : "");
+        if (Config.getString("P_ENCODER_MODE", "worker")
+                .equalsIgnoreCase("exec")) {
+            this.worker = null;
+        } else {
+            this.worker = new EncoderWorkerClient(
+                    Config.getString("P_WORKER_HOST", encoderId),
+                    Config.getInt("P_WORKER_PORT", 7000),
+                    Config.getInt("P_WORKER_CONNECT_TIMEOUT_MS", 2000));
+        }
     }
 
     /**
-     * Set the next step in the pipeline for all the encoder instances.
-     * Calling this function in any Encoder instance will set the next step for
-     * all the instances.
-     * @param nextPipeStep   the next step in the pipeline for all the encoders
-     * 
-     * @return the same nextPipeStep passed as argument. 
+     * @brief Starts this encoder's thread
      */
-    @Override
-    public final PipeStep pipeStepSetNext(final PipeStep nextPipeStep) {
-        // This is global to all encoders
-        Encoder.nextPipeStep = nextPipeStep;
-        return nextPipeStep;
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException(threadName + " already started");
+        }
+        thread = Threads.newThread(threadName, this, false);
+        thread.start();
     }
 
     /**
-     * Recursively start the pipeline steps' threads from back to front.
-     * Only one encoder instance will receive this invocation. It is responsible
-     * for starting the threads of all the remaining Encoder's instances.
+     * @brief Interrupts this encoder's thread
      */
-    @Override
-    public void pipeStart() {
-        // Recursively, start the pipeline steps' threads from back to front.
-        if (nextPipeStep != null) {
-            nextPipeStep.pipeStart();
-        }
-        // This is global to all encoders, so start all encoders' threads
-        for (Encoder e: instances) {
-            e.start(); 
+    void interrupt() {
+        final Thread t = thread;
+        if (t != null) {
+            t.interrupt();
         }
     }
 
     /**
-     * Recursively stop the pipeline steps' threads from front to back.
-     * Only one encoder instance will receive this invocation. It is responsible
-     * for stopping the threads of all the remaining Encoder's instances.
+     * @brief Waits for this encoder's thread to terminate
+     *
+     * @throws InterruptedException if interrupted while waiting
      */
-    @Override
-    public void pipeStop() {
-        // Recursively, stop the pipeline steps' threads from front to back.
-        try {
-            // This is global to all encoders, so stop all encoders' threads
-            for (Encoder e: instances) {
-                e.interrupt(); // Interrupt this pipeline step's thread 
-            }
-
-            for (Encoder e: instances) {
-                e.join();      // and wait it to terminate
-            }
-        } catch (InterruptedException ie) {
-            // do nothing
+    void join() throws InterruptedException {
+        final Thread t = thread;
+        if (t != null) {
+            t.join();
         }
+    }
 
-        if (nextPipeStep != null) {
-            nextPipeStep.pipeStop();
-        }
+    /**
+     * @brief Retires the encoder because its container unregistered
+     *
+     * The encoder's thread ends, queuing again the job being encoded, if any.
+     */
+    void retire() {
+        retired = true;
+        interrupt();
     }
 
     /**
-     * Queue the given Job into the Encoder's common Job queue.
-     * Any Encoder instance may receive this call.
-     * 
-     * @param job   the Job to be queued and processed by this step
+     * @brief Gets the id of the encoder's container
      */
-    @Override
-    public void pipeStepQueueJob(final Job job) {
-        synchronized(jobs_queue) {
-            pipeStepLog("Queuing JOB #" + job.getId());
-            jobs_queue.add(job);
-            jobs_queue.notifyAll();
-        }
+    String getEncoderId() {
+        return encoderId;
     }
 
     /**
-     * @brief Wait for the next job to be processed
-     *
-     * The function blocks until a new job is available to be processed.
-     * @return the next job to process or null if the thread have been
-     * interrupted.
-     * 
-     * All encoder instances look for Jobs in the same jobs_queue. The first to
-     * poll the job from the queue, processes it. 
+     * @brief Gets the name of the encoder's thread, used for logging
      */
-    protected Job getNextJob() {
-        Job job = null;
-
-        synchronized(jobs_queue) {
-            // Wait for a Job
-            while((job = jobs_queue.poll()) == null) {
-                pipeStepLog("Waiting for a job");
-                try {
-                    jobs_queue.wait(5000);
-                } catch (InterruptedException ie) {
-                    break;
-                }
-            }
-        }
+    String getThreadName() {
+        return threadName;
+    }
 
-        return job;
+    /**
+     * @brief Whether the encoder is currently encoding a job
+     */
+    boolean isBusy() {
+        return busy;
     }
 
     /**
-     * Thread's run method.
+     * @brief Gets the number of frames between key frames for split jobs
+     */
+    static int getGOPFrames(final Job job) {
+        return Math.max(1,
+                job.getFPS() * Config.getInt("P_GOP_SECONDS", 2));
+    }
+
+    /**
+     * Encoder's task, run by its thread.
      */
     @Override
     public void run() {
         pipeStepLog("Started");
+        try {
+            processJobs();
+        } finally {
+            if (worker != null) {
+                worker.close();
+            }
+            pool.encoderEnded(this);
+            pipeStepLog(retired ? "Retired" : "Ended");
+        }
+    }
+
+    /**
+     * @brief Encodes the queued jobs until the thread is interrupted
+     */
+    private void processJobs() {
         while(!Thread.currentThread().isInterrupted()) {
-            Job curr_job = getNextJob();
+            // Wait while the container is out of rotation
+            if (!health.awaitAvailable(this)) {
+                continue;
+            }
+
+            Job curr_job = pool.takeJob(this);
             if (curr_job == null) {
                 // The thread has been interrupted
+                health.abandoned();
                 continue; 
             }
 
+            if (health.getState() == EncoderHealth.State.OPEN) {
+                // The container went out of rotation while this encoder was
+                // waiting for the job, let another one encode it
+                pool.requeueJob(curr_job);
+                continue;
+            }
+
             // At this point, the worker has a job. Lets start working.
-            pipeStepLog("Processing JOB #" + curr_job.getId());
+            Log.event(Log.Level.DEBUG, threadName, "processing",
+                    curr_job.getId(), -1);
 
             synchronized(curr_job) {
                 curr_job.setStatus(Job.JobStatus.RUNNING);
             }
 
+            // Chunks of a failed job are aborted, not encoded
+            final boolean aborted = curr_job.isChunk() &&
+                    curr_job.getParent().isChunkFailed();
             boolean ret = false;
+            final long startTime = System.nanoTime();
+            busy = true;
             try {
-                ret = doProcessJob(curr_job);
+                ret = !retired && doProcessJob(curr_job);
             } catch (RuntimeException re) {
                 // Some basic error handling so the pipeline is not broken due
                 // to any problem with a particular job or step.
                 ret = false;
-                re.printStackTrace(System.out);
+                Log.error(threadName, re);
+            } finally {
+                busy = false;
             }
 
-            synchronized(curr_job) {
-                if (!ret) {
-                    curr_job.setStatus(Job.JobStatus.ERROR);
-                } else if (nextPipeStep == null) {
-                    curr_job.setStatus(Job.JobStatus.COMPLETED);
+            if (!ret && retired) {
+                // The container is gone, let another encoder do the job
+                health.abandoned();
+                pool.requeueJob(curr_job);
+                return;
+            }
+
+            pool.getMetrics().jobServiced(startTime);
+            final long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+
+            // Failures due to the pipeline stopping do not count
+            if (ret) {
+                health.succeeded();
+            } else if (!aborted && !Thread.currentThread().isInterrupted()) {
+                health.failed();
+                curr_job.encodeFailed(encoderId);
+                if (pool.retryJob(curr_job)) {
+                    Log.event(Log.Level.WARN, threadName, "retrying",
+                            curr_job.getId(), elapsedMs);
+                    continue;
                 }
+            } else {
+                health.abandoned();
             }
 
-            pipeStepLog("Processed JOB #" + curr_job.getId());
-
-            // At this point, this step is completed job. Lets invoke the next.
-            if (nextPipeStep != null) {
-                try {
-                    nextPipeStep.pipeStepQueueJob(curr_job);
-                } catch (RuntimeException re) {
-                    // Some basic error handling so the pipeline is not broken
-                    // due to any problem with a particular job or step.
-                    re.printStackTrace(System.out);
-                    synchronized(curr_job) {
-                        curr_job.setStatus(Job.JobStatus.ERROR);
-                    }
+            pool.getMetrics().jobCompleted(ret);
+            if (curr_job.isChunk()) {
+                completeChunk(curr_job, ret, elapsedMs);
+            } else {
+                completeJob(curr_job, ret, elapsedMs);
+            }
+        }
+    }
+
+    /**
+     * @brief Completes this step's processing of a job
+     *
+     * Sets the job status according to the processing result and queues it
+     * into the next step.
+     *
+     * @param[in,out] job        Job processed by this pipeline step
+     * @param[in]     ret        result of the job processing
+     * @param[in]     elapsedMs  time spent processing the job (ms)
+     */
+    private void completeJob(final Job job, final boolean ret,
+            final long elapsedMs) {
+        synchronized(job) {
+            if (!ret) {
+                job.setStatus(Job.JobStatus.ERROR);
+            } else if (pool.getNextPipeStep() == null) {
+                job.setStatus(Job.JobStatus.COMPLETED);
+            }
+        }
+
+        Log.event(ret ? Log.Level.INFO : Log.Level.WARN, threadName,
+                ret ? "processed" : "failed", job.getId(), elapsedMs);
+
+        // At this point, this step is completed job. Lets invoke the next.
+        final PipeStep nextPipeStep = pool.getNextPipeStep();
+        if (ret) {
+            // Cache the stream, so the same sequence is not encoded again
+            EncodeCache.getInstance().store(job);
+
+            // encode.sh does not delete the piped frames' archive, since it
+            // can not tell whether it got all of them
+            if (job.getArchive() != null) {
+                Hasher.deleteInput(job);
+            }
+        }
+
+        if (!ret) {
+            JobJournal.getInstance().failed(job);
+        } else if (nextPipeStep == null) {
+            JobJournal.getInstance().done(job);
+        } else {
+            JobJournal.getInstance().stepCompleted(job, EncoderPool.STEP_NAME);
+        }
+
+        if (nextPipeStep != null) {
+            try {
+                nextPipeStep.pipeStepQueueJob(job);
+            } catch (RuntimeException re) {
+                // Some basic error handling so the pipeline is not broken
+                // due to any problem with a particular job or step.
+                Log.error(threadName, re);
+                synchronized(job) {
+                    job.setStatus(Job.JobStatus.ERROR);
                 }
+                JobJournal.getInstance().failed(job);
+            }
+        }
+    }
+
+    /**
+     * @brief Completes the processing of a chunk
+     *
+     * If it was the last chunk pending of its parent job, the chunks are
+     * stitched and the parent job is completed.
+     *
+     * @param[in,out] chunk      sub-job processed by this encoder
+     * @param[in]     ret        result of the chunk processing
+     * @param[in]     elapsedMs  time spent encoding the chunk (ms)
+     */
+    private void completeChunk(final Job chunk, final boolean ret,
+            final long elapsedMs) {
+        final Job parent = chunk.getParent();
+        synchronized(chunk) {
+            chunk.setStatus(ret ? Job.JobStatus.COMPLETED
+                    : Job.JobStatus.ERROR);
+        }
+        pipeStepLog("Processed chunk " + (chunk.getChunkIndex() + 1) + "/" +
+                parent.getChunksN() + " of JOB #" + parent.getId() + " (" +
+                elapsedMs + "ms)");
+        if (ret) {
+            JobJournal.getInstance().chunkCompleted(chunk);
+        }
+
+        if (!parent.chunkCompleted(ret)) {
+            return; // There are chunks pending
+        }
+
+        boolean stitched = false;
+        final long startTime = System.nanoTime();
+        if (!parent.isChunkFailed()) {
+            pipeStepLog("Stitching JOB #" + parent.getId());
+            try {
+                stitched = runEncodeScript(parent,
+                        List.of(parent.getIn().getName(),
+                                "" + parent.getFPS(), "stitch"), null);
+            } catch (RuntimeException re) {
+                Log.error(threadName, re);
             }
         }
 
-        pipeStepLog("Ended");
+        if (!stitched) {
+            deleteChunks(parent);
+        }
+        completeJob(parent, stitched,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * @brief Deletes the chunks encoded for a failed job
+     *
+     * encode.sh deletes them once stitched, so they would be left in the
+     * job's output directory otherwise.
+     */
+    private void deleteChunks(final Job job) {
+        final File dir = new File(EncodeCache.getOutputDir(job), "chunks");
+        final File files[] = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            f.delete();
+        }
+        if (!dir.delete()) {
+            Log.log(Log.Level.WARN, threadName, "Unable to delete {}", dir);
+        }
     }
 
     /**
-     * @brief Logs message to standard output prefixing the pipe step name
+     * @brief Logs message prefixing the encoder's thread name
      * 
      * @param[in]  msg    log message
      */
-    protected void pipeStepLog(final String msg) {
-        System.out.println("[ENC-" + encoderId + "]:" + msg);
+    void pipeStepLog(final String msg) {
+        Log.log(Log.Level.INFO, threadName, msg);
     }
 
+    /**
+     * @brief Encodes the job (or chunk) in the associated container
+     */
     protected boolean doProcessJob(Job job) {
+        final List<String> args = new ArrayList<String>();
+        args.add(job.getIn().getName());
+        args.add("" + job.getFPS());
+
+        if (job.isChunk()) {
+            if (job.getParent().isChunkFailed()) {
+                // Do not waste time, the parent job failed anyway
+                return false;
+            }
+            args.add("chunk");
+            args.add("" + job.getChunkIndex());
+            args.add("" + job.getFirstFrame());
+            args.add("" + job.getFramesN());
+            args.add("" + getGOPFrames(job));
+        } else if (job.isLive()) {
+            // Encode the frames as they arrive. Recovered jobs start over,
+            // since their frames may be still arriving.
+            args.add("live");
+            args.add("" + getGOPFrames(job));
+            args.add("" + job.getFramesN());
+            args.add("" + Config.getInt("P_LIVE_IDLE_SECONDS", 60));
+        } else if (job.isRecovered() || job.getEncodeFailures() > 0) {
+            // Resume from the output left by the interrupted (or failed)
+            // encoding
+            args.add("resume");
+            args.add("" + getGOPFrames(job));
+            args.add("" + job.getFramesN());
+        } else {
+            // Fixed GOP, so the encoding may be resumed if interrupted
+            args.add("full");
+            args.add("" + getGOPFrames(job));
+        }
+
+        // All the renditions are encoded from a single decoding
+        if (!job.getRenditions().isEmpty()) {
+            args.add(Rendition.toArg(job.getRenditions()));
+        }
+
+        // The encoding uses its share of the container's CPUs
+        final EncodeParams params = EncodeParams.choose(job,
+                pool.getThreads(encoderId));
+        args.addAll(params.toArgs());
+
+        // Archived frames are streamed into the encoding's standard input,
+        // only the chunk's ones for a chunk
+        FrameArchive frames;
+        try {
+            frames = FrameArchive.of(job);
+        } catch (IOException ioe) {
+            Log.error(threadName, "Unable to read the archive of JOB #" +
+                    job.getId(), ioe);
+            return false;
+        }
+        if (frames != null) {
+            if (job.isChunk()) {
+                frames = frames.range(job.getFirstFrame(), job.getFramesN());
+            }
+            args.add("input=pipe");
+        }
+        pipeStepLog("Encoding JOB #" + job.getId() + " with " + params);
+
+        final long startTime = System.nanoTime();
+        final boolean ret = runEncodeScript(job, args, frames);
+        if (ret) {
+            encodeCompleted(job, params, startTime);
+        }
+        return ret;
+    }
+
+    /**
+     * @brief Records the throughput achieved with the chosen parameters
+     *
+     * The frames encoded are the last ones reported by ffmpeg, since a
+     * resumed encoding only encodes the frames left.
+     */
+    private void encodeCompleted(final Job job, final EncodeParams params,
+            final long startTime) {
+        final long elapsedMs = Math.max(1,
+                (System.nanoTime() - startTime) / 1000000);
+        final EncodeProgress p = job.getProgress();
+        final long frames = p != null && p.getFrame() > 0 ? p.getFrame()
+                : job.getFramesN();
+        if (frames <= 0) {
+            return;
+        }
+
+        pipeStepLog("JOB #" + job.getId() + " encoded " + frames +
+                " frames in " + elapsedMs + "ms (" +
+                String.format("%.1f", frames * 1000.0 / elapsedMs) +
+                " fps, " + params + ")");
+        if (!job.isLive()) {
+            // Live jobs are encoded as fast as their frames arrive
+            Metrics.encodeCompleted(params, frames, elapsedMs);
+        }
+    }
+
+    /**
+     * @brief Checks whether the container is able to encode again, before it
+     *        is taken back into rotation (see EncoderHealth)
+     *
+     * The container is healthy if its worker agent replies a ping or, since
+     * the encodings fall back to docker exec, if docker exec runs a command
+     * in it within P_ENCODER_PROBE_TIMEOUT_MS (10000ms by default).
+     *
+     * @return true if the container is healthy
+     */
+    boolean probe() {
+        if (worker != null && worker.ping()) {
+            workerRetryTime = 0;
+            return true;
+        }
+
+        try {
+            final Process pr = new ProcessBuilder("docker", "exec", encoderId,
+                    "true").redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (!pr.waitFor(Config.getLong("P_ENCODER_PROBE_TIMEOUT_MS",
+                    10000), TimeUnit.MILLISECONDS)) {
+                pr.destroyForcibly();
+                pipeStepLog("Probe timed out");
+                return false;
+            }
+            return pr.exitValue() == 0;
+        } catch (IOException ioe) {
+            pipeStepLog("Probe failed: " + ioe.getMessage());
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @brief Runs the encoding script in the associated container
+     *
+     * The script is requested through the container's worker agent. If the
+     * worker is not reachable, the script is launched using docker exec and
+     * the worker connection is not retried until P_WORKER_RETRY_MS elapses.
+     *
+     * @param[in,out] job     Job the script is run for
+     * @param[in]     args    encoding script arguments
+     * @param[in]     frames  frames fed to the script's standard input, null
+     *                        if it reads them from the ingest storage
+     * @return true if the script succeeded
+     */
+    private boolean runEncodeScript(final Job job, final List<String> args,
+            final FrameArchive frames) {
+        synchronized(outputTail) {
+            outputTail.clear();
+        }
+        final boolean ret = runEncodeScriptWith(job, args, frames);
+        if (!ret && !retired) {
+            logOutputTail(job);
+        }
+        return ret;
+    }
+
+    /**
+     * @brief Runs the encoding script, with the worker agent if reachable
+     *
+     * The jobs whose arguments the worker does not accept (i.e. the ingest
+     * directory name has spaces) are always run with docker exec, which does
+     * not go through a shell.
+     */
+    private boolean runEncodeScriptWith(final Job job,
+            final List<String> args, final FrameArchive frames) {
+        if (worker != null && !EncoderWorkerClient.accepts(args)) {
+            pipeStepLog("JOB #" + job.getId() + " arguments not accepted " +
+                    "by the worker, falling back to docker exec");
+        } else if (worker != null &&
+                System.currentTimeMillis() >= workerRetryTime) {
+            boolean connected = false;
+            try {
+                worker.connect();
+                connected = true;
+            } catch (IOException ioe) {
+                pipeStepLog("Worker not available (" + ioe.getMessage() +
+                        "), falling back to docker exec");
+                workerRetryTime = System.currentTimeMillis() +
+                        Config.getLong("P_WORKER_RETRY_MS", 30000);
+            }
+
+            if (connected) {
+                return encodeWithWorker(job, args, frames);
+            }
+        }
+
+        return encodeWithDocker(job, args, frames);
+    }
+
+    /**
+     * @brief Encodes the job through the container's worker agent
+     */
+    private boolean encodeWithWorker(final Job job, final List<String> args,
+            final FrameArchive frames) {
+        pipeStepLog((frames == null ? "Submitting JOB #" : "Streaming JOB #")
+                + job.getId() + " to worker");
+        try {
+            final int ret = worker.encode(job, args, frames,
+                    line -> onEncoderOutput(job, "[WORKER]:", line));
+            return ret == 0;
+        } catch (InterruptedException ie) {
+            pipeStepLog("Encoding of JOB #" + job.getId() + " interrupted");
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException ioe) {
+            Log.error(threadName, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * @brief Handles a line output by the encoding process
+     *
+     * If it is an ffmpeg status line, publishes the progress on the job.
+     * Live jobs are published as soon as their stream can be played. Other
+     * lines are only logged at debug level, but the last ones are kept to be
+     * logged if the encoding fails.
+     */
+    private void onEncoderOutput(final Job job, final String prefix,
+            final String line) {
+        final EncodeProgress progress = EncodeProgress.parse(line.trim());
+        if (progress != null) {
+            job.setProgress(progress);
+            if (job.isLive()) {
+                // Publish the stream once its manifest is written
+                Publisher.getInstance().publishLive(job);
+            }
+            if (Log.isEnabled(Log.Level.INFO)) {
+                Log.log(Log.Level.INFO, threadName, "{}JOB #{} {}", prefix,
+                        job.getId(), String.format("%.1f%% ETA %ds %s",
+                                job.getPercentComplete(), job.getETA(),
+                                progress));
+            }
+        } else {
+            Log.log(Log.Level.DEBUG, threadName, "{}{}", prefix, line);
+            synchronized(outputTail) {
+                if (outputTail.size() == OUTPUT_TAIL_LINES) {
+                    outputTail.removeFirst();
+                }
+                outputTail.addLast(prefix + line);
+            }
+        }
+    }
+
+    /**
+     * @brief Logs the last lines output by a failed encoding
+     */
+    private void logOutputTail(final Job job) {
+        final StringBuilder sb = new StringBuilder();
+        synchronized(outputTail) {
+            for (String line : outputTail) {
+                sb.append('\n').append(line);
+            }
+            outputTail.clear();
+        }
+        Log.log(Log.Level.WARN, threadName,
+                "Encoding of JOB #{} failed, last output:{}", job.getId(), sb);
+    }
+
+    /**
+     * @brief Encodes the job by launching the encoding script with docker exec
+     *
+     * The frames, if any, are written into the standard input of the docker
+     * CLI, which forwards it to the script. Unlike a socket, the process' pipe
+     * is not a channel the frames can be transferred into without copying.
+     */
+    private boolean encodeWithDocker(final Job job, final List<String> args,
+            final FrameArchive frames) {
         // Launch an encoder docker container.
         // TODO: improve this by using a docker API library such as 
         // Spotify's docker-client.
         // Ref.: https://github.com/spotify/docker-client/
-        // Alternatively, implement some communication mechanism between the
-        // Pipeline Manager and the Encoder, in order to avoid using docker for
-        // start the decoding and retrieve progress status.
         int ret = 0;
         try {
-            final String docker_cmd[] = {
+            final List<String> docker_cmd = new ArrayList<String>(List.of(
                     "docker", "exec",
                     "-i", encoderId,
-                    "/encode.sh", job.getIn().getName(), "" + job.getFPS()
-            };
+                    "/encode.sh"));
+            docker_cmd.addAll(args);
 
-            pipeStepLog("Invoking docker: '" + Arrays.toString(docker_cmd) +
-                    "'");
+            pipeStepLog("Invoking docker: '" + docker_cmd + "'");
 
             ProcessBuilder prb = new ProcessBuilder();
             prb.command(docker_cmd);
             prb.redirectErrorStream(true);
             final Process pr = prb.start();
-            
-            // Lets get the output from the docker container
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(pr.getInputStream()));
-            ret = pr.waitFor();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                pipeStepLog("[DOCKED]:" + line);
+
+            // Lets get the output from the docker container while it runs.
+            // Otherwise, the process blocks once the pipe buffer is full.
+            final Thread drainer = Threads.newThread(threadName + "-output",
+                    () -> {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(pr.getInputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        onEncoderOutput(job, "[DOCKED]:", line);
+                    }
+                } catch (IOException ioe) {
+                    Log.error(threadName, ioe);
+                }
+            }, true);
+            drainer.start();
+
+            final Thread feeder = frames == null ? null : Threads.newThread(
+                    threadName + "-input", () -> {
+                try (WritableByteChannel in = Channels.newChannel(
+                        pr.getOutputStream())) {
+                    frames.transferTo(in);
+                } catch (IOException ioe) {
+                    // i.e. the script failed before reading all the frames
+                    Log.log(Log.Level.DEBUG, threadName,
+                            "Unable to stream the frames of JOB #{}: {}",
+                            job.getId(), ioe.toString());
+                }
+            }, true);
+            if (feeder != null) {
+                feeder.start();
+            }
+
+            try {
+                ret = pr.waitFor();
+                drainer.join();
+                if (feeder != null) {
+                    feeder.join();
+                }
+            } catch (InterruptedException ie) {
+                pr.destroyForcibly();
+                throw ie;
             }
 
         } catch (InterruptedException ie) {
-            ie.printStackTrace(System.out);
+            // Retired or stopping, not an encoding failure
+            pipeStepLog("Encoding of JOB #" + job.getId() + " interrupted");
+            Thread.currentThread().interrupt();
             return false;
         } catch (IOException ioe) {
-            ioe.printStackTrace(System.out);
+            Log.error(threadName, ioe);
             return false;
         }
 
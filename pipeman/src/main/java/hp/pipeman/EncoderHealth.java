@@ -0,0 +1,282 @@
+package hp.pipeman;
+
+/**
+ * Health of an encoder container, shared by its Encoder instances (slots). It
+ * tracks the results of the container's encodings and acts as a circuit
+ * breaker, so a container that is gone or broken (i.e. docker exec fails
+ * right away) does not fail the Jobs in the queue one after the other:
+ *  - CLOSED: the container is healthy and its Encoders take Jobs.
+ *  - OPEN: the container failed P_ENCODER_TRIP_FAILURES consecutive
+ *    encodings (3 by default), or at least P_ENCODER_TRIP_RATE of its last
+ *    P_ENCODER_HEALTH_WINDOW ones (0.5 of 20 by default). Its Encoders do not
+ *    take Jobs for P_ENCODER_OPEN_MS (10000ms by default). Then one of them
+ *    probes the container (see Encoder.probe).
+ *  - HALF_OPEN: the probe succeeded. A single Encoder takes a Job, as a
+ *    trial: if it succeeds the container is CLOSED again, otherwise it is
+ *    OPEN again.
+ * <p>
+ * Each time the container is opened again without having been closed (a
+ * failed probe or trial), the time it stays open is doubled, up to
+ * P_ENCODER_OPEN_MAX_MS (300000ms by default).
+ * @see Encoder
+ * @see EncoderPool
+ */
+class EncoderHealth {
+
+    public static enum State {
+        CLOSED,      /**< Healthy, taking Jobs                */
+        OPEN,        /**< Out of rotation                     */
+        HALF_OPEN    /**< Probed, trying a single Job         */
+    };
+
+    /** Id of the encoder container */
+    private final String encoderId;
+
+    /** Consecutive failures that open the circuit */
+    private final int tripFailures;
+
+    /** Failure rate, within the window, that opens the circuit */
+    private final double tripRate;
+
+    /** Time the circuit stays open the first time (ms) */
+    private final long openMs;
+
+    /** Maximum time the circuit stays open (ms) */
+    private final long openMaxMs;
+
+    /** Results of the last encodings (true if failed), guarded by this */
+    private final boolean window[];
+
+    /** Next position in window and number of results in it, guarded by this */
+    private int windowPos = 0;
+    private int windowN = 0;
+
+    /** Failures within window, guarded by this */
+    private int windowFailures = 0;
+
+    /** Consecutive failures, guarded by this */
+    private int consecutiveFailures = 0;
+
+    /** Current state, guarded by this */
+    private State state = State.CLOSED;
+
+    /** Time the circuit stays open the next time it opens (ms), doubled on
+     *  each failed probe or trial. Guarded by this. */
+    private long nextOpenMs;
+
+    /** Time the container is probed (ms since the epoch), guarded by this */
+    private long probeTime = 0;
+
+    /** Whether an Encoder is probing the container or trying a Job, guarded
+     *  by this */
+    private boolean probing = false;
+
+    /** Times the circuit has been opened, guarded by this */
+    private int trips = 0;
+
+    EncoderHealth(final String encoderId) {
+        this.encoderId = encoderId;
+        this.tripFailures = Math.max(1,
+                Config.getInt("P_ENCODER_TRIP_FAILURES", 3));
+        this.tripRate = Config.getDouble("P_ENCODER_TRIP_RATE", 0.5);
+        this.window = new boolean[Math.max(1,
+                Config.getInt("P_ENCODER_HEALTH_WINDOW", 20))];
+        this.openMs = Math.max(0, Config.getLong("P_ENCODER_OPEN_MS", 10000));
+        this.openMaxMs = Math.max(openMs,
+                Config.getLong("P_ENCODER_OPEN_MAX_MS", 300000));
+        this.nextOpenMs = openMs;
+    }
+
+    /**
+     * @brief Waits until the container may take a Job
+     *
+     * While the circuit is open, the calling Encoder waits. Once the open
+     * time elapses, the first Encoder to call probes the container. When
+     * half open, only the first Encoder to call takes a Job.
+     *
+     * @param[in]  encoder  the Encoder willing to take a Job
+     * @return true if the Encoder may take a Job, false if it has been
+     *         interrupted
+     */
+    boolean awaitAvailable(final Encoder encoder) {
+        try {
+            while (true) {
+                synchronized(this) {
+                    if (!awaitTurn()) {
+                        return true;
+                    }
+                }
+
+                // Probe without holding the lock, the others keep waiting
+                boolean ok = false;
+                try {
+                    ok = encoder.probe();
+                } finally {
+                    probed(ok);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @brief Waits for the calling Encoder's turn. Must be called holding
+     *        the lock.
+     *
+     * @return true if the Encoder must probe the container, false if it may
+     *         take a Job
+     */
+    private boolean awaitTurn() throws InterruptedException {
+        while (true) {
+            if (state == State.CLOSED) {
+                return false;
+            }
+            if (!probing) {
+                if (state == State.HALF_OPEN) {
+                    // The trial Job, until recorded
+                    probing = true;
+                    return false;
+                }
+                final long left = probeTime - System.currentTimeMillis();
+                if (left <= 0) {
+                    probing = true;
+                    return true;
+                }
+                wait(left);
+            } else {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * @brief Records the result of a probe
+     */
+    private synchronized void probed(final boolean ok) {
+        probing = false;
+        if (ok) {
+            Log.log(Log.Level.INFO, "HEALTH", "Encoder {} probed, trying a job",
+                    encoderId);
+            state = State.HALF_OPEN;
+        } else {
+            open("probe failed");
+        }
+        notifyAll();
+    }
+
+    /**
+     * @brief Records a successful encoding
+     */
+    synchronized void succeeded() {
+        record(false);
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            Log.log(Log.Level.INFO, "HEALTH", "Encoder {} is healthy again",
+                    encoderId);
+            state = State.CLOSED;
+            probing = false;
+            nextOpenMs = openMs;
+            // Start over, so the failures before the container was opened
+            // do not open it again
+            windowPos = 0;
+            windowN = 0;
+            windowFailures = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @brief Records a failed encoding, opening the circuit if the container
+     *        looks broken
+     */
+    synchronized void failed() {
+        record(true);
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            open("trial job failed");
+            notifyAll();
+        } else if (state == State.CLOSED) {
+            if (consecutiveFailures >= tripFailures) {
+                open(consecutiveFailures + " consecutive failures");
+            } else if (windowN == window.length &&
+                    getFailureRate() >= tripRate) {
+                open(String.format("%.0f%% of the last %d jobs failed",
+                        100 * getFailureRate(), windowN));
+            }
+        }
+    }
+
+    /** Must be called holding the lock */
+    private void record(final boolean failure) {
+        if (windowN == window.length) {
+            if (window[windowPos]) {
+                windowFailures--;
+            }
+        } else {
+            windowN++;
+        }
+        window[windowPos] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowPos = (windowPos + 1) % window.length;
+    }
+
+    /** Must be called holding the lock */
+    private void open(final String reason) {
+        state = State.OPEN;
+        trips++;
+        probeTime = System.currentTimeMillis() + nextOpenMs;
+        Log.log(Log.Level.WARN, "HEALTH",
+                "Encoder {} out of rotation for {}ms: {}", encoderId,
+                nextOpenMs, reason);
+        nextOpenMs = Math.min(openMaxMs, 2 * Math.max(1, nextOpenMs));
+    }
+
+    /**
+     * @brief Gives up the trial Job taken by an Encoder, if any, without a
+     *        result (i.e. the Encoder has been retired or interrupted)
+     */
+    synchronized void abandoned() {
+        if (state == State.HALF_OPEN && probing) {
+            probing = false;
+            notifyAll();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @brief Whether the container is taking Jobs
+     */
+    synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @brief Gets the fraction of the last encodings that failed
+     */
+    synchronized double getFailureRate() {
+        return windowN == 0 ? 0 : (double) windowFailures / windowN;
+    }
+
+    synchronized int getTrips() {
+        return trips;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return encoderId + ": " + state + " consecutive_failures=" +
+                consecutiveFailures + " failure_rate=" +
+                String.format("%.2f", getFailureRate()) + " trips=" + trips;
+    }
+}
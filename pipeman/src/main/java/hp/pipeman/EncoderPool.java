@@ -0,0 +1,762 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The EncoderPool is the PipeStep that encodes the Jobs. It maintains a single
+ * Job queue for all the Encoder instances, which retire the Jobs from it.
+ * <p>
+ * The pool follows the encoders registry (/encoders) at runtime: each encoder
+ * container registers itself by creating a file named after its id, and
+ * deletes it on termination (see encoder/register.sh). The registry is
+ * rescanned every P_ENCODERS_SCAN_MS (1000ms by default):
+ *  - When a container registers, P_ENCODER_SLOTS Encoder instances are
+ *    created and started for it. The CPUs it declares (see
+ *    EncoderResources) are shared among its slots and those of the other
+ *    containers on the same host, which sets the threads of each encoding.
+ *  - When a container unregisters, its Encoder instances are retired. Idle
+ *    ones just end. The ones encoding a Job abort it and queue it again, so
+ *    it is encoded by another container.
+ * <p>
+ * The health of each container is tracked by an EncoderHealth, which takes
+ * the container out of rotation after repeated failures and probes it before
+ * taking it back. A failed encoding is retried up to P_ENCODE_RETRIES times
+ * (2 by default), each one after a backoff that starts at P_RETRY_BACKOFF_MS
+ * (1000ms by default) and doubles up to P_RETRY_BACKOFF_MAX_MS (60000ms by
+ * default). A retried Job is encoded by a container it has not failed on,
+ * unless there is none in rotation. Retried Jobs go back into the queue even
+ * if it is full, so the Encoders never block waiting for room. Live Jobs and
+ * the stitching of split Jobs are not retried.
+ * <p>
+ * Long Jobs (see P_SPLIT_MIN_FRAMES) are split into GOP aligned chunks when
+ * queued, so several encoders work on them in parallel. Each chunk is queued
+ * as a sub-job.
+ * <p>
+ * The order in which the queued Jobs are encoded is defined by the
+ * P_SCHED_POLICY setting (fifo, priority or sjf).
+ * <p>
+ * The pool is instrumented as the ENCODE step (see PipeStepMetrics), and its
+ * size and utilization are published as gauges and through JMX.
+ * @see Encoder
+ * @see SchedulingPolicy
+ */
+class EncoderPool implements PipeStep, Runnable, EncoderPoolMXBean {
+
+    /** Name of the encoding step, used for the metrics and the journal */
+    static final String STEP_NAME = "ENCODE";
+
+    /** Number of jobs retired between two queue wait statistics logs */
+    private static final int STATS_PERIOD =
+            Config.getInt("P_SCHED_STATS_EVERY", 100);
+
+    /** Directory where the encoder containers register themselves */
+    private final File registryDir;
+
+    /** Number of Encoder instances per encoder container */
+    private final int slots;
+
+    /** Time between two scans of the registry (ms) */
+    private final long scanPeriod;
+
+    /** Queue of pending jobs, ordered according to P_SCHED_POLICY and
+     *  bounded to P_QUEUE_CAPACITY_ENCODE jobs */
+    private final SchedulingQueue jobs_queue = new SchedulingQueue(
+            SchedulingPolicy.create(Config.getString("P_SCHED_POLICY", "fifo"),
+                    Config.getDouble("P_SCHED_AGING", -1)),
+            BaseThreadPipeStep.getQueueCapacity(STEP_NAME));
+
+    /** Instrumentation of the encoding step */
+    private final PipeStepMetrics metrics = new PipeStepMetrics(STEP_NAME,
+            jobs_queue::size, jobs_queue.getWaitStats());
+
+    /** Next step in the pipeline */
+    private volatile PipeStep nextPipeStep = null;
+
+    /** Encoder instances of each registered container. Guarded by this. */
+    private final Map<String, List<Encoder>> containers =
+            new HashMap<String, List<Encoder>>();
+
+    /** CPU resources of each registered container. Guarded by this. */
+    private final Map<String, EncoderResources> resources =
+            new HashMap<String, EncoderResources>();
+
+    /** Encoder instances whose thread is running, including the retired ones
+     *  that are still aborting their job */
+    private final List<Encoder> running = new CopyOnWriteArrayList<Encoder>();
+
+    /** Health of each registered container */
+    private final Map<String, EncoderHealth> health =
+            new ConcurrentHashMap<String, EncoderHealth>();
+
+    /** Maximum retries of a failed encoding */
+    private final int maxRetries;
+
+    /** Backoff before the first retry, doubled on each one (ms) */
+    private final long retryBackoff;
+
+    /** Maximum backoff before a retry (ms) */
+    private final long retryBackoffMax;
+
+    /** Queues the failed Jobs again once their backoff elapses */
+    private final ScheduledExecutorService retries =
+            Executors.newSingleThreadScheduledExecutor(
+                    r -> Threads.newThread("RETRY", r, true));
+
+    /** Failed Jobs waiting for their backoff to elapse */
+    private final AtomicInteger retriesPending = new AtomicInteger();
+
+    /** Whether the pipeline has been started. Guarded by this. */
+    private boolean started = false;
+
+    /** Thread following the registry, null if not started */
+    private Thread thread = null;
+
+    /**
+     * EncoderPool constructor
+     * @param registryDir  directory where the encoder containers register
+     * @param slots        number of Encoder instances per container
+     */
+    public EncoderPool(final File registryDir, final int slots) {
+        this.registryDir = registryDir;
+        this.slots = Math.max(1, slots);
+        this.scanPeriod = Math.max(100,
+                Config.getLong("P_ENCODERS_SCAN_MS", 1000));
+        this.maxRetries = Math.max(0, Config.getInt("P_ENCODE_RETRIES", 2));
+        this.retryBackoff = Math.max(0,
+                Config.getLong("P_RETRY_BACKOFF_MS", 1000));
+        this.retryBackoffMax = Math.max(retryBackoff,
+                Config.getLong("P_RETRY_BACKOFF_MAX_MS", 60000));
+
+        Metrics.register(metrics);
+        Metrics.registerMBean("hp.pipeman:type=EncoderPool", this);
+        Metrics.registerGauge("encoder_containers",
+                "Encoder containers registered.", this::getContainersN);
+        Metrics.registerGauge("encoder_pool_size",
+                "Encoders available to encode jobs.", this::getSize);
+        Metrics.registerGauge("encoder_pool_busy",
+                "Encoders encoding a job.", this::getBusy);
+        Metrics.registerGauge("encoder_pool_utilization",
+                "Fraction of the encoders encoding a job.",
+                this::getUtilization);
+        Metrics.registerGauge("encoder_containers_unhealthy",
+                "Encoder containers out of rotation or being probed.",
+                this::getUnhealthyN);
+        Metrics.registerGauge("encoder_retries_pending",
+                "Failed jobs waiting to be retried.", retriesPending::get);
+    }
+
+    @Override
+    public final PipeStep pipeStepSetNext(final PipeStep nextPipeStep) {
+        this.nextPipeStep = nextPipeStep;
+        return nextPipeStep;
+    }
+
+    /**
+     * @brief Gets the instrumentation of the encoding step
+     */
+    PipeStepMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @brief Gets the step the encoded jobs are queued into
+     */
+    PipeStep getNextPipeStep() {
+        return nextPipeStep;
+    }
+
+    /**
+     * Recursively start the pipeline steps' threads from back to front.
+     * Starts the Encoders of the containers already registered and the
+     * thread following the registry.
+     */
+    @Override
+    public void pipeStart() {
+        if (nextPipeStep != null) {
+            nextPipeStep.pipeStart();
+        }
+
+        synchronized(this) {
+            started = true;
+            for (List<Encoder> encoders : containers.values()) {
+                for (Encoder e : encoders) {
+                    startEncoder(e);
+                }
+            }
+        }
+        scan();
+
+        thread = Threads.newThread("POOL", this, true);
+        thread.start();
+    }
+
+    /**
+     * Recursively stop the pipeline steps' threads from front to back.
+     * Stops the thread following the registry and all the Encoders.
+     */
+    @Override
+    public void pipeStop() {
+        try {
+            if (thread != null) {
+                thread.interrupt();
+                thread.join();
+            }
+
+            synchronized(this) {
+                started = false;
+                containers.clear();
+                resources.clear();
+                health.clear();
+            }
+
+            // The Jobs waiting to be retried are left in the journal
+            retries.shutdownNow();
+
+            // Interrupt all the encoders' threads
+            for (Encoder e : running) {
+                e.interrupt();
+            }
+            // and wait them to terminate
+            for (Encoder e : running) {
+                e.join();
+            }
+        } catch (InterruptedException ie) {
+            // do nothing
+        }
+
+        if (nextPipeStep != null) {
+            nextPipeStep.pipeStop();
+        }
+    }
+
+    /**
+     * Queue the given Job into the pool's Job queue. It blocks while the
+     * queue is full, so the previous step is throttled by the encoders.
+     * Jobs already failed (i.e. rejected by the Preflight) are not encoded,
+     * they are forwarded straight to the next step.
+     *
+     * @param job   the Job to be queued and processed by this step
+     * @throws IllegalStateException if the calling thread is interrupted
+     *         while waiting for room in the queue
+     */
+    @Override
+    public void pipeStepQueueJob(final Job job) {
+        if (job.isFailed()) {
+            Log.event(Log.Level.DEBUG, STEP_NAME, "skipped, failed",
+                    job.getId(), -1);
+            if (nextPipeStep != null) {
+                nextPipeStep.pipeStepQueueJob(job);
+            }
+            return;
+        }
+
+        final int chunkFrames = getChunkFrames(job);
+        if (chunkFrames > 0) {
+            final Job chunks[] = job.split(chunkFrames);
+            synchronized(job) {
+                job.setStatus(Job.JobStatus.RUNNING);
+            }
+            JobJournal.getInstance().split(job, chunkFrames);
+            poolLog("Queuing JOB #" + job.getId() + " split into " +
+                    chunks.length + " chunks of " + chunkFrames + " frames");
+            for (Job chunk : chunks) {
+                putJob(chunk);
+            }
+            return;
+        }
+
+        Log.event(Log.Level.DEBUG, STEP_NAME, "queued", job.getId(), -1);
+        putJob(job);
+    }
+
+    /**
+     * @brief Queues a job recovered from the JobJournal
+     *
+     * If the job was split, it is split again into the same chunks and only
+     * the chunks not yet encoded are queued. If all of them were encoded (the
+     * stitching was pending), the last one is encoded again, so the encoder
+     * completing it stitches the job. Jobs not split are queued as they are;
+     * the Encoder resumes them from their partial output, if any.
+     *
+     * @param[in,out] job          the recovered job
+     * @param[in]     chunkFrames  frames of each chunk, 0 if not split
+     * @param[in]     doneChunks   indexes of the chunks already encoded
+     */
+    void resumeJob(final Job job, final int chunkFrames,
+            final Set<Integer> doneChunks) {
+        if (chunkFrames <= 0) {
+            poolLog("Resuming JOB #" + job.getId());
+            putJob(job);
+            return;
+        }
+
+        final Job chunks[] = job.split(chunkFrames);
+        synchronized(job) {
+            job.setStatus(Job.JobStatus.RUNNING);
+        }
+        final List<Job> pending = pendingChunks(job, chunks, doneChunks);
+
+        poolLog("Resuming JOB #" + job.getId() + ": " + pending.size() +
+                " of " + chunks.length + " chunks pending");
+        for (Job chunk : pending) {
+            putJob(chunk);
+        }
+    }
+
+    /**
+     * @brief Selects the chunks of a recovered job to encode again
+     *
+     * The chunks already encoded are recorded as completed, so the job is
+     * stitched when the pending ones complete. If all of them were encoded,
+     * the last one is pending anyway.
+     *
+     * @param[in,out] job         the recovered job, just split
+     * @param[in]     chunks      its chunks
+     * @param[in]     doneChunks  indexes of the chunks already encoded
+     * @return the chunks to queue, never empty
+     */
+    static List<Job> pendingChunks(final Job job, final Job chunks[],
+            final Set<Integer> doneChunks) {
+        final List<Job> pending = new ArrayList<Job>();
+        for (Job chunk : chunks) {
+            if (!doneChunks.contains(chunk.getChunkIndex())) {
+                pending.add(chunk);
+            }
+        }
+        // At least one chunk is queued, so the job gets stitched
+        if (pending.isEmpty()) {
+            pending.add(chunks[chunks.length - 1]);
+        }
+        for (int i = 0; i < chunks.length - pending.size(); i++) {
+            job.chunkCompleted(true);
+        }
+        return pending;
+    }
+
+    /**
+     * @brief Queues again a job whose encoding has been aborted
+     *
+     * The job is queued even if the queue is full, since it was already
+     * admitted and the Encoders must not block waiting for room.
+     *
+     * @param[in,out] job  the aborted job (or chunk)
+     */
+    void requeueJob(final Job job) {
+        synchronized(job) {
+            job.setStatus(Job.JobStatus.STOPPED);
+            job.setProgress(null);
+        }
+        poolLog("Requeuing JOB #" + job.getId());
+        jobs_queue.requeue(job);
+    }
+
+    /**
+     * @brief Queues again a job whose encoding failed, once its backoff
+     *        elapses
+     *
+     * The backoff is P_RETRY_BACKOFF_MS, doubled on each failure of the job
+     * up to P_RETRY_BACKOFF_MAX_MS.
+     *
+     * @param[in,out] job  the failed job (or chunk), with the failure already
+     *                     recorded (see Job.encodeFailed)
+     * @return true if the job will be retried, false if it must fail
+     */
+    boolean retryJob(final Job job) {
+        final int failures = job.getEncodeFailures();
+        if (failures > maxRetries || job.isLive() ||
+                (job.isChunk() && job.getParent().isChunkFailed())) {
+            return false;
+        }
+
+        final long backoff = Math.min(retryBackoffMax,
+                retryBackoff << Math.min(failures - 1, 30));
+        synchronized(job) {
+            job.setStatus(Job.JobStatus.STOPPED);
+            job.setProgress(null);
+        }
+        Log.log(Log.Level.WARN, "POOL", "Retrying JOB #{} in {}ms (retry {})",
+                job.getId(), backoff, failures + "/" + maxRetries);
+        retriesPending.incrementAndGet();
+        try {
+            retries.schedule(() -> {
+                retriesPending.decrementAndGet();
+                jobs_queue.requeue(job);
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // The pool is stopping
+            retriesPending.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @brief Whether an Encoder may take a job
+     *
+     * Jobs are not retried on a container they failed on, unless all the
+     * containers in rotation have failed them.
+     *
+     * @param[in]  encoderId  container of the Encoder
+     * @param[in]  job        a queued job
+     */
+    private boolean isEligible(final String encoderId, final Job job) {
+        if (job.getEncodeFailures() == 0 || !job.hasFailedOn(encoderId)) {
+            return true;
+        }
+        for (Map.Entry<String, EncoderHealth> e : health.entrySet()) {
+            if (e.getValue().isClosed() && !job.hasFailedOn(e.getKey())) {
+                return false; // Let the other container retry it
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @brief Queues a job, waiting while the queue is full
+     */
+    private void putJob(final Job job) {
+        try {
+            if (!jobs_queue.offer(job)) {
+                Log.event(Log.Level.INFO, STEP_NAME, "waiting, queue full",
+                        job.getId(), -1);
+                jobs_queue.put(job);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted queuing JOB #" +
+                    job.getId(), ie);
+        }
+    }
+
+    /**
+     * @brief Gets the number of frames of each chunk the job is split into
+     *
+     * Jobs with at least P_SPLIT_MIN_FRAMES frames are split, so each encoder
+     * gets one chunk, but no chunk is shorter than P_SPLIT_CHUNK_MIN_FRAMES.
+     * The chunk length is rounded up to a multiple of the GOP size. Live jobs
+     * are not split, since their frames are still arriving.
+     * @return the chunk length or 0 if the job must not be split
+     */
+    private int getChunkFrames(final Job job) {
+        final int framesN = job.getFramesN();
+        final int minFrames = Config.getInt("P_SPLIT_MIN_FRAMES", 2000);
+        final int encodersN = getSize();
+        if (job.isChunk() || job.isLive() || minFrames <= 0
+                || framesN < minFrames
+                || encodersN < 2) {
+            return 0;
+        }
+
+        final int gop = Encoder.getGOPFrames(job);
+        final int minChunk = Math.max(gop,
+                Config.getInt("P_SPLIT_CHUNK_MIN_FRAMES", 500));
+        final int chunksN = Math.min(encodersN,
+                Math.max(1, framesN / minChunk));
+        if (chunksN < 2) {
+            return 0;
+        }
+
+        int chunkFrames = (framesN + chunksN - 1) / chunksN;
+        chunkFrames = ((chunkFrames + gop - 1) / gop) * gop;
+        return chunkFrames;
+    }
+
+    /**
+     * @brief Wait for the next job to be encoded
+     *
+     * All encoder instances look for Jobs in the same queue. The first to
+     * poll the job from the queue, processes it. Encoders skip the retried
+     * jobs that failed on their container (see isEligible).
+     * @param[in]  encoder  the Encoder asking for the job, used for logging
+     * @return the next job to process or null if the thread have been
+     * interrupted.
+     */
+    Job takeJob(final Encoder encoder) {
+        final String encoderId = encoder.getEncoderId();
+        Job job = jobs_queue.poll(j -> isEligible(encoderId, j));
+        if (job == null) {
+            Log.log(Log.Level.DEBUG, encoder.getThreadName(),
+                    "Waiting for a job");
+            try {
+                job = jobs_queue.take(j -> isEligible(encoderId, j),
+                        scanPeriod);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        if (STATS_PERIOD > 0 &&
+                jobs_queue.getWaitStats().getCount() % STATS_PERIOD == 0) {
+            poolLog("Queue wait (ms) [" + jobs_queue.getPolicy().getName() +
+                    "]: " + jobs_queue.getWaitStats());
+        }
+
+        return job;
+    }
+
+    /**
+     * Thread's run method. Rescans the registry periodically.
+     */
+    @Override
+    public void run() {
+        poolLog("Following " + registryDir);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(scanPeriod);
+            } catch (InterruptedException ie) {
+                break;
+            }
+
+            try {
+                scan();
+            } catch (RuntimeException re) {
+                // Keep following the registry
+                Log.error("POOL", re);
+            }
+        }
+        poolLog("Ended");
+    }
+
+    /**
+     * @brief Adds the Encoders of the new containers in the registry and
+     *        retires the ones of the containers no longer in it
+     */
+    synchronized void scan() {
+        final File files[] = registryDir.listFiles();
+        if (files == null) {
+            // The registry is not available, keep the current encoders
+            return;
+        }
+
+        final Set<String> ids = new HashSet<String>();
+        for (File f : files) {
+            // Hidden files are registrations being written
+            if (!f.getName().startsWith(".")) {
+                ids.add(f.getName());
+            }
+        }
+
+        boolean changed = false;
+        for (String id : ids) {
+            if (!containers.containsKey(id)) {
+                addContainer(id);
+                changed = true;
+            }
+        }
+
+        for (String id : new ArrayList<String>(containers.keySet())) {
+            if (!ids.contains(id)) {
+                removeContainer(id);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            poolLog("Pool: " + this);
+        }
+    }
+
+    /**
+     * @brief Creates (and starts if the pipeline is running) the Encoders of
+     *        a container. Must be called holding the pool's lock.
+     */
+    private void addContainer(final String id) {
+        final EncoderResources res =
+                EncoderResources.read(new File(registryDir, id));
+        poolLog("Encoder container " + id + " registered (" + res + ")");
+        resources.put(id, res);
+        final EncoderHealth h = new EncoderHealth(id);
+        health.put(id, h);
+        final List<Encoder> encoders = new ArrayList<Encoder>(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            final Encoder e = new Encoder(this, id, slot, h);
+            encoders.add(e);
+            if (started) {
+                startEncoder(e);
+            }
+        }
+        containers.put(id, encoders);
+    }
+
+    /**
+     * @brief Retires the Encoders of a container. Must be called holding the
+     *        pool's lock.
+     */
+    private void removeContainer(final String id) {
+        poolLog("Encoder container " + id + " unregistered");
+        resources.remove(id);
+        health.remove(id);
+        for (Encoder e : containers.remove(id)) {
+            e.retire();
+        }
+    }
+
+    /**
+     * @brief Gets the threads each encoding of a container may use, sharing
+     *        the CPUs of the container and its host among their slots
+     *
+     * @param[in]  id  container id
+     * @return the number of threads, 0 if the resources are unknown
+     */
+    synchronized int getThreads(final String id) {
+        final EncoderResources res = resources.get(id);
+        if (res == null || !res.isKnown()) {
+            return 0;
+        }
+
+        int hostSlots = 0;
+        if (res.getHostId() != null) {
+            for (EncoderResources r : resources.values()) {
+                if (res.getHostId().equals(r.getHostId())) {
+                    hostSlots += slots;
+                }
+            }
+        }
+        return res.getThreads(slots, hostSlots);
+    }
+
+    /** Must be called holding the pool's lock */
+    private void startEncoder(final Encoder e) {
+        running.add(e);
+        e.start();
+    }
+
+    /**
+     * @brief Notifies that the thread of an Encoder has ended
+     */
+    void encoderEnded(final Encoder e) {
+        running.remove(e);
+    }
+
+    /**
+     * @brief Gets the number of registered encoder containers
+     */
+    @Override
+    public synchronized int getContainersN() {
+        return containers.size();
+    }
+
+    /**
+     * @brief Gets the number of Encoders available to encode jobs (not
+     *        retired, nor out of rotation)
+     */
+    @Override
+    public synchronized int getSize() {
+        int n = 0;
+        for (Map.Entry<String, List<Encoder>> e : containers.entrySet()) {
+            final EncoderHealth h = health.get(e.getKey());
+            if (h == null || h.isClosed()) {
+                n += e.getValue().size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @brief Gets the number of encoder containers out of rotation or being
+     *        probed
+     */
+    @Override
+    public int getUnhealthyN() {
+        int n = 0;
+        for (EncoderHealth h : health.values()) {
+            if (!h.isClosed()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @brief Gets the health of each encoder container
+     */
+    @Override
+    public List<String> getEncodersHealth() {
+        final List<String> list = new ArrayList<String>();
+        for (EncoderHealth h : health.values()) {
+            list.add(h.toString());
+        }
+        return list;
+    }
+
+    /**
+     * @brief Gets the number of Encoders currently encoding a job
+     */
+    @Override
+    public int getBusy() {
+        int n = 0;
+        for (Encoder e : running) {
+            if (e.isBusy()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @brief Gets the fraction of the Encoders currently encoding a job
+     *
+     * @return a value between 0 and 1, or 0 if there are no Encoders
+     */
+    @Override
+    public double getUtilization() {
+        final int size = getSize();
+        return size == 0 ? 0 : Math.min(1.0, (double) getBusy() / size);
+    }
+
+    /**
+     * @brief Gets the number of jobs waiting in the pool's queue
+     */
+    @Override
+    public int getQueueSize() {
+        return jobs_queue.size();
+    }
+
+    /**
+     * @brief Gets the statistics of the time the Jobs waited in the pool's
+     *        queue (ms)
+     */
+    public Histogram getQueueWaitStats() {
+        return jobs_queue.getWaitStats();
+    }
+
+    /**
+     * @brief Gets the name of the pool's queue scheduling policy
+     */
+    @Override
+    public String getSchedulingPolicyName() {
+        return jobs_queue.getPolicy().getName();
+    }
+
+    @Override
+    public String toString() {
+        return "containers=" + getContainersN() + " unhealthy=" +
+                getUnhealthyN() + " encoders=" + getSize() +
+                " busy=" + getBusy() + " utilization=" +
+                String.format("%.2f", getUtilization()) + " queued=" +
+                getQueueSize();
+    }
+
+    /**
+     * @brief Logs message to standard output prefixing the pool name
+     *
+     * @param[in]  msg    log message
+     */
+    private void poolLog(final String msg) {
+        Log.log(Log.Level.INFO, "POOL", msg);
+    }
+}
@@ -0,0 +1,27 @@
+package hp.pipeman;
+
+import java.util.List;
+
+/**
+ * Management interface of the EncoderPool, so its size and utilization can be
+ * monitored through JMX.
+ * @see EncoderPool
+ */
+public interface EncoderPoolMXBean {
+
+    public int getContainersN();
+
+    public int getSize();
+
+    public int getUnhealthyN();
+
+    public List<String> getEncodersHealth();
+
+    public int getBusy();
+
+    public double getUtilization();
+
+    public int getQueueSize();
+
+    public String getSchedulingPolicyName();
+}
@@ -0,0 +1,123 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * CPU resources of an encoder container, as written into its registration
+ * file by encoder/register.sh:
+ * <pre>
+ * cpus=2.5          CPUs the container may use (its cgroup CPU quota)
+ * host=&lt;boot id&gt;    identifies the host, shared by its containers
+ * host_cpus=16      CPUs of the host
+ * </pre>
+ * Containers registered by an older register.sh (an empty file) have
+ * unknown resources, so ffmpeg chooses its own thread count for them.
+ * Instances are immutable.
+ * @see EncoderPool
+ * @see EncodeParams
+ */
+class EncoderResources {
+
+    /** Resources of a container that did not declare them */
+    static final EncoderResources UNKNOWN = new EncoderResources(0, null, 0);
+
+    /** CPUs the container may use, 0 if unknown */
+    private final double cpus;
+
+    /** Id of the container's host, null if unknown */
+    private final String hostId;
+
+    /** CPUs of the host, 0 if unknown */
+    private final int hostCpus;
+
+    EncoderResources(final double cpus, final String hostId,
+            final int hostCpus) {
+        this.cpus = cpus;
+        this.hostId = hostId;
+        this.hostCpus = hostCpus;
+    }
+
+    /**
+     * @brief Reads the resources from a container's registration file
+     *
+     * @param[in]  file  registration file
+     * @return the resources, UNKNOWN if the file does not declare them
+     */
+    static EncoderResources read(final File file) {
+        final Properties props = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            props.load(is);
+        } catch (IOException ioe) {
+            Log.error("POOL", ioe);
+            return UNKNOWN;
+        }
+
+        try {
+            final double cpus = Double.parseDouble(
+                    props.getProperty("cpus", "0").trim());
+            final int hostCpus = Integer.parseInt(
+                    props.getProperty("host_cpus", "0").trim());
+            final String hostId = props.getProperty("host", "").trim();
+            if (cpus <= 0) {
+                return UNKNOWN;
+            }
+            return new EncoderResources(cpus,
+                    hostId.isEmpty() ? null : hostId, hostCpus);
+        } catch (NumberFormatException nfe) {
+            Log.log(Log.Level.WARN, "POOL", "Invalid resources in {}: {}",
+                    file, nfe.getMessage());
+            return UNKNOWN;
+        }
+    }
+
+    public boolean isKnown() {
+        return cpus > 0;
+    }
+
+    public double getCpus() {
+        return cpus;
+    }
+
+    public String getHostId() {
+        return hostId;
+    }
+
+    public int getHostCpus() {
+        return hostCpus;
+    }
+
+    /**
+     * @brief Gets the threads each encoding of the container may use
+     *
+     * The container's CPUs are shared by its slots, and the host's CPUs by
+     * the slots of all the containers on the host, so the encodings running
+     * at the same time do not oversubscribe the CPUs.
+     *
+     * @param[in]  slots      concurrent encodings of the container
+     * @param[in]  hostSlots  concurrent encodings of all the containers on
+     *                        the same host
+     * @return the number of threads (at least 1), 0 if unknown
+     */
+    int getThreads(final int slots, final int hostSlots) {
+        if (!isKnown()) {
+            return 0;
+        }
+
+        double share = cpus / Math.max(1, slots);
+        if (hostCpus > 0 && hostSlots > 0) {
+            share = Math.min(share, (double) hostCpus / hostSlots);
+        }
+        return Math.max(1, (int) Math.floor(share));
+    }
+
+    @Override
+    public String toString() {
+        return isKnown() ? cpus + " CPUs" + (hostId == null ? "" : " on " +
+                hostId.substring(0, Math.min(8, hostId.length())) + " (" +
+                hostCpus + " CPUs)") : "unknown resources";
+    }
+}
@@ -0,0 +1,360 @@
+package hp.pipeman;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Client side of the encoder worker protocol.
+ * <p>
+ * Each encoder container runs a worker agent (encoder/worker.sh) that accepts
+ * encoding requests over a persistent TCP connection, so a job does not
+ * require launching the docker CLI and `docker exec`. The protocol is line
+ * based:
+ * <pre>
+ *   Requests:   SUBMIT &lt;job_id&gt; &lt;dir_name&gt; &lt;frame_rate&gt; [args]
+ *               STREAM &lt;job_id&gt; &lt;dir_name&gt; &lt;frame_rate&gt; [args]
+ *               CANCEL &lt;job_id&gt;
+ *               PING
+ *   Responses:  PROGRESS &lt;job_id&gt; &lt;text&gt;
+ *               RESULT &lt;job_id&gt; &lt;exit_code&gt;
+ *               PONG
+ *               ERROR &lt;text&gt;
+ * </pre>
+ * The arguments are separated by spaces and the worker passes them to the
+ * encoding script as they are, so they may only contain the characters the
+ * worker accepts (see accepts()).
+ * <p>
+ * A STREAM request is followed by the Job's frames, which are fed to the
+ * encoding's standard input until the connection is shut down for output.
+ * Such connection serves that Job only, the worker closes it once the Job
+ * ends. The frames are written by FileChannel.transferTo into the socket,
+ * so the kernel sends them without copying them through pipeman's memory.
+ * <p>
+ * An EncoderWorkerClient instance keeps a single connection with its worker
+ * and it is intended to be used from the owner Encoder's thread only.
+ * @see Encoder
+ */
+class EncoderWorkerClient {
+
+    /** Read timeout used to check for the thread interruption (ms) */
+    private static final int POLL_TIMEOUT = 1000;
+
+    /** Directory names accepted by the worker */
+    private static final Pattern DIR_NAME =
+            Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    /** Encoding script arguments accepted by the worker */
+    private static final Pattern ARG = Pattern.compile("[A-Za-z0-9._,:=+/-]+");
+
+    /** Worker agent host name */
+    private final String host;
+
+    /** Worker agent port */
+    private final int port;
+
+    /** Connection timeout (ms) */
+    private final int connectTimeout;
+
+    private Socket socket = null;
+    private InputStream in = null;
+    private OutputStream out = null;
+
+    /** Bytes of the line being received */
+    private final ByteArrayOutputStream lineBuf = new ByteArrayOutputStream();
+
+    public EncoderWorkerClient(final String host, final int port,
+            final int connectTimeout) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @brief Opens the connection with the worker, if not already opened
+     *
+     * @throws IOException if the worker is not reachable
+     */
+    public void connect() throws IOException {
+        if (socket != null) {
+            return;
+        }
+
+        // A channel, so the frames can be transferred into it
+        Socket s = SocketChannel.open().socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), connectTimeout);
+            s.setSoTimeout(POLL_TIMEOUT);
+            s.setTcpNoDelay(true);
+            in = new BufferedInputStream(s.getInputStream());
+            out = s.getOutputStream();
+            socket = s;
+        } catch (IOException ioe) {
+            s.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @brief Checks whether the worker is alive
+     *
+     * @return true if the worker replied the ping
+     */
+    public boolean ping() {
+        try {
+            connect();
+            send("PING");
+            final long deadline = System.currentTimeMillis() + connectTimeout;
+            while (System.currentTimeMillis() < deadline) {
+                String line = readLine();
+                if ("PONG".equals(line)) {
+                    return true;
+                }
+            }
+        } catch (IOException ioe) {
+            // fall through
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * @brief Checks whether the worker accepts the given arguments
+     *
+     * The worker rejects the requests whose arguments could be split or
+     * expanded by its shell, i.e. ingest directories named with spaces or
+     * quotes. Such jobs must be encoded by other means.
+     * @param[in]  args  encoding script arguments (dir_name, frame_rate and
+     *                   optional arguments)
+     * @return true if the arguments can be sent to the worker
+     */
+    static boolean accepts(final List<String> args) {
+        if (args.isEmpty() || !DIR_NAME.matcher(args.get(0)).matches()) {
+            return false;
+        }
+        for (String arg : args) {
+            if (!ARG.matcher(arg).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @brief Encodes a job through the worker
+     *
+     * Blocks until the worker reports the job's result. If the calling thread
+     * is interrupted meanwhile, the job is cancelled.
+     * @param[in]  job       job to encode
+     * @param[in]  args      encoding script arguments (dir_name, frame_rate
+     *                       and optional arguments)
+     * @param[in]  progress  receives each progress line reported by the worker
+     * @return the encoding process exit code
+     * @throws IOException if the connection fails. The connection is closed,
+     *         so the worker aborts the job.
+     * @throws InterruptedException if the calling thread has been interrupted
+     */
+    public int encode(final Job job, final List<String> args,
+            final Consumer<String> progress)
+            throws IOException, InterruptedException {
+        return encode(job, args, null, progress);
+    }
+
+    /**
+     * @brief Encodes a job through the worker, feeding it the given frames
+     *
+     * The frames are streamed by a separate thread, while the calling one
+     * handles the worker's responses. The connection is closed once the job
+     * ends, and it is opened again for the next one.
+     * @param[in]  job       job to encode
+     * @param[in]  args      encoding script arguments (dir_name, frame_rate
+     *                       and optional arguments)
+     * @param[in]  frames    frames fed to the encoding's standard input, null
+     *                       if it reads them from the ingest storage
+     * @param[in]  progress  receives each progress line reported by the worker
+     * @return the encoding process exit code
+     * @throws IOException if the connection fails or the frames can not be
+     *         streamed. The connection is closed, so the worker aborts the
+     *         job.
+     * @throws IllegalArgumentException if the worker does not accept the
+     *         arguments
+     * @throws InterruptedException if the calling thread has been interrupted
+     */
+    public int encode(final Job job, final List<String> args,
+            final FrameArchive frames, final Consumer<String> progress)
+            throws IOException, InterruptedException {
+        if (!accepts(args)) {
+            throw new IllegalArgumentException(
+                    "Arguments not accepted by the worker: " + args);
+        }
+        final String id = "" + job.getId();
+        final Feeder feeder = frames == null ? null : new Feeder(frames);
+        try {
+            connect();
+            send((feeder == null ? "SUBMIT " : "STREAM ") + id + " " +
+                    String.join(" ", args));
+            if (feeder != null) {
+                feeder.start(id, socket.getChannel());
+            }
+
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    if (feeder == null) {
+                        send("CANCEL " + id);
+                    }
+                    close();
+                    throw new InterruptedException("Job #" + id +
+                            " cancelled");
+                }
+
+                final String line = readLine();
+                if (line == null) {
+                    continue; // timeout
+                }
+
+                final String msg[] = line.split(" ", 3);
+                if (msg.length >= 3 && msg[1].equals(id)) {
+                    if (msg[0].equals("PROGRESS")) {
+                        progress.accept(msg[2]);
+                    } else if (msg[0].equals("RESULT")) {
+                        final int ret = Integer.parseInt(msg[2].trim());
+                        if (feeder != null) {
+                            close();
+                            feeder.check(ret);
+                        }
+                        return ret;
+                    }
+                } else if (msg[0].equals("ERROR")) {
+                    throw new IOException("Worker error: " + line);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            close();
+            if (Thread.currentThread().isInterrupted()) {
+                // The channel was closed by the interruption
+                throw new InterruptedException("Job #" + id + " cancelled");
+            }
+            throw (e instanceof IOException) ? (IOException) e
+                    : new IOException("Invalid worker response", e);
+        } finally {
+            if (feeder != null) {
+                // Closing the connection ends the feeder, if still running
+                close();
+                feeder.join();
+            }
+        }
+    }
+
+    /** Streams the frames of a STREAM request into the connection */
+    private static final class Feeder implements Runnable {
+        private final FrameArchive frames;
+        private SocketChannel channel = null;
+        private Thread thread = null;
+
+        /** Why the frames could not be streamed, null if they were */
+        private volatile IOException error = null;
+
+        Feeder(final FrameArchive frames) {
+            this.frames = frames;
+        }
+
+        void start(final String id, final SocketChannel channel) {
+            this.channel = channel;
+            thread = Threads.newThread("FEED-" + id, this, true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                frames.transferTo(channel);
+                // The end of the frames
+                channel.shutdownOutput();
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+        }
+
+        /**
+         * @brief Checks that all the frames were streamed, if the encoding
+         *        succeeded
+         */
+        void check(final int ret) throws IOException {
+            join();
+            if (ret == 0 && error != null) {
+                throw new IOException("Unable to stream the frames", error);
+            }
+        }
+
+        void join() {
+            if (thread == null) {
+                return;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @brief Closes the connection with the worker
+     */
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // do nothing
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+        lineBuf.reset();
+    }
+
+    private void send(final String msg) throws IOException {
+        out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * @brief Reads a line from the worker
+     *
+     * A partially received line is kept until the next call, so a read
+     * timeout does not lose data.
+     * @return the line or null if no complete line arrived within the read
+     *         timeout
+     * @throws IOException if the connection has been closed or failed
+     */
+    private String readLine() throws IOException {
+        try {
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    final String line = lineBuf.toString(
+                            StandardCharsets.UTF_8);
+                    lineBuf.reset();
+                    return line;
+                }
+                lineBuf.write(c);
+            }
+        } catch (SocketTimeoutException ste) {
+            return null;
+        }
+
+        throw new IOException("Connection closed by the worker");
+    }
+}
@@ -0,0 +1,580 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of the frames of an image sequence uploaded as a single archive
+ * (frames.tar or frames.zip) next to its job description file, instead of
+ * one file per frame.
+ * <p>
+ * The archive is never extracted: its headers are parsed to find where the
+ * data of each frame lies within the archive file, so the frames are read in
+ * place (memory-mapped by the Preflight, hashed by the Hasher) and streamed
+ * to the encoders with FileChannel.transferTo, which the kernel copies
+ * without going through pipeman's memory when the target is a socket. The
+ * frames are the entries with the frame file extension, in entry name
+ * order. Hidden entries (i.e. the AppleDouble files macOS adds to zip
+ * archives) are skipped.
+ * <p>
+ * Supported formats:
+ *  - tar: ustar, with the GNU and pax long names. Compressed tarballs are
+ *    not supported, JPEG frames do not compress anyway.
+ *  - zip: the frames must be stored (zip -0). Compressed entries are listed,
+ *    but the Preflight rejects them. ZIP64 archives are not supported.
+ * <p>
+ * An archive that is still being written can not be indexed, so it has no
+ * frames until it is complete.
+ * <p>
+ * Instances are immutable.
+ * @see Ingestor
+ */
+class FrameArchive {
+
+    /** Names of the archive files, within the image sequence directory */
+    static final String TAR_FILE = "frames.tar";
+    static final String ZIP_FILE = "frames.zip";
+
+    private static final int TAR_BLOCK = 512;
+
+    private static final int ZIP_EOCD_SIG = 0x06054b50;
+    private static final int ZIP_CEN_SIG = 0x02014b50;
+    private static final int ZIP_LOC_SIG = 0x04034b50;
+    private static final int ZIP_EOCD_SIZE = 22;
+    private static final int ZIP_CEN_SIZE = 46;
+    private static final int ZIP_LOC_SIZE = 30;
+    private static final int ZIP_MAX_COMMENT = 0xFFFF;
+
+    /** A frame within the archive */
+    private static final class Entry {
+        final String name;
+
+        /** Position of its data within the archive file */
+        final long offset;
+
+        /** Length of its data */
+        final long size;
+
+        /** Whether its data is the frame as it is (not compressed) */
+        final boolean stored;
+
+        Entry(final String name, final long offset, final long size,
+                final boolean stored) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.stored = stored;
+        }
+    }
+
+    private final File file;
+
+    /** The frames, in name order */
+    private final Entry frames[];
+
+    private FrameArchive(final File file, final Entry frames[]) {
+        this.file = file;
+        this.frames = frames;
+    }
+
+    /**
+     * @brief Finds the archive of an image sequence directory
+     *
+     * @param[in]  dir  image sequence directory
+     * @return the archive file or null if the frames are not archived
+     */
+    static File find(final File dir) {
+        for (String name : new String[] { TAR_FILE, ZIP_FILE }) {
+            final File f = new File(dir, name);
+            if (f.isFile()) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief Checks whether a file name corresponds to a frame archive
+     */
+    static boolean isArchiveFile(final String name) {
+        return name.equals(TAR_FILE) || name.equals(ZIP_FILE);
+    }
+
+    /**
+     * @brief Gets the archive of a Job's image sequence, indexing it the
+     *        first time
+     *
+     * @param[in,out] job  Job whose index is cached
+     * @return the archive or null if the frames are not archived
+     * @throws IOException if the archive can not be indexed
+     */
+    static FrameArchive of(final Job job) throws IOException {
+        FrameArchive archive = job.getArchive();
+        if (archive == null) {
+            final File f = find(job.getIn());
+            if (f == null) {
+                return null;
+            }
+            archive = open(f);
+            job.setArchive(archive);
+        }
+        return archive;
+    }
+
+    /**
+     * @brief Indexes the frames of an archive
+     *
+     * @param[in]  file  tar or zip archive
+     * @return the index
+     * @throws IOException if the archive can not be read, it is not complete
+     *         or its format is not supported
+     */
+    static FrameArchive open(final File file) throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            if (file.getName().endsWith(".zip")) {
+                indexZip(ch, entries);
+            } else {
+                indexTar(ch, entries);
+            }
+        }
+
+        final Entry frames[] = entries.stream()
+                .filter(e -> isFrameEntry(e.name))
+                .sorted(Comparator.comparing((Entry e) -> e.name))
+                .toArray(Entry[]::new);
+        return new FrameArchive(file, frames);
+    }
+
+    private static boolean isFrameEntry(final String name) {
+        final String base = name.substring(name.lastIndexOf('/') + 1);
+        return !base.startsWith(".") && Ingestor.isFrameFile(base);
+    }
+
+    /**
+     * @brief Gets the archive file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @brief Gets the number of frames
+     */
+    int size() {
+        return frames.length;
+    }
+
+    /**
+     * @brief Gets the entry name of a frame
+     */
+    String getName(final int i) {
+        return frames[i].name;
+    }
+
+    /**
+     * @brief Gets the length of a frame
+     */
+    long getSize(final int i) {
+        return frames[i].size;
+    }
+
+    /**
+     * @brief Gets the position of a frame within the archive file
+     */
+    long getOffset(final int i) {
+        return frames[i].offset;
+    }
+
+    /**
+     * @brief Whether a frame is stored as it is, so it can be read in place
+     */
+    boolean isStored(final int i) {
+        return frames[i].stored;
+    }
+
+    /**
+     * @brief Gets a range of the frames, i.e. the frames of a chunk
+     *
+     * @param[in]  from  index of the first frame
+     * @param[in]  n     number of frames, the range ends at the last one
+     */
+    FrameArchive range(final int from, final int n) {
+        final int start = Math.max(0, Math.min(from, frames.length));
+        final int end = (int) Math.min(frames.length, (long) start + n);
+        return new FrameArchive(file, Arrays.copyOfRange(frames, start, end));
+    }
+
+    /**
+     * @brief Gets the frames but the given ones, i.e. the rejected ones
+     *
+     * @param[in]  names  entry names of the frames to leave out
+     */
+    FrameArchive without(final Set<String> names) {
+        return new FrameArchive(file, Arrays.stream(frames)
+                .filter(e -> !names.contains(e.name))
+                .toArray(Entry[]::new));
+    }
+
+    /**
+     * @brief Opens the archive file for reading the frames
+     */
+    FileChannel openChannel() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * @brief Parses the JPEG header of a frame, memory-mapping it
+     *
+     * @param[in]  ch  channel of the archive file (see openChannel)
+     * @param[in]  i   index of the frame
+     * @return the header, not valid if the frame can not be read in place
+     */
+    JpegHeader parseHeader(final FileChannel ch, final int i) {
+        final Entry e = frames[i];
+        if (!e.stored) {
+            return JpegHeader.invalid("compressed entry, the frames must " +
+                    "be stored (zip -0)");
+        }
+        if (e.size > Integer.MAX_VALUE) {
+            return JpegHeader.invalid("too large");
+        }
+        try {
+            return JpegHeader.parse(ch.map(FileChannel.MapMode.READ_ONLY,
+                    e.offset, e.size));
+        } catch (IOException ioe) {
+            return JpegHeader.invalid(ioe.toString());
+        }
+    }
+
+    /**
+     * @brief Reads a whole frame
+     *
+     * @param[in]  i  index of the frame
+     * @return the frame's bytes
+     * @throws IOException if the frame can not be read in place
+     */
+    byte[] read(final int i) throws IOException {
+        final Entry e = frames[i];
+        if (!e.stored || e.size > Integer.MAX_VALUE) {
+            throw new IOException("Unable to read " + e.name + " in place");
+        }
+        final ByteBuffer buf = ByteBuffer.allocate((int) e.size);
+        try (FileChannel ch = openChannel()) {
+            readFully(ch, buf, e.offset);
+        }
+        return buf.array();
+    }
+
+    /**
+     * @brief Writes all the frames, in order, into a channel
+     *
+     * The frames are transferred by FileChannel.transferTo, so they are not
+     * copied through pipeman's memory when the target is a socket.
+     *
+     * @param[in]  target  channel the frames are written into
+     * @return the number of bytes written
+     * @throws IOException on error reading the archive or writing the target
+     */
+    long transferTo(final WritableByteChannel target) throws IOException {
+        long total = 0;
+        try (FileChannel ch = openChannel()) {
+            for (Entry e : frames) {
+                if (!e.stored) {
+                    throw new IOException("Unable to stream " + e.name +
+                            ", it is compressed");
+                }
+                long pos = e.offset;
+                final long end = e.offset + e.size;
+                while (pos < end) {
+                    final long n = ch.transferTo(pos, end - pos, target);
+                    if (n <= 0) {
+                        throw new IOException(file + " truncated");
+                    }
+                    pos += n;
+                }
+                total += e.size;
+            }
+        }
+        return total;
+    }
+
+    private static void readFully(final FileChannel ch, final ByteBuffer buf,
+            long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            final int n = ch.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+            pos += n;
+        }
+        buf.flip();
+    }
+
+    /**
+     * @brief Lists the regular files of a tar archive
+     *
+     * The archive must be complete: it must end with the end of archive
+     * marker (a zeroed block) and all the entries must be within the file.
+     */
+    private static void indexTar(final FileChannel ch,
+            final List<Entry> entries) throws IOException {
+        final long size = ch.size();
+        final ByteBuffer block = ByteBuffer.allocate(TAR_BLOCK);
+
+        // Quick check while the archive is being written: its last block is
+        // zeroed once complete (the end of archive marker or its padding)
+        if (size < 2 * TAR_BLOCK || size % TAR_BLOCK != 0) {
+            throw new IOException("Incomplete tar archive");
+        }
+        block.clear();
+        readFully(ch, block, size - TAR_BLOCK);
+        if (!isZeroed(block)) {
+            throw new IOException("Incomplete tar archive");
+        }
+
+        String longName = null;
+        long pos = 0;
+        while (true) {
+            if (pos + TAR_BLOCK > size) {
+                throw new IOException("Incomplete tar archive");
+            }
+            block.clear();
+            readFully(ch, block, pos);
+            if (isZeroed(block)) {
+                return; // End of archive
+            }
+
+            final byte h[] = block.array();
+            if (parseOctal(h, 148, 8) != checksum(h)) {
+                throw new IOException("Invalid tar header at " + pos);
+            }
+            final long entrySize = parseSize(h);
+            final long data = pos + TAR_BLOCK;
+            if (entrySize < 0 || data + entrySize > size) {
+                throw new IOException("Incomplete tar archive");
+            }
+
+            final byte type = h[156];
+            if (type == 'L' || type == 'x') {
+                // The name of the next entry: a GNU long name or a pax
+                // extended header, whose path record overrides it
+                final ByteBuffer ext = ByteBuffer.allocate(
+                        (int) Math.min(entrySize, 1 << 20));
+                readFully(ch, ext, data);
+                final String name = type == 'L' ? parseString(ext.array(),
+                        0, ext.limit()) : parsePaxPath(ext.array(),
+                                ext.limit());
+                if (name != null) {
+                    longName = name;
+                }
+            } else {
+                if (type == '0' || type == 0) {
+                    entries.add(new Entry(longName != null ? longName
+                            : parseName(h), data, entrySize, true));
+                }
+                longName = null;
+            }
+
+            pos = data + (entrySize + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+        }
+    }
+
+    private static boolean isZeroed(final ByteBuffer block) {
+        for (int i = 0; i < block.limit(); i++) {
+            if (block.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Sum of the header bytes, with the checksum field taken as spaces */
+    private static long checksum(final byte h[]) {
+        long sum = 0;
+        for (int i = 0; i < TAR_BLOCK; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (h[i] & 0xFF);
+        }
+        return sum;
+    }
+
+    /** The name of an ustar entry, with its prefix */
+    private static String parseName(final byte h[]) {
+        final String name = parseString(h, 0, 100);
+        final boolean ustar = new String(h, 257, 5,
+                StandardCharsets.US_ASCII).equals("ustar");
+        final String prefix = ustar ? parseString(h, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /** A size field, in octal or in base-256 (GNU, for large entries) */
+    private static long parseSize(final byte h[]) {
+        if ((h[124] & 0x80) != 0) {
+            long v = 0;
+            for (int i = 125; i < 136; i++) {
+                v = (v << 8) | (h[i] & 0xFF);
+            }
+            return v;
+        }
+        return parseOctal(h, 124, 12);
+    }
+
+    private static long parseOctal(final byte h[], final int off,
+            final int len) {
+        long v = 0;
+        for (int i = off; i < off + len; i++) {
+            final int c = h[i];
+            if (c >= '0' && c <= '7') {
+                v = (v << 3) + (c - '0');
+            } else if (c != ' ' || v != 0) {
+                break;
+            }
+        }
+        return v;
+    }
+
+    private static String parseString(final byte b[], final int off,
+            final int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) {
+            end++;
+        }
+        return new String(b, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @brief Gets the path record of a pax extended header, whose records
+     *        are "<length> <key>=<value>\n"
+     *
+     * @return the path or null if the header has none
+     */
+    private static String parsePaxPath(final byte b[], final int len) {
+        int pos = 0;
+        while (pos < len) {
+            int sp = pos;
+            while (sp < len && b[sp] != ' ') {
+                sp++;
+            }
+            final int recLen;
+            try {
+                recLen = Integer.parseInt(new String(b, pos, sp - pos,
+                        StandardCharsets.US_ASCII));
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            if (recLen <= 0 || pos + recLen > len) {
+                return null;
+            }
+            final String rec = new String(b, sp + 1, pos + recLen - sp - 2,
+                    StandardCharsets.UTF_8);
+            if (rec.startsWith("path=")) {
+                return rec.substring(5);
+            }
+            pos += recLen;
+        }
+        return null;
+    }
+
+    /**
+     * @brief Lists the files of a zip archive, from its central directory
+     *
+     * The archive must be complete: the end of central directory record is
+     * only written at its end.
+     */
+    private static void indexZip(final FileChannel ch,
+            final List<Entry> entries) throws IOException {
+        final long size = ch.size();
+        if (size < ZIP_EOCD_SIZE) {
+            throw new IOException("Incomplete zip archive");
+        }
+
+        // The end of central directory record is followed by a comment
+        final int tailLen = (int) Math.min(size,
+                ZIP_EOCD_SIZE + ZIP_MAX_COMMENT);
+        final ByteBuffer tail = ByteBuffer.allocate(tailLen)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(ch, tail, size - tailLen);
+        int eocd = -1;
+        for (int i = tailLen - ZIP_EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == ZIP_EOCD_SIG &&
+                    i + ZIP_EOCD_SIZE + (tail.getShort(i + 20) & 0xFFFF)
+                            == tailLen) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Incomplete zip archive");
+        }
+
+        final int count = tail.getShort(eocd + 10) & 0xFFFF;
+        final long cenSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        final long cenOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cenSize == 0xFFFFFFFFL ||
+                cenOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+        if (cenOffset + cenSize > size || cenSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid zip central directory");
+        }
+
+        final ByteBuffer cen = ByteBuffer.allocate((int) cenSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(ch, cen, cenOffset);
+        final ByteBuffer loc = ByteBuffer.allocate(ZIP_LOC_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + ZIP_CEN_SIZE > cenSize ||
+                    cen.getInt(pos) != ZIP_CEN_SIG) {
+                throw new IOException("Invalid zip central directory");
+            }
+            final int flags = cen.getShort(pos + 8) & 0xFFFF;
+            final int method = cen.getShort(pos + 10) & 0xFFFF;
+            final long compSize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+            final long rawSize = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+            final int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            final int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            final int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            final long locOffset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+            if (pos + ZIP_CEN_SIZE + nameLen > cenSize) {
+                throw new IOException("Invalid zip central directory");
+            }
+            final String name = new String(cen.array(), pos + ZIP_CEN_SIZE,
+                    nameLen, StandardCharsets.UTF_8);
+            pos += ZIP_CEN_SIZE + nameLen + extraLen + commentLen;
+
+            if (name.endsWith("/") || !isFrameEntry(name)) {
+                continue;
+            }
+
+            // The data follows the local header, whose extra field may
+            // differ from the central directory's one
+            loc.clear();
+            readFully(ch, loc, locOffset);
+            if (loc.getInt(0) != ZIP_LOC_SIG) {
+                throw new IOException("Invalid zip local header of " + name);
+            }
+            final long data = locOffset + ZIP_LOC_SIZE +
+                    (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF);
+            if (data + compSize > size) {
+                throw new IOException("Invalid zip entry " + name);
+            }
+            final boolean stored = method == 0 && (flags & 1) == 0 &&
+                    compSize == rawSize;
+            entries.add(new Entry(name, data, compSize, stored));
+        }
+    }
+}
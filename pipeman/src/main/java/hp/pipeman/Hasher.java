@@ -0,0 +1,222 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The Hasher is the PipeStep that looks up the Jobs in the EncodeCache before
+ * they are encoded.
+ * <p>
+ * It hashes (SHA-256) the image sequence's frames, in file name order, along
+ * with the settings the stream is encoded with: the frame rate, the GOP size,
+ * the ABR ladder and P_CACHE_SALT (to be changed when the encoder changes,
+ * i.e. a new ffmpeg version or arguments, so the streams cached before are
+ * not reused). The frames are streamed through a direct buffer, so they are
+ * not loaded into memory. The frames of an archive are read in place, and
+ * hashed as the same frames uploaded as files.
+ * <p>
+ * If the stream is cached, it is output into the Job's output directory, the
+ * image sequence is deleted (as the encoder does) and the Job skips the
+ * encoding, going straight to the hit step (the end of its branch, see
+ * ParallelPipeStep). Otherwise, the Job continues to the next step and its
+ * stream is cached once encoded.
+ * <p>
+ * If the EncodeCache is disabled, the Jobs just pass through. So do live
+ * Jobs, since their frames are still arriving.
+ * @see EncodeCache
+ */
+class Hasher extends BaseThreadPipeStep {
+
+    /** Name of the hashing step, used for the metrics and the journal */
+    static final String STEP_NAME = "HASH";
+
+    /** Size of the buffer the frames are read into */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+    private final EncodeCache cache;
+
+    /** Step the Jobs whose stream is cached continue to */
+    private volatile PipeStep hitPipeStep = null;
+
+    /** Buffer the frames are read into, only used by the step's thread */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    Hasher(final EncodeCache cache) {
+        super(STEP_NAME);
+        this.cache = cache;
+    }
+
+    /**
+     * @brief Sets the step the Jobs whose stream is cached continue to
+     *
+     * @param[in]  hitPipeStep  the step, usually the end of the branch
+     */
+    void setHitPipeStep(final PipeStep hitPipeStep) {
+        this.hitPipeStep = hitPipeStep;
+    }
+
+    @Override
+    protected PipeStep getNextPipeStep(final Job job) {
+        return job.isCached() ? hitPipeStep : super.getNextPipeStep(job);
+    }
+
+    @Override
+    protected boolean doProcessJob(Job job) {
+        if (!cache.isEnabled() || job.isLive()) {
+            return true;
+        }
+
+        try {
+            job.setContentHash(hash(job, buffer));
+        } catch (IOException ioe) {
+            // Not fatal, the Job is just not cached
+            Log.error(STEP_NAME, "Unable to hash JOB #" + job.getId(), ioe);
+            return true;
+        }
+
+        if (cache.fetch(job)) {
+            pipeStepLog("JOB #" + job.getId() + " fetched from the cache (" +
+                    job.getContentHash() + ")");
+            deleteInput(job);
+            job.setCached(true);
+        }
+
+        return true;
+    }
+
+    /**
+     * @brief Computes the hash of a Job's image sequence and encoding
+     *        settings
+     *
+     * @param[in]     job     Job to hash
+     * @param[in,out] buffer  buffer to read the frames into
+     * @return the hash as an hexadecimal string
+     * @throws IOException on error reading the frames
+     */
+    static String hash(final Job job, final ByteBuffer buffer)
+            throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+
+        md.update(("fps=" + job.getFPS() +
+                ";gop=" + Encoder.getGOPFrames(job) +
+                ";renditions=" + Rendition.toArg(job.getRenditions()) +
+                ";salt=" + Config.getString("P_CACHE_SALT", "") + ";")
+                .getBytes(StandardCharsets.UTF_8));
+
+        final ByteBuffer length = ByteBuffer.allocate(Long.BYTES);
+        final FrameArchive archive = FrameArchive.of(job);
+        if (archive != null) {
+            hashArchive(archive, md, length, buffer);
+            return toHex(md.digest());
+        }
+
+        final File frames[] = job.getIn().listFiles(
+                (dir, name) -> name.endsWith(Ingestor.FRAME_FILE_EXT));
+        if (frames == null || frames.length == 0) {
+            throw new IOException("No frames in " + job.getIn());
+        }
+        Arrays.sort(frames, Comparator.comparing(File::getName));
+
+        for (File frame : frames) {
+            try (FileChannel ch = FileChannel.open(frame.toPath(),
+                    StandardOpenOption.READ)) {
+                // The length delimits the frames
+                length.clear();
+                length.putLong(ch.size()).flip();
+                md.update(length);
+
+                buffer.clear();
+                while (ch.read(buffer) > 0) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * @brief Hashes the frames of an archive, read in place
+     *
+     * The frames are hashed as if they were files, so the same sequence
+     * uploaded as files or as an archive gets the same hash.
+     */
+    private static void hashArchive(final FrameArchive archive,
+            final MessageDigest md, final ByteBuffer length,
+            final ByteBuffer buffer) throws IOException {
+        if (archive.size() == 0) {
+            throw new IOException("No frames in " + archive.getFile());
+        }
+
+        try (FileChannel ch = archive.openChannel()) {
+            for (int i = 0; i < archive.size(); i++) {
+                length.clear();
+                length.putLong(archive.getSize(i)).flip();
+                md.update(length);
+
+                long pos = archive.getOffset(i);
+                long left = archive.getSize(i);
+                while (left > 0) {
+                    buffer.clear();
+                    if (left < buffer.capacity()) {
+                        buffer.limit((int) left);
+                    }
+                    final int n = ch.read(buffer, pos);
+                    if (n < 0) {
+                        throw new IOException(archive.getFile() +
+                                " truncated");
+                    }
+                    buffer.flip();
+                    md.update(buffer);
+                    pos += n;
+                    left -= n;
+                }
+            }
+        }
+    }
+
+    private static String toHex(final byte digest[]) {
+        final char hex[] = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @brief Deletes the image sequence of a Job fetched from the cache, or
+     *        encoded from an archive (see Encoder)
+     */
+    static void deleteInput(final Job job) {
+        if (!job.getIn().exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(job.getIn().toPath())) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(p -> p.toFile().delete());
+        } catch (IOException ioe) {
+            Log.error(STEP_NAME, ioe);
+        }
+    }
+}
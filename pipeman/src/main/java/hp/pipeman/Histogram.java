@@ -0,0 +1,110 @@
+package hp.pipeman;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non negative values (i.e. times in ms).
+ * <p>
+ * Values are counted in power of two buckets: bucket 0 counts the value 0 and
+ * bucket i counts the values in [2^(i-1), 2^i). So recording a value is just
+ * a couple of atomic increments, and percentiles are estimated with a
+ * relative error below 2x, which is enough to locate bottlenecks.
+ */
+class Histogram implements HistogramMXBean {
+
+    /** Number of buckets, enough for any long value */
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @brief Records a value
+     *
+     * @param[in]  value  value to record. Negative values are recorded as 0.
+     */
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+        count.increment();
+        sum.add(v);
+
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // retry
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getSum() {
+        return sum.sum();
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public double getMean() {
+        final long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @brief Estimates a percentile
+     *
+     * @param[in]  p  percentile, between 0 and 100
+     * @return the upper bound of the bucket containing the percentile,
+     *         limited to the maximum value recorded
+     */
+    public long getPercentile(final double p) {
+        final long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+
+        final long target = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long acc = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            acc += buckets.get(i);
+            if (acc >= target) {
+                final long upper = (i == 0) ? 0
+                        : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public long getP90() {
+        return getPercentile(90);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + String.format("%.1f", getMean())
+                + " p50=" + getPercentile(50) + " p99=" + getPercentile(99)
+                + " max=" + getMax();
+    }
+}
@@ -0,0 +1,22 @@
+package hp.pipeman;
+
+/**
+ * Management interface of a Histogram, so it can be monitored through JMX.
+ * @see Histogram
+ */
+public interface HistogramMXBean {
+
+    public long getCount();
+
+    public long getSum();
+
+    public long getMax();
+
+    public double getMean();
+
+    public long getP50();
+
+    public long getP90();
+
+    public long getP99();
+}
@@ -0,0 +1,32 @@
+package hp.pipeman;
+
+import java.io.File;
+
+/**
+ * The IngestMonitor interface represents the strategy used by the Ingestor
+ * for discovering image sequences in the Ingest Storage that are ready to be
+ * processed.
+ * <p>
+ * An image sequence directory is ready when it contains a job description
+ * file and, at least, as many frames (files, or entries of a complete
+ * archive) as specified in it. Once the Ingestor creates the Job for a
+ * directory, it deletes the job description file, so the monitor must not
+ * report that directory again.
+ * @see Ingestor
+ */
+interface IngestMonitor {
+
+    /**
+     * @brief Waits for the next image sequence directory ready to be processed
+     *
+     * The function blocks until a directory is ready.
+     * @return the directory containing the image sequence
+     * @throws InterruptedException if the calling thread has been interrupted
+     */
+    public File nextReadyPath() throws InterruptedException;
+
+    /**
+     * @brief Releases any resource held by the monitor
+     */
+    public void close();
+}
@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.nio.file.Files;
 
 import javax.json.Json;
+import javax.json.JsonException;
 import javax.json.JsonObject;
 
 /**
@@ -21,19 +22,86 @@ import javax.json.JsonObject;
  * the number of files in the directory is equal or greater than the number of
  * frames specified in the job description file.
  * <p>
+ * Instead of one file per frame, the frames may be uploaded as a single
+ * archive (frames.tar or frames.zip, see FrameArchive) next to the job
+ * description file. The archive is never extracted, so a job takes three
+ * inodes no matter its length. Its frames are counted once the archive is
+ * complete, and they are encoded as a whole, never live.
+ * <p>
+ * Live jobs (P_INGEST_LIVE, or the job description's "live" field) are started
+ * as soon as P_LIVE_MIN_FRAMES frames are there. The encoder is fed with the
+ * frames as they arrive and the stream is published, with a dynamic manifest,
+ * while it is being encoded.
+ * <p>
+ * How the Ingest Storage is monitored is delegated to an IngestMonitor, which
+ * is selected with the P_INGEST_MODE setting:
+ *  - scan:  (default) full rescan of the Ingest Storage once per second.
+ *  - watch: event driven, based on the file system's watch service.
+ *  - poll:  incremental and parallel rescan, for file systems where change
+ *           notifications are not reliable (i.e. NFS).
+ * <p>
  * Most of the PipeStep functionality is provided by BaseThreadPipeStep.
+ * @see IngestMonitor
  */
 public class Ingestor extends BaseThreadPipeStep {
 
-    /** full path to the directory to look after new image sequeces */
-    private File pathToMonitor; 
+    /** Name of the job description file within an image sequence directory */
+    static final String JOB_DESC_FILE = "jobdesc.json";
+
+    /** Extension of the image sequence's frame files */
+    static final String FRAME_FILE_EXT = ".jpg";
+
+    /** Whether the jobs are live unless their description says otherwise */
+    private static final boolean LIVE_DEFAULT =
+            Config.getBoolean("P_INGEST_LIVE", false);
+
+    /** Frames a live job needs to be started */
+    private static final int LIVE_MIN_FRAMES =
+            Math.max(1, Config.getInt("P_LIVE_MIN_FRAMES", 1));
+
+    /** Strategy used to find the image sequences ready to be processed */
+    private final IngestMonitor monitor;
 
-    /** internal job counter, currently only useful for logging */
-    private static int jobCounter = 1;
-    
     public Ingestor(File pathToMonitor) {
+        this(createMonitor(Config.getString("P_INGEST_MODE", "scan"),
+                pathToMonitor));
+    }
+
+    public Ingestor(IngestMonitor monitor) {
         super("INGEST");
-        this.pathToMonitor = pathToMonitor;
+        this.monitor = monitor;
+    }
+
+    /**
+     * @brief Creates the IngestMonitor for the given ingest mode
+     *
+     * @param[in]  mode           ingest mode name (scan, watch, poll)
+     * @param[in]  pathToMonitor  directory to look after new image sequences
+     * @return the monitor instance. Unknown modes fall back to scan.
+     */
+    static IngestMonitor createMonitor(final String mode,
+            final File pathToMonitor) {
+        if (mode.equalsIgnoreCase("watch")) {
+            try {
+                return new WatchIngestMonitor(pathToMonitor);
+            } catch (IOException ioe) {
+                // e.g. the file system does not support watching
+                Log.error("INGEST", "Watch mode not available, falling back " +
+                        "to scan mode", ioe);
+            }
+        } else if (mode.equalsIgnoreCase("poll")) {
+            return new PollIngestMonitor(pathToMonitor,
+                    Config.getLong("P_INGEST_SCAN_PERIOD_MS", 1000),
+                    Config.getLong("P_INGEST_MTIME_SLACK_MS", 2000),
+                    Config.getInt("P_INGEST_POLL_THREADS",
+                            Runtime.getRuntime().availableProcessors()));
+        } else if (!mode.equalsIgnoreCase("scan")) {
+            Log.log(Log.Level.WARN, "INGEST",
+                    "Unknown ingest mode '{}', using scan mode", mode);
+        }
+
+        return new ScanIngestMonitor(pathToMonitor,
+                Config.getLong("P_INGEST_SCAN_PERIOD_MS", 1000));
     }
 
     /**
@@ -45,83 +113,186 @@ public class Ingestor extends BaseThreadPipeStep {
         Job job = null;
         try {
             while (job == null) {
-                File files[] = pathToMonitor.listFiles();
-                for(File f : files) {
-                    job = checkPathForJob(f);
-                    if (job != null) {
-                        break;
-                    }
-                }
-
-                if (job == null) {
-                    Thread.sleep(1000);
-                }
+                job = createJob(monitor.nextReadyPath());
             }
         } catch (InterruptedException ie) {
+            // Keep the interrupted status, so the thread loop ends
+            Thread.currentThread().interrupt();
         } catch (RuntimeException rt) {
-            rt.printStackTrace(System.out);
+            Log.error("INGEST", rt);
         } catch (Exception e) {
-            e.printStackTrace(System.out);
+            Log.error("INGEST", e);
         }
 
         return job;
     }
 
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            monitor.close();
+        }
+    }
+
     @Override
     protected boolean doProcessJob(Job job) {
         // No processing is needed for the ingestor
         return true;
     }
 
-    private Job checkPathForJob(final File path) {
-        Job job = null;
-        InputStream is = null;
-        try {
-            // Jobs must be in directories
-            if (!path.isDirectory()) {
-                return null;
-            }
+    /**
+     * @brief Creates the Job for an image sequence directory that is ready
+     *
+     * The job description file is deleted, so the directory is not processed
+     * again.
+     * @param[in]  path  image sequence directory
+     * @return the new Job or null if the job description file is gone
+     */
+    private Job createJob(final File path) throws IOException {
+        final File fdesc = new File(path, JOB_DESC_FILE);
+        final JsonObject jsonDesc = readJobDesc(fdesc);
+        if (jsonDesc == null) {
+            return null;
+        }
 
-            // Jobs must have a job description file
-            File fdesc = new File(path.getCanonicalPath() + "/jobdesc.json");
-            if (!fdesc.exists()) {
-                return null;
-            }
+        // The frames of an archive are all there, they are not encoded live
+        JsonObject desc = jsonDesc;
+        if (isLive(desc) && FrameArchive.find(path) != null) {
+            desc = Json.createObjectBuilder(desc).add("live", false).build();
+        }
 
-            // Read the contents of the job description file
-            is = new FileInputStream(fdesc);
-            JsonObject jsonDesc = Json.createReader(is).readObject();
-            int frames_n = jsonDesc.getInt("frames_n");
-            int fps = jsonDesc.getInt("fps");
-            is.close();
-
-            // Since copying all the frame files to the ingest directory is not
-            // an atomic operation, before starting the job, confirm that all
-            // frames files are already there. (simply count the images file in
-            // the directory and match frames_n from the job description file). 
-            int files_n = path.listFiles(new FilenameFilter(){
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(".jpg");
-                }
-            }).length;
-
-            if (files_n >= frames_n) {
-                // It is a job ready to be processed!
-                job = new Job(jobCounter, path, fps, jsonDesc);
-                jobCounter++;
-
-                // Delete the job descriptor file, so it is not processed again.
-                Files.deleteIfExists(fdesc.toPath());    
-            }
+        // It is a job ready to be processed!
+        Job job = new Job(Job.nextId(), path, desc.getInt("fps"), desc);
 
-        } catch(IOException ioe) {
-            ioe.printStackTrace(System.out);
-        } finally {
-            if (is != null) {
-                try { is.close(); } catch(IOException ioe) {}
+        // Record the job before deleting its descriptor file, so it is
+        // recovered if pipeman stops before completing it.
+        JobJournal.getInstance().created(job);
+
+        // Delete the job descriptor file, so it is not processed again.
+        Files.deleteIfExists(fdesc.toPath());
+
+        return job;
+    }
+
+    /**
+     * @brief Checks whether an image sequence directory is ready to be
+     *        processed
+     *
+     * Since copying all the frame files to the ingest directory is not an
+     * atomic operation, before starting the job, confirm that all frames files
+     * are already there. (simply count the images file in the directory and
+     * match frames_n from the job description file). Live jobs only need
+     * their first frames (see getReadyFrames). Archived frames are only
+     * counted once the archive is complete (see countFrames).
+     * @param[in]  path  candidate image sequence directory
+     * @return true if the directory contains a job ready to be processed
+     */
+    static boolean isPathReady(final File path) {
+        // Jobs must be in directories
+        if (!path.isDirectory()) {
+            return false;
+        }
+
+        // Jobs must have a job description file
+        JsonObject jsonDesc = readJobDesc(new File(path, JOB_DESC_FILE));
+        if (jsonDesc == null) {
+            return false;
+        }
+
+        return countFrames(path) >= getReadyFrames(jsonDesc);
+    }
+
+    /**
+     * @brief Reads a job description file
+     *
+     * @param[in]  fdesc  job description file
+     * @return the job description or null if the file does not exist or it
+     *         can not be parsed (i.e. it is still being written)
+     */
+    static JsonObject readJobDesc(final File fdesc) {
+        if (!fdesc.exists()) {
+            return null;
+        }
+
+        try (InputStream is = new FileInputStream(fdesc)) {
+            return Json.createReader(is).readObject();
+        } catch (IOException | JsonException e) {
+            Log.log(Log.Level.WARN, "INGEST", "Unable to read {}: {}", fdesc,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @brief Gets the number of frames of the image sequence
+     *
+     * @param[in]  jsonDesc  job description
+     * @return frames_n or Integer.MAX_VALUE if not specified, so the job is
+     *         never considered ready
+     */
+    static int getFramesN(final JsonObject jsonDesc) {
+        return jsonDesc.getInt("frames_n", Integer.MAX_VALUE);
+    }
+
+    /**
+     * @brief Whether a job is encoded live, while its frames arrive
+     *
+     * @param[in]  jsonDesc  job description
+     */
+    static boolean isLive(final JsonObject jsonDesc) {
+        return jsonDesc.getBoolean("live", LIVE_DEFAULT);
+    }
+
+    /**
+     * @brief Gets the number of frames needed to start the job
+     *
+     * @param[in]  jsonDesc  job description
+     * @return all the frames (see getFramesN) or, for live jobs, at most
+     *         P_LIVE_MIN_FRAMES
+     */
+    static int getReadyFrames(final JsonObject jsonDesc) {
+        final int framesN = getFramesN(jsonDesc);
+        return isLive(jsonDesc) ? Math.min(framesN, LIVE_MIN_FRAMES)
+                : framesN;
+    }
+
+    /**
+     * @brief Checks whether a file name corresponds to a frame file
+     */
+    static boolean isFrameFile(final String name) {
+        return name.endsWith(FRAME_FILE_EXT);
+    }
+
+    /**
+     * @brief Counts the frames in an image sequence directory
+     *
+     * If the frames are archived, they are counted from the archive's index,
+     * without listing the directory.
+     * @param[in]  path  image sequence directory
+     * @return number of frames, 0 if the directory can not be listed or its
+     *         archive is not complete
+     */
+    static int countFrames(final File path) {
+        final File archive = FrameArchive.find(path);
+        if (archive != null) {
+            try {
+                return FrameArchive.open(archive).size();
+            } catch (IOException ioe) {
+                // i.e. it is still being written
+                Log.log(Log.Level.DEBUG, "INGEST", "{} not ready: {}",
+                        archive, ioe.getMessage());
+                return 0;
             }
         }
-        return job;
+
+        File frames[] = path.listFiles(new FilenameFilter(){
+            @Override
+            public boolean accept(File dir, String name) {
+                return isFrameFile(name);
+            }
+        });
+        return frames == null ? 0 : frames.length;
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,19 @@
 package hp.pipeman;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.json.JsonObject;
 
 /**
  * @brief Encoding Job data object
+ *
+ * A long Job may be split into chunks, each one a sub-job encoding a range of
+ * the image sequence's frames. Sub-jobs refer to their parent Job, which is
+ * completed once all its chunks are done.
  */
 class Job {
 
@@ -31,6 +39,71 @@ class Job {
     /** Status of the Job's instace                           */
     private JobStatus status = JobStatus.STOPPED;
 
+    /** Whether any step failed the Job. Unlike the status, it is not reset
+     *  by the following steps, so parallel branches can be joined.       */
+    private volatile boolean  failed = false;
+
+    /** Last encoding progress reported, null if not started  */
+    private volatile EncodeProgress progress = null;
+
+    /** Number of frames to encode                            */
+    private volatile int      framesN;
+
+    /** ABR ladder, empty to encode a single rendition        */
+    private final List<Rendition> renditions;
+
+    /** Parent Job of a chunk, null if this is not a chunk    */
+    private final Job         parent;
+
+    /** Index of the chunk within its parent                  */
+    private final int         chunkIndex;
+
+    /** Index of the chunk's first frame (0 based)            */
+    private final int         firstFrame;
+
+    /** Number of chunks of a split Job, 0 if not split       */
+    private int               chunksN = 0;
+
+    /** Number of chunks of a split Job not yet completed     */
+    private final AtomicInteger chunksPending = new AtomicInteger();
+
+    /** Whether any chunk of a split Job failed               */
+    private volatile boolean  chunkFailed = false;
+
+    /** Time the Job was created (ms)                         */
+    private final long        createTime = System.currentTimeMillis();
+
+    /** Time the Job was queued into its current step (ms)    */
+    private volatile long     queueTime = createTime;
+
+    /** Whether the Job was recovered from the JobJournal     */
+    private volatile boolean  recovered = false;
+
+    /** Hash of the image sequence and its encoding settings  */
+    private volatile String   contentHash = null;
+
+    /** Whether the Job's stream was fetched from the cache   */
+    private volatile boolean  cached = false;
+
+    /** Format of the frames, checked by the Preflight        */
+    private volatile JpegHeader frameFormat = null;
+
+    /** Number of broken frames dropped by the Preflight      */
+    private volatile int      rejectedFramesN = 0;
+
+    /** Index of the archive holding the frames, null if they are files
+     *  or not yet indexed (see FrameArchive.of)              */
+    private volatile FrameArchive archive = null;
+
+    /** Encoder containers the Job failed on, guarded by this */
+    private final Set<String> failedEncoders = new HashSet<String>();
+
+    /** Number of failed encodings, guarded by this           */
+    private int               encodeFailures = 0;
+
+    /** Job id generator                                      */
+    private static final AtomicInteger idCounter = new AtomicInteger(1);
+
     /**
      * @constructor
      *
@@ -45,6 +118,109 @@ class Job {
         this.in       = in;
         this.fps      = fps;
         this.jsonDesc = jsonDesc;
+        this.framesN  = jsonDesc == null ? 0 :
+                jsonDesc.getInt("frames_n", 0);
+        this.renditions = Rendition.parseLadder(jsonDesc);
+        this.parent     = null;
+        this.chunkIndex = 0;
+        this.firstFrame = 0;
+    }
+
+    /**
+     * @constructor
+     *
+     * Creates a chunk of the given parent Job.
+     *
+     * @param[in]   parent      Job being split
+     * @param[in]   chunkIndex  index of the chunk within the parent Job
+     * @param[in]   firstFrame  index of the chunk's first frame (0 based)
+     * @param[in]   framesN     number of frames of the chunk
+     */
+    private Job(final Job parent, final int chunkIndex, final int firstFrame,
+            final int framesN) {
+        this.id         = nextId();
+        this.in         = parent.in;
+        this.fps        = parent.fps;
+        this.jsonDesc   = parent.jsonDesc;
+        this.framesN    = framesN;
+        this.renditions = parent.renditions;
+        this.parent     = parent;
+        this.chunkIndex = chunkIndex;
+        this.firstFrame = firstFrame;
+        this.archive    = parent.archive;
+    }
+
+    /**
+     * @brief Generates a new unique Job identification
+     */
+    public static int nextId() {
+        return idCounter.getAndIncrement();
+    }
+
+    /**
+     * @brief Makes sure the ids up to the given one are not generated
+     *
+     * @param[in]  maxId  highest id in use (i.e. by recovered Jobs)
+     */
+    public static void reserveIds(final int maxId) {
+        idCounter.accumulateAndGet(maxId + 1, Math::max);
+    }
+
+    /**
+     * @brief Splits the Job into chunks
+     *
+     * @param[in]  chunkFrames  number of frames of each chunk. The last chunk
+     *                          may be shorter.
+     * @return the chunks, to be encoded as independent sub-jobs
+     */
+    public Job[] split(final int chunkFrames) {
+        final int n = (framesN + chunkFrames - 1) / chunkFrames;
+        final Job chunks[] = new Job[n];
+        for (int i = 0; i < n; i++) {
+            final int first = i * chunkFrames;
+            chunks[i] = new Job(this, i, first,
+                    Math.min(chunkFrames, framesN - first));
+        }
+        chunksN = n;
+        chunksPending.set(n);
+        return chunks;
+    }
+
+    /**
+     * @brief Records the completion of one of the Job's chunks
+     *
+     * @param[in]  success  whether the chunk was encoded successfully
+     * @return true if it was the last chunk pending
+     */
+    public boolean chunkCompleted(final boolean success) {
+        if (!success) {
+            chunkFailed = true;
+        }
+        return chunksPending.decrementAndGet() == 0;
+    }
+
+    public boolean isChunk() {
+        return parent != null;
+    }
+
+    public Job getParent() {
+        return parent;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public int getFirstFrame() {
+        return firstFrame;
+    }
+
+    public int getChunksN() {
+        return chunksN;
+    }
+
+    public boolean isChunkFailed() {
+        return chunkFailed;
     }
 
     public int getId() {
@@ -63,11 +239,229 @@ class Job {
         return jsonDesc;
     }
 
+    /**
+     * @brief Gets the renditions of the Job's ABR ladder
+     *
+     * @return the renditions, highest bitrate first. Empty if a single
+     *         rendition is encoded.
+     */
+    public List<Rendition> getRenditions() {
+        return renditions;
+    }
+
+    /**
+     * @brief Gets the number of frames to encode
+     *
+     * @return frames_n from the job description (or the number of frames of
+     *         the chunk), 0 if not available
+     */
+    public int getFramesN() {
+        return framesN;
+    }
+
+    protected void setFramesN(final int framesN) {
+        this.framesN = framesN;
+    }
+
+    /**
+     * @brief Gets the scheduling priority of the Job
+     *
+     * @return "priority" from the job description, 0 if not specified.
+     *         Higher values are more urgent.
+     */
+    public int getPriority() {
+        return jsonDesc == null ? 0 : jsonDesc.getInt("priority", 0);
+    }
+
+    /**
+     * @brief Gets the last encoding progress reported
+     *
+     * It may be queried from any thread while the Job is being encoded.
+     * @return the progress or null if the encoding has not started
+     */
+    public EncodeProgress getProgress() {
+        return progress;
+    }
+
+    protected void setProgress(final EncodeProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @brief Gets the encoding completion percentage
+     *
+     * @return percentage between 0 and 100, or -1 if unknown
+     */
+    public double getPercentComplete() {
+        final EncodeProgress p = progress;
+        final int framesN = getFramesN();
+        if (p == null || framesN <= 0) {
+            return -1;
+        }
+        return Math.min(100.0, 100.0 * p.getFrame() / framesN);
+    }
+
+    /**
+     * @brief Gets the estimated time to complete the encoding
+     *
+     * The estimation is based on the last encoding rate reported.
+     * @return remaining time (seconds), or -1 if unknown
+     */
+    public long getETA() {
+        final EncodeProgress p = progress;
+        final int framesN = getFramesN();
+        if (p == null || framesN <= 0 || p.getFPS() <= 0) {
+            return -1;
+        }
+        final long left = Math.max(0, framesN - p.getFrame());
+        final long elapsed =
+                (System.currentTimeMillis() - p.getTimestamp()) / 1000;
+        return Math.max(0, Math.round(left / p.getFPS()) - elapsed);
+    }
+
+    /**
+     * @brief Whether the Job was not finished by a previous pipeman instance
+     *        and it has been recovered from the JobJournal
+     *
+     * Its output may be partially written.
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    protected void setRecovered(final boolean recovered) {
+        this.recovered = recovered;
+    }
+
+    /**
+     * @brief Whether the Job is encoded live, while its frames arrive
+     */
+    public boolean isLive() {
+        return jsonDesc != null && Ingestor.isLive(jsonDesc);
+    }
+
+    /**
+     * @brief Gets the hash identifying the Job's encoded output, computed by
+     *        the Hasher. null if not computed.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    protected void setContentHash(final String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * @brief Whether the Job's stream was fetched from the EncodeCache, so it
+     *        does not need to be encoded
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    protected void setCached(final boolean cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * @brief Gets the format of the Job's frames, checked by the Preflight.
+     *        null if not checked.
+     */
+    public JpegHeader getFrameFormat() {
+        return frameFormat;
+    }
+
+    protected void setFrameFormat(final JpegHeader frameFormat) {
+        this.frameFormat = frameFormat;
+    }
+
+    /**
+     * @brief Gets the number of broken frames the Preflight dropped from the
+     *        image sequence
+     */
+    public int getRejectedFramesN() {
+        return rejectedFramesN;
+    }
+
+    protected void setRejectedFramesN(final int rejectedFramesN) {
+        this.rejectedFramesN = rejectedFramesN;
+    }
+
+    /**
+     * @brief Gets the index of the archive holding the Job's frames. null if
+     *        the frames are files or the archive was not indexed yet.
+     * @see FrameArchive#of
+     */
+    public FrameArchive getArchive() {
+        return archive;
+    }
+
+    protected void setArchive(final FrameArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * @brief Records a failed encoding of the Job
+     *
+     * @param[in]  encoderId  container the encoding failed on
+     * @return the number of failed encodings
+     */
+    public synchronized int encodeFailed(final String encoderId) {
+        failedEncoders.add(encoderId);
+        return ++encodeFailures;
+    }
+
+    /**
+     * @brief Gets the number of failed encodings of the Job, which is retried
+     *        after each one (see EncoderPool.retryJob)
+     */
+    public synchronized int getEncodeFailures() {
+        return encodeFailures;
+    }
+
+    /**
+     * @brief Whether an encoding of the Job failed on the given container
+     */
+    public synchronized boolean hasFailedOn(final String encoderId) {
+        return failedEncoders.contains(encoderId);
+    }
+
+    /**
+     * @brief Gets the time the Job was created, when its image sequence was
+     *        ingested (ms since the epoch)
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    /**
+     * @brief Gets the time the Job was queued into its current pipeline step
+     *        (ms since the epoch)
+     */
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    protected void setQueueTime(final long queueTime) {
+        this.queueTime = queueTime;
+    }
+
     public JobStatus getStatus() {
         return status;
     }
 
     protected void setStatus(JobStatus status) {
         this.status = status;
+        if (status == JobStatus.ERROR) {
+            failed = true;
+        }
+    }
+
+    /**
+     * @brief Whether any pipeline step failed to process the Job
+     */
+    public boolean isFailed() {
+        return failed;
     }
 }
\ No newline at end of file
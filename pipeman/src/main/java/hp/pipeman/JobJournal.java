@@ -0,0 +1,565 @@
+package hp.pipeman;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Write-ahead journal of the Jobs' state transitions, used to resume the Jobs
+ * that were not finished when pipeman stopped (i.e. it crashed).
+ * <p>
+ * Each transition is appended to the journal file (jobs.journal in the
+ * P_JOURNAL_DIR directory), one JSON object per line:
+ *  - create: the Job has been created. It is recorded before the job
+ *            description file is deleted, with all the data needed to
+ *            create the Job again.
+ *  - step:   a pipeline step completed the Job.
+ *  - split:  the Job has been split into chunks of the given frames.
+ *  - chunk:  a chunk of the Job has been encoded.
+ *  - done:   the last pipeline step completed the Job.
+ *  - fail:   a pipeline step failed to process the Job.
+ * <p>
+ * The records are synced to disk before returning (unless P_JOURNAL_FSYNC is
+ * false), but not one by one: they are written holding the journal's lock
+ * and synced once released, so the records written by other threads
+ * meanwhile are synced together (group commit). The transitions of a group
+ * of Jobs (i.e. a batch published together) are written at once.
+ * <p>
+ * On startup, the journal is replayed and the Jobs neither done nor failed
+ * are returned by recover(), along with the steps that completed them and the
+ * chunks already encoded, so they continue from there. Finished Jobs are
+ * forgotten: the journal is rewritten with the records of the unfinished Jobs
+ * on startup and whenever it grows beyond P_JOURNAL_COMPACT_RECORDS records.
+ * <p>
+ * The journal is disabled (all the operations do nothing) if P_JOURNAL_DIR is
+ * not set.
+ * @see Job
+ */
+class JobJournal {
+
+    /** Journal file name */
+    static final String JOURNAL_FILE = "jobs.journal";
+
+    private static JobJournal sm_instance = null;
+
+    public static JobJournal getInstance() {
+        synchronized (JobJournal.class) {
+            if (sm_instance == null) {
+                final String dir = Config.getString("P_JOURNAL_DIR", "");
+                sm_instance = new JobJournal(dir.isEmpty() ? null
+                        : new File(dir),
+                        Config.getBoolean("P_JOURNAL_FSYNC", true),
+                        Config.getInt("P_JOURNAL_COMPACT_RECORDS", 1000));
+            }
+        }
+
+        return sm_instance;
+    }
+
+    /** A Job not finished by the previous pipeman instance */
+    static class PendingJob {
+        /** The Job, created again with its original id */
+        final Job job;
+
+        /** Name of the last pipeline step that completed the Job, null if
+         *  none did */
+        final String lastStep;
+
+        /** Names of all the pipeline steps that completed the Job. Steps in
+         *  parallel branches may complete it in any order. */
+        final Set<String> steps;
+
+        /** Frames of each chunk if the Job was split, 0 otherwise */
+        final int chunkFrames;
+
+        /** Indexes of the chunks already encoded */
+        final Set<Integer> doneChunks;
+
+        PendingJob(final Job job, final Set<String> steps,
+                final String lastStep, final int chunkFrames,
+                final Set<Integer> doneChunks) {
+            this.job = job;
+            this.steps = steps;
+            this.lastStep = lastStep;
+            this.chunkFrames = chunkFrames;
+            this.doneChunks = doneChunks;
+        }
+
+        /**
+         * @brief Whether the given pipeline step completed the Job
+         */
+        boolean hasCompleted(final String step) {
+            return steps.contains(step);
+        }
+    }
+
+    /** Journal file, null if the journal is disabled */
+    private final File journalFile;
+
+    /** Whether the records are synced to disk before returning */
+    private final boolean durable;
+
+    /** Number of records above which the journal is compacted */
+    private final int compactRecords;
+
+    /** Records of the unfinished Jobs, by Job id. Guarded by this. */
+    private final Map<Integer, List<JsonObject>> active =
+            new LinkedHashMap<Integer, List<JsonObject>>();
+
+    /** Number of records in the journal file. Guarded by this. */
+    private int recordsN = 0;
+
+    /** Journal file channel, opened in append mode. Guarded by this. */
+    private FileChannel journal = null;
+
+    /** Number of records written since startup. Guarded by this. */
+    private long writtenSeq = 0;
+
+    /** Number of records written when the journal was last compacted, all
+     *  of them synced to disk. Guarded by this. */
+    private long compactedSeq = 0;
+
+    /** Number of records synced to disk. Guarded by syncLock. */
+    private long syncedSeq = 0;
+
+    /** Lock held while syncing the journal, so the threads waiting for their
+     *  records to be synced are served by a single sync */
+    private final Object syncLock = new Object();
+
+    /**
+     * JobJournal constructor
+     *
+     * @param dir             directory of the journal file, null to disable
+     *                        the journal
+     * @param durable         whether the records are synced to disk
+     * @param compactRecords  number of records above which the journal is
+     *                        compacted
+     */
+    JobJournal(final File dir, final boolean durable,
+            final int compactRecords) {
+        this.journalFile = dir == null ? null : new File(dir, JOURNAL_FILE);
+        this.durable = durable;
+        this.compactRecords = Math.max(1, compactRecords);
+        if (dir != null) {
+            dir.mkdirs();
+        }
+    }
+
+    public boolean isEnabled() {
+        return journalFile != null;
+    }
+
+    /**
+     * @brief Records that a Job has been created
+     *
+     * It must be recorded before deleting the Job's description file, so the
+     * Job is not lost if pipeman stops right after.
+     */
+    public void created(final Job job) {
+        append(List.of(job), j -> record(j, "create")
+                .add("in", j.getIn().getPath())
+                .add("desc", j.getJSONDescription()));
+    }
+
+    /**
+     * @brief Records that a pipeline step has completed a Job
+     */
+    public void stepCompleted(final Job job, final String step) {
+        stepCompleted(List.of(job), step);
+    }
+
+    /**
+     * @brief Records that a pipeline step has completed a group of Jobs,
+     *        with a single write
+     */
+    public void stepCompleted(final List<Job> jobs, final String step) {
+        append(jobs, job -> record(job, "step").add("step", step));
+    }
+
+    /**
+     * @brief Records that a Job has been split into chunks
+     */
+    public void split(final Job job, final int chunkFrames) {
+        append(List.of(job), j -> record(j, "split")
+                .add("chunk_frames", chunkFrames));
+    }
+
+    /**
+     * @brief Records that a chunk has been encoded
+     */
+    public void chunkCompleted(final Job chunk) {
+        append(List.of(chunk.getParent()), job -> record(job, "chunk")
+                .add("index", chunk.getChunkIndex()));
+    }
+
+    /**
+     * @brief Records that the last pipeline step has completed a Job
+     */
+    public void done(final Job job) {
+        done(List.of(job));
+    }
+
+    /**
+     * @brief Records that the last pipeline step has completed a group of
+     *        Jobs, with a single write
+     */
+    public void done(final List<Job> jobs) {
+        append(jobs, job -> record(job, "done"));
+    }
+
+    /**
+     * @brief Records that a pipeline step failed to process a Job
+     */
+    public void failed(final Job job) {
+        failed(List.of(job));
+    }
+
+    /**
+     * @brief Records that a pipeline step failed to process a group of Jobs,
+     *        with a single write
+     */
+    public void failed(final List<Job> jobs) {
+        append(jobs, job -> record(job, "fail"));
+    }
+
+    private static JsonObjectBuilder record(final Job job, final String op) {
+        return Json.createObjectBuilder()
+                .add("op", op)
+                .add("id", job.getId())
+                .add("time", System.currentTimeMillis());
+    }
+
+    /**
+     * @brief Appends the records of a group of Jobs to the journal
+     *
+     * The records are written together and, if the journal is durable,
+     * synced to disk before returning. Errors are logged, but they do not
+     * stop the Jobs' processing.
+     *
+     * @param[in]  jobs    the Jobs, none to do nothing
+     * @param[in]  record  creates the record of each Job
+     */
+    private void append(final List<Job> jobs,
+            final Function<Job, JsonObjectBuilder> record) {
+        if (journalFile == null || jobs.isEmpty()) {
+            return;
+        }
+
+        final List<JsonObject> recs = new ArrayList<JsonObject>();
+        jobs.forEach(job -> recs.add(record.apply(job).build()));
+        final long seq;
+        synchronized (this) {
+            try {
+                seq = write(recs);
+            } catch (IOException ioe) {
+                Log.error("JOURNAL", "Unable to record " + describe(recs),
+                        ioe);
+                return;
+            }
+
+            for (JsonObject rec : recs) {
+                final int id = rec.getInt("id");
+                final String op = rec.getString("op");
+                if (op.equals("done") || op.equals("fail")) {
+                    active.remove(id);
+                } else if (op.equals("create") || active.containsKey(id)) {
+                    active.computeIfAbsent(id,
+                            i -> new ArrayList<JsonObject>()).add(rec);
+                }
+            }
+
+            if (recordsN > compactRecords) {
+                compact();
+            }
+        }
+
+        if (durable) {
+            try {
+                sync(seq);
+            } catch (IOException ioe) {
+                Log.error("JOURNAL", "Unable to sync " + describe(recs), ioe);
+            }
+        }
+    }
+
+    /** "<op> of JOB #<id>[, #<id>...]", for the error messages */
+    private static String describe(final List<JsonObject> recs) {
+        final StringBuilder sb = new StringBuilder(
+                recs.get(0).getString("op")).append(" of JOB");
+        for (int i = 0; i < recs.size(); i++) {
+            sb.append(i == 0 ? " #" : ", #").append(recs.get(i).getInt("id"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @brief Writes records into the journal, without syncing it
+     *
+     * Must be called holding the lock.
+     *
+     * @return the sequence number of the last record written
+     */
+    private long write(final List<JsonObject> records) throws IOException {
+        if (journal == null || !journal.isOpen()) {
+            // Not opened yet, or closed by an interrupted thread
+            journal = FileChannel.open(journalFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        records.forEach(r -> sb.append(Catalog.toJson(r)).append('\n'));
+        final ByteBuffer buf = ByteBuffer.wrap(
+                sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            journal.write(buf);
+        }
+        recordsN += records.size();
+        writtenSeq += records.size();
+        return writtenSeq;
+    }
+
+    /**
+     * @brief Syncs the journal to disk, up to the given record at least
+     *
+     * It must be called without holding the lock, so the other threads keep
+     * writing while the journal is synced. One of the threads waiting syncs
+     * all the records written so far, the others find theirs already synced.
+     *
+     * @param[in]  seq  sequence number of the record
+     */
+    private void sync(final long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return; // Synced along with other threads' records
+            }
+
+            final FileChannel ch;
+            final long last;
+            synchronized (this) {
+                ch = journal;
+                last = writtenSeq;
+            }
+            try {
+                if (ch != null) {
+                    ch.force(false);
+                }
+            } catch (ClosedByInterruptException cbie) {
+                throw cbie;
+            } catch (ClosedChannelException cce) {
+                // Closed meanwhile, the records are synced if it was
+                // compacted
+                synchronized (this) {
+                    if (compactedSeq < seq) {
+                        throw cce;
+                    }
+                }
+            }
+            syncedSeq = last;
+        }
+    }
+
+    /**
+     * @brief Rewrites the journal with the records of the unfinished Jobs
+     *
+     * The records are written into a temporary file, synced to disk and then
+     * renamed over the journal. Must be called holding the lock.
+     */
+    private void compact() {
+        closeJournal();
+
+        final List<JsonObject> records = new ArrayList<JsonObject>();
+        active.values().forEach(records::addAll);
+
+        final StringBuilder sb = new StringBuilder();
+        records.forEach(r -> sb.append(Catalog.toJson(r)).append('\n'));
+        final File tmp = new File(journalFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream os = new FileOutputStream(tmp)) {
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                os.getFD().sync();
+            }
+
+            try {
+                Files.move(tmp.toPath(), journalFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp.toPath(), journalFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            recordsN = records.size();
+            compactedSeq = writtenSeq;
+        } catch (IOException ioe) {
+            // Keep appending to the current journal
+            Log.error("JOURNAL", ioe);
+        }
+    }
+
+    /**
+     * @brief Replays the journal and returns the Jobs not finished
+     *
+     * The description files of the Jobs returned are deleted (if they were
+     * not yet), so the Ingestor does not create them again. This function
+     * must be called once, before starting the pipeline.
+     *
+     * @return the unfinished Jobs, in creation order
+     */
+    public synchronized List<PendingJob> recover() {
+        final List<PendingJob> pending = new ArrayList<PendingJob>();
+        if (journalFile == null || !journalFile.exists()) {
+            return pending;
+        }
+
+        int maxId = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                final JsonObject rec;
+                try {
+                    rec = Json.createReader(new StringReader(line))
+                            .readObject();
+                } catch (JsonException je) {
+                    // i.e. the last line was being written
+                    log("Skipping corrupted journal record");
+                    continue;
+                }
+
+                final int id = rec.getInt("id", 0);
+                maxId = Math.max(maxId, id);
+                final String op = rec.getString("op", "");
+                if (op.equals("done") || op.equals("fail")) {
+                    active.remove(id);
+                } else if (op.equals("create") || active.containsKey(id)) {
+                    active.computeIfAbsent(id,
+                            i -> new ArrayList<JsonObject>()).add(rec);
+                }
+            }
+        } catch (IOException ioe) {
+            Log.error("JOURNAL", ioe);
+        }
+
+        // Do not reuse the ids of the recovered Jobs
+        Job.reserveIds(maxId);
+
+        for (List<JsonObject> records : active.values()) {
+            final PendingJob p = toPendingJob(records);
+            if (p != null) {
+                pending.add(p);
+            }
+        }
+
+        // Forget the finished Jobs
+        compact();
+
+        log("Recovered " + pending.size() + " unfinished jobs");
+        return pending;
+    }
+
+    /**
+     * @brief Creates a Job again from its records
+     *
+     * @return the pending Job or null if its create record is missing
+     */
+    private PendingJob toPendingJob(final List<JsonObject> records) {
+        final JsonObject create = records.get(0);
+        if (!create.getString("op").equals("create")) {
+            return null;
+        }
+
+        final JsonObject desc = create.getJsonObject("desc");
+        final File in = new File(create.getString("in"));
+        final Job job = new Job(create.getInt("id"), in,
+                desc.getInt("fps", 0), desc);
+        job.setRecovered(true);
+
+        final Set<String> steps = new HashSet<String>();
+        String lastStep = null;
+        int chunkFrames = 0;
+        final Set<Integer> doneChunks = new TreeSet<Integer>();
+        for (JsonObject rec : records) {
+            switch (rec.getString("op")) {
+                case "step":
+                    lastStep = rec.getString("step");
+                    steps.add(lastStep);
+                    break;
+                case "split":
+                    chunkFrames = rec.getInt("chunk_frames");
+                    doneChunks.clear();
+                    break;
+                case "chunk":
+                    doneChunks.add(rec.getInt("index"));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // The Job was created, so its description file must not be
+        // ingested again
+        try {
+            Files.deleteIfExists(new File(in, Ingestor.JOB_DESC_FILE)
+                    .toPath());
+        } catch (IOException ioe) {
+            Log.error("JOURNAL", ioe);
+        }
+
+        log("Recovering JOB #" + job.getId() + " (" + in.getName() +
+                ") after " + (lastStep == null ? "creation" : lastStep) +
+                (chunkFrames > 0 ? ", " + doneChunks.size() +
+                        " chunks encoded" : ""));
+        return new PendingJob(job, steps, lastStep, chunkFrames,
+                doneChunks);
+    }
+
+    /**
+     * @brief Closes the journal file
+     */
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ioe) {
+                Log.error("JOURNAL", ioe);
+            }
+            journal = null;
+        }
+    }
+
+    private void log(final String msg) {
+        Log.log(Log.Level.INFO, "JOURNAL", msg);
+    }
+}
@@ -0,0 +1,216 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Format of a JPEG frame, as declared by its markers, and whether the frame
+ * is complete.
+ * <p>
+ * Only the markers are parsed: the SOI (start of image), the SOF (start of
+ * frame, with the dimensions, precision and components' sampling factors) and
+ * the EOI (end of image). The segments before the SOS (start of scan) are
+ * skipped by their length, and the entropy coded data is not read, except for
+ * its last bytes, where the EOI must be. So, when the file is memory-mapped,
+ * only its first and last pages are actually read.
+ * <p>
+ * Instances are immutable.
+ * @see Preflight
+ */
+class JpegHeader {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+
+    /** Padding bytes allowed after the EOI */
+    private static final int MAX_TRAILING_BYTES = 64;
+
+    private final int width;
+    private final int height;
+
+    /** Bits per sample */
+    private final int precision;
+
+    /** Horizontal and vertical sampling factors of each component (HxV) */
+    private final String sampling;
+
+    /** Why the frame is not valid, null if it is */
+    private final String error;
+
+    private JpegHeader(final int width, final int height, final int precision,
+            final String sampling, final String error) {
+        this.width = width;
+        this.height = height;
+        this.precision = precision;
+        this.sampling = sampling;
+        this.error = error;
+    }
+
+    static JpegHeader invalid(final String error) {
+        return new JpegHeader(0, 0, 0, "", error);
+    }
+
+    /**
+     * @brief Parses the header of a JPEG file, memory-mapping it
+     *
+     * @param[in]  file  JPEG file
+     * @return the header, not valid if the file can not be read
+     */
+    static JpegHeader parse(final File file) {
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            final long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                return invalid("too large");
+            }
+            return parse(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IOException ioe) {
+            return invalid(ioe.toString());
+        }
+    }
+
+    /**
+     * @brief Parses the header of a JPEG image
+     *
+     * @param[in]  buf  the whole image, from position 0 to its limit
+     * @return the header, not valid if the image is broken or truncated
+     */
+    static JpegHeader parse(final ByteBuffer buf) {
+        final int size = buf.limit();
+        if (size < 4 || (buf.get(0) & 0xFF) != 0xFF
+                || (buf.get(1) & 0xFF) != SOI) {
+            return invalid("missing SOI");
+        }
+
+        int width = 0;
+        int height = 0;
+        int precision = 0;
+        String sampling = null;
+        boolean scan = false;
+        int pos = 2;
+        while (!scan) {
+            if (pos + 4 > size) {
+                return invalid("truncated header");
+            }
+            if ((buf.get(pos) & 0xFF) != 0xFF) {
+                return invalid("invalid marker at " + pos);
+            }
+
+            final int marker = buf.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == EOI) {
+                return invalid("no image data");
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without segment (TEM, RSTn)
+                pos += 2;
+                continue;
+            }
+
+            final int length = buf.getShort(pos + 2) & 0xFFFF;
+            if (length < 2 || pos + 2 + length > size) {
+                return invalid("truncated segment at " + pos);
+            }
+
+            if (isSOF(marker)) {
+                if (length < 8) {
+                    return invalid("invalid SOF");
+                }
+                precision = buf.get(pos + 4) & 0xFF;
+                height = buf.getShort(pos + 5) & 0xFFFF;
+                width = buf.getShort(pos + 7) & 0xFFFF;
+                final int components = buf.get(pos + 9) & 0xFF;
+                if (components == 0 || length < 8 + 3 * components) {
+                    return invalid("invalid SOF");
+                }
+                final StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < components; i++) {
+                    final int factors = buf.get(pos + 11 + 3 * i) & 0xFF;
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(factors >> 4).append('x').append(factors & 0xF);
+                }
+                sampling = sb.toString();
+            } else if (marker == SOS) {
+                scan = true;
+            }
+            pos += 2 + length;
+        }
+
+        if (sampling == null) {
+            return invalid("missing SOF");
+        }
+        if (width == 0 || height == 0) {
+            return invalid("unsupported dimensions " + width + "x" + height);
+        }
+
+        // The EOI must be at the end, maybe followed by some padding
+        int end = size;
+        while (end > pos && size - end < MAX_TRAILING_BYTES
+                && (buf.get(end - 1) & 0xFF) != EOI) {
+            end--;
+        }
+        if (end - 2 < pos || (buf.get(end - 1) & 0xFF) != EOI
+                || (buf.get(end - 2) & 0xFF) != 0xFF) {
+            return invalid("missing EOI (truncated)");
+        }
+
+        return new JpegHeader(width, height, precision, sampling, null);
+    }
+
+    /**
+     * @brief Whether a marker is a start of frame (SOF0 to SOF15)
+     *
+     * DHT, JPG and DAC share the range, but they are not SOFs.
+     */
+    private static boolean isSOF(final int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+                && marker != 0xC8 && marker != 0xCC;
+    }
+
+    public boolean isValid() {
+        return error == null;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public String getSampling() {
+        return sampling;
+    }
+
+    /**
+     * @brief Gets the format (dimensions, precision and sampling) of the
+     *        frame, equal for frames that can be encoded together
+     */
+    public String getFormat() {
+        return width + "x" + height + " " + precision + "bit " + sampling;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? getFormat() : "invalid (" + error + ")";
+    }
+}
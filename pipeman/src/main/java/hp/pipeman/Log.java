@@ -0,0 +1,449 @@
+package hp.pipeman;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger of the Pipeline Manager.
+ * <p>
+ * The threads logging do not format nor write anything: they claim a slot of
+ * a preallocated ring buffer (a compare and set), store the record's fields
+ * and the message arguments into it, and go on. A background writer thread
+ * drains the ring, formats the records and writes them to the standard
+ * output, flushing once the ring is empty. So the pipeline threads do not
+ * serialize on the standard output's lock. If the ring is full, the record
+ * is dropped rather than blocking: the number of records dropped is reported
+ * by the writer and published as a gauge.
+ * <p>
+ * The messages are formatted lazily, by the writer, replacing each "{}" with
+ * the next argument. Thus, the arguments must be immutable (strings, boxed
+ * numbers and value objects such as EncodeProgress). Records below the
+ * P_LOG_LEVEL level (debug, info, warn or error; info by default) are
+ * discarded before claiming a slot.
+ * <p>
+ * Each record carries structured fields: the level, the step (or component)
+ * tag, the thread, and optionally the event, the job id and the duration.
+ * P_LOG_FORMAT selects the output: "text" (default) with one human readable
+ * line per record, or "json" with one JSON object per line. The ring holds
+ * P_LOG_BUFFER records (8192 by default).
+ * <p>
+ * Config does not log through this class, since it configures it.
+ */
+final class Log {
+
+    static enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /** A slot of the ring buffer */
+    private static final class Record {
+        /** Sequence of the record stored, written last to publish it */
+        volatile long seq = -1;
+
+        long time;
+        Level level;
+        String tag;
+        String thread;
+        String event;
+        int jobId;
+        long durationMs;
+        String fmt;
+        Object a1;
+        Object a2;
+        Object a3;
+        Throwable thrown;
+
+        /** Releases the references, so they can be collected */
+        void clear() {
+            tag = null;
+            thread = null;
+            event = null;
+            fmt = null;
+            a1 = null;
+            a2 = null;
+            a3 = null;
+            thrown = null;
+        }
+    }
+
+    /** Time the writer waits when the ring is empty, unless signaled */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Formatted output buffered before writing it */
+    private static final int FLUSH_CHARS = 16384;
+
+    private static final Level minLevel = parseLevel(
+            Config.getString("P_LOG_LEVEL", "info"));
+
+    private static final boolean json =
+            Config.getString("P_LOG_FORMAT", "text").equalsIgnoreCase("json");
+
+    private static final Record ring[] = createRing(
+            Config.getInt("P_LOG_BUFFER", 8192));
+
+    private static final int mask = ring.length - 1;
+
+    /** Next sequence to claim */
+    private static final AtomicLong tail = new AtomicLong();
+
+    /** Next sequence to write, only written by the writer */
+    private static volatile long head = 0;
+
+    private static final LongAdder dropped = new LongAdder();
+
+    /** Whether the writer is (about to be) parked, waiting for records */
+    private static volatile boolean writerWaiting = false;
+
+    /** Whether the JVM is exiting, so the writer ends once the ring is
+     *  empty */
+    private static volatile boolean closing = false;
+
+    private static final PrintStream out = System.out;
+
+    private static final Thread writer;
+
+    static {
+        // A platform thread, whatever P_THREAD_MODE is
+        writer = new Thread(Log::drain, "LOG");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException ie) {
+                // exiting anyway
+            }
+        }, "LOG-FLUSH"));
+    }
+
+    private Log() {
+    }
+
+    private static Level parseLevel(final String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            System.out.println("[LOG]:Unknown log level '" + name +
+                    "', using info");
+            return Level.INFO;
+        }
+    }
+
+    private static Record[] createRing(final int capacity) {
+        int n = Integer.highestOneBit(Math.max(16, capacity));
+        if (n < capacity) {
+            n <<= 1;
+        }
+        final Record r[] = new Record[n];
+        for (int i = 0; i < n; i++) {
+            r[i] = new Record();
+        }
+        return r;
+    }
+
+    /**
+     * @brief Whether the records of the given level are logged
+     *
+     * Useful to skip building arguments that are expensive.
+     */
+    static boolean isEnabled(final Level level) {
+        return level.ordinal() >= minLevel.ordinal();
+    }
+
+    /**
+     * @brief Logs a message
+     *
+     * @param[in]  level  record level
+     * @param[in]  tag    step or component logging, i.e. ENCODE
+     * @param[in]  msg    message
+     */
+    static void log(final Level level, final String tag, final String msg) {
+        append(level, tag, null, 0, -1, msg, null, null, null, null);
+    }
+
+    /**
+     * @brief Logs a message with one argument, formatted by the writer
+     *
+     * @param[in]  fmt  message, where "{}" is replaced by the argument
+     */
+    static void log(final Level level, final String tag, final String fmt,
+            final Object a1) {
+        append(level, tag, null, 0, -1, fmt, a1, null, null, null);
+    }
+
+    static void log(final Level level, final String tag, final String fmt,
+            final Object a1, final Object a2) {
+        append(level, tag, null, 0, -1, fmt, a1, a2, null, null);
+    }
+
+    static void log(final Level level, final String tag, final String fmt,
+            final Object a1, final Object a2, final Object a3) {
+        append(level, tag, null, 0, -1, fmt, a1, a2, a3, null);
+    }
+
+    /**
+     * @brief Logs a job's event
+     *
+     * @param[in]  level       record level
+     * @param[in]  tag         step logging the event
+     * @param[in]  event       what happened, i.e. "queued" or "processed"
+     * @param[in]  jobId       id of the job
+     * @param[in]  durationMs  how long it took (ms), -1 if not applicable
+     */
+    static void event(final Level level, final String tag, final String event,
+            final int jobId, final long durationMs) {
+        append(level, tag, event, jobId, durationMs, null, null, null, null,
+                null);
+    }
+
+    /**
+     * @brief Logs an error, along with the stack trace of its cause
+     */
+    static void error(final String tag, final String msg,
+            final Throwable thrown) {
+        append(Level.ERROR, tag, null, 0, -1, msg, null, null, null, thrown);
+    }
+
+    static void error(final String tag, final Throwable thrown) {
+        error(tag, null, thrown);
+    }
+
+    /**
+     * @brief Gets the number of records dropped because the ring was full
+     */
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @brief Waits until the records logged so far are written
+     *
+     * @param[in]  timeoutMs  maximum time to wait (ms)
+     */
+    static void flush(final long timeoutMs) {
+        final long target = tail.get();
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (head < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void append(final Level level, final String tag,
+            final String event, final int jobId, final long durationMs,
+            final String fmt, final Object a1, final Object a2,
+            final Object a3, final Throwable thrown) {
+        if (level.ordinal() < minLevel.ordinal()) {
+            return;
+        }
+
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        final Record r = ring[(int) seq & mask];
+        r.time = System.currentTimeMillis();
+        r.level = level;
+        r.tag = tag;
+        r.thread = Thread.currentThread().getName();
+        r.event = event;
+        r.jobId = jobId;
+        r.durationMs = durationMs;
+        r.fmt = fmt;
+        r.a1 = a1;
+        r.a2 = a2;
+        r.a3 = a3;
+        r.thrown = thrown;
+        r.seq = seq;
+
+        if (writerWaiting) {
+            writerWaiting = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * @brief Writer's task: writes the records in sequence order
+     */
+    private static void drain() {
+        final StringBuilder sb = new StringBuilder(FLUSH_CHARS * 2);
+        long reportedDropped = 0;
+        while (true) {
+            final long h = head;
+            final Record r = ring[(int) h & mask];
+            if (r.seq != h) {
+                // Empty, or the record is still being stored
+                write(sb);
+                if (closing && tail.get() == h) {
+                    return;
+                }
+
+                writerWaiting = true;
+                if (r.seq != h) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                writerWaiting = false;
+
+                final long d = dropped.sum();
+                if (d != reportedDropped) {
+                    format(sb, System.currentTimeMillis(), Level.WARN, "LOG",
+                            "LOG", null, 0, -1, "Dropped {} records, the " +
+                            "buffer was full", d - reportedDropped, null,
+                            null, null);
+                    reportedDropped = d;
+                }
+                continue;
+            }
+
+            try {
+                format(sb, r.time, r.level, r.tag, r.thread, r.event,
+                        r.jobId, r.durationMs, r.fmt, r.a1, r.a2, r.a3,
+                        r.thrown);
+            } catch (RuntimeException re) {
+                // i.e. an argument's toString failed, skip the record
+                sb.append("[LOG]:Unable to format a record: ").append(re)
+                        .append('\n');
+            }
+            r.clear();
+            head = h + 1;
+
+            if (sb.length() >= FLUSH_CHARS) {
+                write(sb);
+            }
+        }
+    }
+
+    private static void write(final StringBuilder sb) {
+        if (sb.length() > 0) {
+            out.append(sb);
+            out.flush();
+            sb.setLength(0);
+        }
+    }
+
+    private static void format(final StringBuilder sb, final long time,
+            final Level level, final String tag, final String thread,
+            final String event, final int jobId, final long durationMs,
+            final String fmt, final Object a1, final Object a2,
+            final Object a3, final Throwable thrown) {
+        if (json) {
+            sb.append("{\"ts\":").append(time);
+            sb.append(",\"level\":\"").append(level).append('"');
+            field(sb, "step", tag);
+            field(sb, "thread", thread);
+            field(sb, "event", event);
+            if (jobId > 0) {
+                sb.append(",\"job\":").append(jobId);
+            }
+            if (durationMs >= 0) {
+                sb.append(",\"duration_ms\":").append(durationMs);
+            }
+            if (fmt != null) {
+                sb.append(",\"msg\":\"");
+                final int start = sb.length();
+                message(sb, fmt, a1, a2, a3);
+                escape(sb, start);
+                sb.append('"');
+            }
+            if (thrown != null) {
+                field(sb, "error", stackTrace(thrown));
+            }
+            sb.append("}\n");
+            return;
+        }
+
+        sb.append(level);
+        if (level.name().length() < 5) {
+            sb.append(' ');
+        }
+        sb.append(" [").append(tag).append("]:");
+        if (event != null) {
+            if (jobId > 0) {
+                sb.append("JOB #").append(jobId).append(' ');
+            }
+            sb.append(event);
+            if (durationMs >= 0) {
+                sb.append(" (").append(durationMs).append("ms)");
+            }
+        }
+        if (fmt != null) {
+            message(sb, fmt, a1, a2, a3);
+        }
+        sb.append('\n');
+        if (thrown != null) {
+            sb.append(stackTrace(thrown));
+        }
+    }
+
+    /**
+     * @brief Appends a message, replacing each "{}" with the next argument
+     */
+    private static void message(final StringBuilder sb, final String fmt,
+            final Object a1, final Object a2, final Object a3) {
+        int arg = 0;
+        int from = 0;
+        int i;
+        while (arg < 3 && (i = fmt.indexOf("{}", from)) >= 0) {
+            sb.append(fmt, from, i);
+            sb.append(arg == 0 ? a1 : arg == 1 ? a2 : a3);
+            arg++;
+            from = i + 2;
+        }
+        sb.append(fmt, from, fmt.length());
+    }
+
+    private static void field(final StringBuilder sb, final String name,
+            final String value) {
+        if (value != null) {
+            sb.append(",\"").append(name).append("\":\"");
+            final int start = sb.length();
+            sb.append(value);
+            escape(sb, start);
+            sb.append('"');
+        }
+    }
+
+    /**
+     * @brief Escapes, as a JSON string, the characters from start on
+     */
+    private static void escape(final StringBuilder sb, final int start) {
+        for (int i = start; i < sb.length(); i++) {
+            final char c = sb.charAt(i);
+            String esc = null;
+            if (c == '"' || c == '\\') {
+                esc = "\\" + c;
+            } else if (c == '\n') {
+                esc = "\\n";
+            } else if (c == '\r') {
+                esc = "\\r";
+            } else if (c == '\t') {
+                esc = "\\t";
+            } else if (c < 0x20) {
+                esc = String.format("\\u%04x", (int) c);
+            }
+            if (esc != null) {
+                sb.replace(i, i + 1, esc);
+                i += esc.length() - 1;
+            }
+        }
+    }
+
+    private static String stackTrace(final Throwable thrown) {
+        final StringWriter sw = new StringWriter();
+        thrown.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+}
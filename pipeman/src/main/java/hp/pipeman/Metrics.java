@@ -0,0 +1,286 @@
+package hp.pipeman;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the Pipeline Manager's metrics.
+ * <p>
+ * It keeps the metrics of each pipeline step (see PipeStepMetrics), the end
+ * to end latency of the jobs (from their ingestion to the completion of the
+ * last step), the encoding throughput by x264 preset and a set of gauges
+ * (i.e. the encoder pool's utilization).
+ * <p>
+ * The metrics are published:
+ *  - through JMX, under the "hp.pipeman" domain, as they are registered.
+ *  - through HTTP, in the Prometheus text format, at
+ *    http://&lt;host&gt;:&lt;P_METRICS_PORT&gt;/metrics once startHttpServer
+ *    is called. The port is 9400 by default, 0 disables it.
+ */
+final class Metrics {
+
+    /** A value sampled when the metrics are scraped */
+    private static class Gauge {
+        final String name;
+        final String help;
+        final DoubleSupplier value;
+
+        Gauge(final String name, final String help,
+                final DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /** Quantiles published for each histogram */
+    private static final double QUANTILES[] = { 0.5, 0.9, 0.99 };
+
+    private static final List<PipeStepMetrics> steps =
+            new CopyOnWriteArrayList<PipeStepMetrics>();
+
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<Gauge>();
+
+    /** Time from the ingestion of a job to its completion (ms) */
+    private static final Histogram jobLatency = new Histogram();
+
+    /** Time to encode a frame by x264 preset (us) */
+    private static final Map<String, Histogram> frameEncodeTime =
+            new ConcurrentSkipListMap<String, Histogram>();
+
+    private static HttpServer server = null;
+
+    static {
+        registerMBean("hp.pipeman:type=Pipeline,name=jobLatency", jobLatency);
+        registerGauge("log_dropped_records",
+                "Log records dropped because the log buffer was full",
+                Log::getDropped);
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @brief Registers the metrics of a pipeline step
+     */
+    static void register(final PipeStepMetrics metrics) {
+        steps.add(metrics);
+        final String name = "hp.pipeman:type=PipeStep,name=" +
+                metrics.getName();
+        registerMBean(name, metrics);
+        registerMBean(name + ",metric=waitTime", metrics.getWaitTime());
+        registerMBean(name + ",metric=serviceTime", metrics.getServiceTime());
+    }
+
+    /**
+     * @brief Registers a gauge
+     *
+     * @param[in]  name   metric name, without the "pipeman_" prefix
+     * @param[in]  help   metric description
+     * @param[in]  value  gets the current value
+     */
+    static void registerGauge(final String name, final String help,
+            final DoubleSupplier value) {
+        gauges.add(new Gauge("pipeman_" + name, help, value));
+    }
+
+    /**
+     * @brief Registers an MBean in the platform's MBean server
+     *
+     * Failures are logged, since the metrics are not essential.
+     */
+    static void registerMBean(final String name, final Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                    new ObjectName(name));
+        } catch (JMException jme) {
+            Log.log(Log.Level.WARN, "METRICS", "Unable to register {}: {}",
+                    name, jme.toString());
+        }
+    }
+
+    /**
+     * @brief Records the completion of a job by the last pipeline step
+     */
+    static void jobCompleted(final Job job) {
+        jobLatency.record(System.currentTimeMillis() - job.getCreateTime());
+    }
+
+    /**
+     * @brief Records the throughput of an encoding
+     *
+     * @param[in]  params     parameters the job was encoded with
+     * @param[in]  frames     frames encoded
+     * @param[in]  elapsedMs  time the encoding took (ms)
+     */
+    static void encodeCompleted(final EncodeParams params, final long frames,
+            final long elapsedMs) {
+        frameEncodeTime.computeIfAbsent(params.getPreset(),
+                k -> new Histogram()).record(elapsedMs * 1000 / frames);
+    }
+
+    static Histogram getJobLatency() {
+        return jobLatency;
+    }
+
+    /**
+     * @brief Gets the metrics of the registered pipeline steps
+     */
+    static List<PipeStepMetrics> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @brief Starts serving the metrics at /metrics, on P_METRICS_PORT
+     */
+    static synchronized void startHttpServer() {
+        final int port = Config.getInt("P_METRICS_PORT", 9400);
+        if (server != null || port <= 0) {
+            return;
+        }
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(
+                    Config.getString("P_METRICS_HOST", "0.0.0.0"), port), 0);
+            server.createContext("/metrics", Metrics::handle);
+            server.start();
+            Log.log(Log.Level.INFO, "METRICS", "Serving metrics on port {}",
+                    port);
+        } catch (IOException ioe) {
+            Log.error("METRICS", "Unable to serve metrics on port " + port,
+                    ioe);
+            server = null;
+        }
+    }
+
+    /**
+     * @brief Stops serving the metrics
+     */
+    static synchronized void stopHttpServer() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private static void handle(final HttpExchange exchange)
+            throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final byte body[] = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @brief Formats all the metrics in the Prometheus text format
+     */
+    static String format() {
+        final StringBuilder sb = new StringBuilder();
+
+        header(sb, "pipeman_queue_depth", "gauge",
+                "Jobs waiting in the pipeline step's queue.");
+        for (PipeStepMetrics m : steps) {
+            sample(sb, "pipeman_queue_depth", step(m), m.getQueueDepth());
+        }
+
+        header(sb, "pipeman_wait_ms", "summary",
+                "Time the jobs waited in the pipeline step's queue.");
+        for (PipeStepMetrics m : steps) {
+            summary(sb, "pipeman_wait_ms", step(m), m.getWaitTime());
+        }
+
+        header(sb, "pipeman_service_ms", "summary",
+                "Time the pipeline step took to process the jobs.");
+        for (PipeStepMetrics m : steps) {
+            summary(sb, "pipeman_service_ms", step(m), m.getServiceTime());
+        }
+
+        header(sb, "pipeman_jobs_total", "counter",
+                "Jobs processed by the pipeline step.");
+        for (PipeStepMetrics m : steps) {
+            sample(sb, "pipeman_jobs_total", step(m) + ",result=\"success\"",
+                    m.getSuccessCount());
+            sample(sb, "pipeman_jobs_total", step(m) + ",result=\"error\"",
+                    m.getErrorCount());
+        }
+
+        header(sb, "pipeman_job_latency_ms", "summary",
+                "Time from the ingestion of a job to its publication.");
+        summary(sb, "pipeman_job_latency_ms", null, jobLatency);
+
+        header(sb, "pipeman_frame_encode_us", "summary",
+                "Time to encode a frame, by x264 preset.");
+        frameEncodeTime.forEach((preset, h) -> summary(sb,
+                "pipeman_frame_encode_us", "preset=\"" + preset + "\"", h));
+
+        for (Gauge g : gauges) {
+            header(sb, g.name, "gauge", g.help);
+            sample(sb, g.name, null, g.value.getAsDouble());
+        }
+
+        return sb.toString();
+    }
+
+    private static String step(final PipeStepMetrics m) {
+        return "step=\"" + m.getName() + "\"";
+    }
+
+    private static void header(final StringBuilder sb, final String name,
+            final String type, final String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    private static void sample(final StringBuilder sb, final String name,
+            final String labels, final double value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static void summary(final StringBuilder sb, final String name,
+            final String labels, final Histogram h) {
+        for (double q : QUANTILES) {
+            sample(sb, name, (labels != null ? labels + "," : "") +
+                    "quantile=\"" + q + "\"", h.getPercentile(q * 100));
+        }
+        sample(sb, name + "_sum", labels, h.getSum());
+        sample(sb, name + "_count", labels, h.getCount());
+    }
+}
@@ -0,0 +1,291 @@
+package hp.pipeman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ParallelPipeStep turns the pipeline chain into a graph: it fans each Job
+ * out to several branches, which process it at the same time, and joins them
+ * before queuing the Job into the next step. Example:
+ *
+ *                      +-> StepB -> StepC -+
+ *  (new job) -> StepA -+                   +-> StepE
+ *                      +-> StepD ----------+
+ *
+ * Each branch is a chain of PipeSteps (any implementation, i.e. a
+ * BaseThreadPipeStep or the EncoderPool), whose last step is linked to the
+ * branch's end by addBranch. The Job continues to the next step once it has
+ * reached the end of all the branches. If any branch failed it, the Job
+ * continues with the ERROR status, as it does after a failed step. Jobs that
+ * arrive already failed are not fanned out, they are joined right away.
+ * <p>
+ * The Jobs in each branch are limited by the P_BRANCH_LIMIT_&lt;branch&gt;
+ * setting (i.e. P_BRANCH_LIMIT_THUMBNAIL), unlimited by default. Once a branch
+ * has that many Jobs, the previous step blocks until one of them reaches the
+ * branch's end, as it does on a full queue.
+ * <p>
+ * Once all the branches are done, the join is recorded in the JobJournal as
+ * the completion of this step. The ends of the branches forward straight to
+ * the next step the Jobs that were not fanned out, such as the Jobs recovered
+ * into a branch.
+ */
+class ParallelPipeStep implements PipeStep {
+
+    /** Name of the step, used for logging and the journal */
+    private final String name;
+
+    /** Branches the Jobs are fanned out to */
+    private final List<Branch> branches = new ArrayList<Branch>();
+
+    /** Jobs fanned out and not yet joined, by Job id */
+    private final Map<Integer, FannedOut> pending =
+            new ConcurrentHashMap<Integer, FannedOut>();
+
+    /** Next step in the pipeline, after the join */
+    private volatile PipeStep nextPipeStep = null;
+
+    ParallelPipeStep(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @brief Adds a branch
+     *
+     * Must be called before the pipeline is started. The branch's last step
+     * is linked to the returned branch end.
+     *
+     * @param[in]  branchName  name of the branch, used for logging, its
+     *                         P_BRANCH_LIMIT setting and its metrics
+     * @param[in]  head        first step of the branch
+     * @param[in]  tail        last step of the branch (the head itself if
+     *                         the branch has a single step)
+     * @return the end of the branch, where other routes within the branch
+     *         (i.e. the Hasher's cache hits) must continue to
+     */
+    PipeStep addBranch(final String branchName, final PipeStep head,
+            final PipeStep tail) {
+        final Branch branch = new Branch(branchName, head,
+                Config.getInt("P_BRANCH_LIMIT_" + branchName, 0));
+        branches.add(branch);
+        tail.pipeStepSetNext(branch);
+        Metrics.registerGauge("branch_jobs_" + branchName.toLowerCase(),
+                "Jobs in the " + branchName + " branch of " + name + ".",
+                branch.inFlight::get);
+        return branch;
+    }
+
+    @Override
+    public PipeStep pipeStepSetNext(final PipeStep nextPipeStep) {
+        this.nextPipeStep = nextPipeStep;
+        return nextPipeStep;
+    }
+
+    @Override
+    public void pipeStart() {
+        // Start from back to front, as the chain does
+        if (nextPipeStep != null) {
+            nextPipeStep.pipeStart();
+        }
+        for (Branch branch : branches) {
+            branch.head.pipeStart();
+        }
+    }
+
+    @Override
+    public void pipeStop() {
+        // Stop from front to back, as the chain does
+        for (Branch branch : branches) {
+            branch.head.pipeStop();
+        }
+        if (nextPipeStep != null) {
+            nextPipeStep.pipeStop();
+        }
+    }
+
+    /**
+     * Queues the job into all the branches, blocking while any of them has
+     * reached its limit of jobs or its first step's queue is full.
+     *
+     * @throws IllegalStateException if the calling thread is interrupted
+     *         while waiting
+     */
+    @Override
+    public void pipeStepQueueJob(final Job job) {
+        Log.event(Log.Level.DEBUG, name, "queued", job.getId(), -1);
+        if (job.isFailed()) {
+            // None of the branches has to process it
+            join(job);
+            return;
+        }
+
+        // Take room in all the branches first, so a Job is never in some of
+        // them while waiting for the rest
+        int acquired = 0;
+        try {
+            for (Branch branch : branches) {
+                branch.acquire();
+                acquired++;
+            }
+        } catch (InterruptedException ie) {
+            for (int i = 0; i < acquired; i++) {
+                branches.get(i).release();
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted queuing JOB #" +
+                    job.getId(), ie);
+        }
+
+        pending.put(job.getId(), new FannedOut(branches.size()));
+        for (int i = 0; i < branches.size(); i++) {
+            try {
+                branches.get(i).head.pipeStepQueueJob(job);
+            } catch (RuntimeException re) {
+                // The branches not reached are done, so the Job is joined
+                // once the ones already reached are
+                for (int j = i; j < branches.size(); j++) {
+                    branches.get(j).arrive(job);
+                }
+                throw re;
+            }
+        }
+    }
+
+    /**
+     * @brief Joins a Job that has reached the end of a branch
+     *
+     * The Job is queued into the next step once all the branches are done.
+     * Called by the thread of the branch's last step.
+     */
+    private void join(final Job job) {
+        final FannedOut fannedOut = pending.get(job.getId());
+        if (fannedOut != null && fannedOut.left.decrementAndGet() > 0) {
+            return; // There are branches pending
+        }
+        pending.remove(job.getId());
+
+        final boolean ret = !job.isFailed();
+        if (!ret) {
+            synchronized(job) {
+                job.setStatus(Job.JobStatus.ERROR);
+            }
+        } else if (fannedOut != null) {
+            JobJournal.getInstance().stepCompleted(job, name);
+        }
+
+        // Time since the Job was fanned out
+        Log.event(ret ? Log.Level.INFO : Log.Level.WARN, name,
+                ret ? "joined" : "failed", job.getId(), fannedOut == null ? -1
+                        : System.currentTimeMillis() - fannedOut.startTime);
+
+        if (nextPipeStep != null) {
+            try {
+                nextPipeStep.pipeStepQueueJob(job);
+            } catch (RuntimeException re) {
+                // Some basic error handling so the pipeline is not broken
+                // due to any problem with a particular job or step.
+                Log.error(name, re);
+                synchronized(job) {
+                    job.setStatus(Job.JobStatus.ERROR);
+                }
+                JobJournal.getInstance().failed(job);
+            }
+        }
+    }
+
+    /** A Job fanned out to the branches */
+    private static final class FannedOut {
+        /** Branches that have not completed the Job */
+        final AtomicInteger left;
+
+        /** Time the Job was fanned out (ms) */
+        final long startTime = System.currentTimeMillis();
+
+        FannedOut(final int branchesN) {
+            this.left = new AtomicInteger(branchesN);
+        }
+    }
+
+    /**
+     * The end of a branch, the step the last step of the branch continues to.
+     */
+    private final class Branch implements PipeStep {
+
+        /** Name of the branch */
+        private final String branchName;
+
+        /** First step of the branch */
+        private final PipeStep head;
+
+        /** Room for Jobs in the branch, null if unlimited */
+        private final Semaphore room;
+
+        /** Jobs fanned out to the branch that have not reached its end */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Branch(final String branchName, final PipeStep head,
+                final int limit) {
+            this.branchName = branchName;
+            this.head = head;
+            this.room = limit > 0 ? new Semaphore(limit) : null;
+        }
+
+        void acquire() throws InterruptedException {
+            if (room != null && !room.tryAcquire()) {
+                Log.log(Log.Level.INFO, name, "Branch {} full, waiting",
+                        branchName);
+                room.acquire();
+            }
+            inFlight.incrementAndGet();
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+            if (room != null) {
+                room.release();
+            }
+        }
+
+        /**
+         * @brief Accounts a Job fanned out to the branch as done
+         */
+        void arrive(final Job job) {
+            release();
+            join(job);
+        }
+
+        /**
+         * The branch ends at the join, it can not be linked to another step.
+         */
+        @Override
+        public PipeStep pipeStepSetNext(final PipeStep nextPipeStep) {
+            throw new UnsupportedOperationException(
+                    "The " + branchName + " branch ends at " + name);
+        }
+
+        @Override
+        public void pipeStart() {
+            // The steps after the join are started by the ParallelPipeStep
+        }
+
+        @Override
+        public void pipeStop() {
+            // The steps after the join are stopped by the ParallelPipeStep
+        }
+
+        @Override
+        public void pipeStepQueueJob(final Job job) {
+            Log.log(Log.Level.DEBUG, name, "JOB #{} completed the {} branch",
+                    job.getId(), branchName);
+            if (pending.containsKey(job.getId())) {
+                arrive(job);
+            } else {
+                // Not fanned out (i.e. recovered into the branch)
+                join(job);
+            }
+        }
+    }
+}
@@ -1,48 +1,92 @@
 package hp.pipeman;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
 
 public class PipeMan {
 
-    private static List<String> getEncodersId() {
-        List<String> encoderIds = new ArrayList<String>();
+    /** Name of the step joining the encoding and the thumbnail extraction */
+    static final String MEDIA_STEP_NAME = "MEDIA";
 
-        File encFile = new File("/encoders");
-        File files[];
-        while ((files = encFile.listFiles()).length == 0) {
-            try { 
-                Thread.sleep(1000);
-            } catch (InterruptedException ie) { 
-                break;
-            }
-        }
+    public static void main(String args[]) {
+        // The volumes' mount points, configurable so pipeman can run out of
+        // its container (i.e. the load harness, see benchmarks/README.md)
+        File inPath = new File(Config.getString("P_JOBS_IN", "/jobs_in"));
 
-        for (File f: files) {
-            encoderIds.add(f.getName());
-        }
+        Log.log(Log.Level.INFO, "PIPELINE", "Settign up");
 
-        return encoderIds;
-    }
+        Ingestor ingestor = new Ingestor(inPath);
 
-    public static void main(String args[]) {
-        File inPath = new File("/jobs_in");
-        //File outPath = new File("/jobs_out");
+        // Validates the frames before encoding, rejecting (or repairing,
+        // according to P_PREFLIGHT_POLICY) the broken sequences.
+        Preflight preflight = new Preflight();
 
-        System.out.println("[PIPELINE]: Settign up");
+        // Looks up the sequences in the encode cache, so those already
+        // encoded skip the encoders and go straight to the join.
+        Hasher hasher = new Hasher(EncodeCache.getInstance());
+
+        // The encoder containers are added to (and removed from) the pool as
+        // they register in /encoders, with as many concurrent encodings per
+        // container as P_ENCODER_SLOTS.
+        EncoderPool encoders = new EncoderPool(
+                new File(Config.getString("P_ENCODERS_DIR", "/encoders")),
+                Config.getInt("P_ENCODER_SLOTS", 1));
+
+        // Extracts the streams' thumbnails while they are encoded
+        Thumbnailer thumbnailer = new Thumbnailer();
+
+        // The encoding and the thumbnail extraction run in parallel branches,
+        // joined before the publisher:
+        //
+        //                           +-> hasher -> encoders -+
+        //  ingestor -> preflight ---+                       +--> publisher
+        //                           +-> thumbnailer --------+
+        ParallelPipeStep media = new ParallelPipeStep(MEDIA_STEP_NAME);
+        hasher.pipeStepSetNext(encoders);
+        PipeStep encodeEnd = media.addBranch(EncoderPool.STEP_NAME, hasher,
+                encoders);
+        media.addBranch(Thumbnailer.STEP_NAME, thumbnailer, thumbnailer);
+        hasher.setHitPipeStep(encodeEnd);
 
-        Ingestor ingestor = new Ingestor(inPath);
-        List<String> encoderIds = getEncodersId();
-        Encoder encoder = null;
-        for(String id : encoderIds) {
-            encoder = new Encoder(id);
-        }
-        
         Publisher publisher = Publisher.getInstance();
-        ingestor.pipeStepSetNext(encoder).pipeStepSetNext(publisher);
+        ingestor.pipeStepSetNext(preflight).pipeStepSetNext(media)
+                .pipeStepSetNext(publisher);
+
+        // Recover the jobs in progress when the previous instance stopped.
+        // It must be done before the ingestor starts, since it re-creates the
+        // jobs whose descriptors were already consumed.
+        List<JobJournal.PendingJob> pending = JobJournal.getInstance().recover();
+
+        // Publish the pipeline steps' metrics on P_METRICS_PORT
+        Metrics.startHttpServer();
+
+        // Serve the published streams, and their changes, on P_FEED_PORT
+        CatalogFeed.start(publisher.getCatalog());
         ingestor.pipeStart();
 
+        // Resume the recovered jobs after the steps that completed them (the
+        // branches may have completed them in any order). Jobs resumed within
+        // the encoding branch keep the thumbnail copied by the encoder.
+        for (JobJournal.PendingJob p : pending) {
+            if (p.hasCompleted(MEDIA_STEP_NAME) ||
+                    p.hasCompleted(EncoderPool.STEP_NAME)) {
+                publisher.pipeStepQueueJob(p.job);
+            } else if (isEncoded(p.job)) {
+                Log.log(Log.Level.INFO, "PIPELINE",
+                        "JOB #{} was encoded before the restart",
+                        p.job.getId());
+                publisher.pipeStepQueueJob(p.job);
+            } else if (p.chunkFrames > 0) {
+                Preflight.restore(p.job);
+                encoders.resumeJob(p.job, p.chunkFrames, p.doneChunks);
+            } else if (p.hasCompleted(Preflight.STEP_NAME)) {
+                Preflight.restore(p.job);
+                media.pipeStepQueueJob(p.job);
+            } else {
+                preflight.pipeStepQueueJob(p.job);
+            }
+        }
+
         try {
             publisher.join();
         } catch (InterruptedException ie) {
@@ -51,4 +95,18 @@ public class PipeMan {
         
     }
 
+    /**
+     * @brief Whether a recovered job was encoded before the restart, even if
+     *        the journal does not record it
+     *
+     * The image sequence is deleted only once its stream is complete (by
+     * encode.sh, or by pipeman for the cache hits and the piped archives), so
+     * a job without its image sequence and with a manifest is encoded.
+     * Resuming it would delete the stream and fail for the lack of frames.
+     */
+    private static boolean isEncoded(final Job job) {
+        return !job.getIn().exists() &&
+                new File(EncodeCache.getOutputDir(job), "stream.mpd").exists();
+    }
+
 }
\ No newline at end of file
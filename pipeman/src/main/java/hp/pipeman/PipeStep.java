@@ -9,6 +9,9 @@ package hp.pipeman;
  * 
  * The processing of the new job is initiated by queuing it in the StepA. After
  * each steps do its processing on the Job, queues it into the next step.
+ * 
+ * Chains may be fanned out to parallel branches, and joined, with a
+ * ParallelPipeStep.
  */
 public interface PipeStep {
 
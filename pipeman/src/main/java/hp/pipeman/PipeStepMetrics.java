@@ -0,0 +1,109 @@
+package hp.pipeman;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Instrumentation of a pipeline step:
+ *  - the number of jobs waiting in its queue,
+ *  - the time the jobs wait in its queue (ms),
+ *  - the time it takes to process a job (ms),
+ *  - the number of jobs processed successfully and with error.
+ * <p>
+ * Recording is lock free, so it can be done from the step's threads for every
+ * job. The metrics are published by Metrics.
+ * @see Metrics
+ */
+class PipeStepMetrics implements PipeStepMetricsMXBean {
+
+    /** Name of the pipeline step */
+    private final String name;
+
+    /** Gets the number of jobs waiting in the step's queue */
+    private final IntSupplier queueDepth;
+
+    /** Time the jobs waited in the step's queue (ms) */
+    private final Histogram waitTime;
+
+    /** Time the step took to process the jobs (ms) */
+    private final Histogram serviceTime = new Histogram();
+
+    private final LongAdder successCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+
+    /**
+     * @param[in]  name        name of the pipeline step
+     * @param[in]  queueDepth  gets the number of jobs in the step's queue
+     * @param[in]  waitTime    histogram of the time the jobs wait in the
+     *                         step's queue, for queues that keep their own
+     *                         statistics. null to create a new one, filled
+     *                         with jobQueued and jobRetired.
+     */
+    PipeStepMetrics(final String name, final IntSupplier queueDepth,
+            final Histogram waitTime) {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.waitTime = waitTime != null ? waitTime : new Histogram();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Histogram getWaitTime() {
+        return waitTime;
+    }
+
+    public Histogram getServiceTime() {
+        return serviceTime;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return successCount.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    /**
+     * @brief Records that a job has been queued into the step
+     */
+    void jobQueued(final Job job) {
+        job.setQueueTime(System.currentTimeMillis());
+    }
+
+    /**
+     * @brief Records that a job has been retired from the step's queue
+     */
+    void jobRetired(final Job job) {
+        waitTime.record(System.currentTimeMillis() - job.getQueueTime());
+    }
+
+    /**
+     * @brief Records the time taken to process a job
+     *
+     * @param[in]  startTime  System.nanoTime() when the processing started
+     */
+    void jobServiced(final long startTime) {
+        serviceTime.record((System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * @brief Records the result of the processing of a job
+     */
+    void jobCompleted(final boolean success) {
+        if (success) {
+            successCount.increment();
+        } else {
+            errorCount.increment();
+        }
+    }
+}
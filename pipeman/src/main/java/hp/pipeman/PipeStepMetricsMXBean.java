@@ -0,0 +1,25 @@
+package hp.pipeman;
+
+/**
+ * Management interface of the metrics of a pipeline step, so they can be
+ * monitored through JMX. The step's wait and service time histograms are
+ * registered as separate HistogramMXBeans.
+ * @see PipeStepMetrics
+ */
+public interface PipeStepMetricsMXBean {
+
+    /**
+     * @brief Gets the number of jobs waiting in the step's queue
+     */
+    public int getQueueDepth();
+
+    /**
+     * @brief Gets the number of jobs successfully processed by the step
+     */
+    public long getSuccessCount();
+
+    /**
+     * @brief Gets the number of jobs the step failed to process
+     */
+    public long getErrorCount();
+}
@@ -0,0 +1,225 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.json.JsonObject;
+
+/**
+ * Incremental, parallel polling Ingest Storage monitoring strategy.
+ * <p>
+ * It is intended for file systems where change notifications are not
+ * available or not reliable (i.e. NFS mounts). Each pass fans out the
+ * directories of the Ingest Storage over a ForkJoin pool. For each directory,
+ * a state with its modification time, counted frames and parsed job
+ * description is cached, so:
+ *  - directories whose modification time did not change since the last pass
+ *    are skipped with a single stat;
+ *  - the frame files of a directory are not listed until its job description
+ *    file exists.
+ * <p>
+ * Since the modification time resolution of some file systems is coarse, a
+ * directory modified too recently (see P_INGEST_MTIME_SLACK_MS) is checked
+ * again on the next pass even if its modification time does not change.
+ * @see IngestMonitor
+ */
+class PollIngestMonitor implements IngestMonitor {
+
+    /** Directories checked by a single fork join task */
+    private static final int TASK_THRESHOLD = 64;
+
+    /** State cached for each image sequence directory */
+    private static class DirState {
+        /** Directory modification time when checked, -1 to force a check */
+        volatile long mtime = -1;
+
+        /** Parsed job description, null if not yet available */
+        volatile JsonObject desc = null;
+
+        /** Number of frame files found on the last check, -1 if not listed */
+        volatile int frames = -1;
+    }
+
+    /** full path to the directory to look after new image sequeces */
+    private final File pathToMonitor;
+
+    /** time between two consecutive passes (ms) */
+    private final long scanPeriod;
+
+    /** modification time age below which it is not trusted (ms) */
+    private final long mtimeSlack;
+
+    private final ForkJoinPool pool;
+
+    /** State of each image sequence directory, by directory name */
+    private final ConcurrentHashMap<String, DirState> dirs =
+            new ConcurrentHashMap<String, DirState>();
+
+    /** Directories ready to be processed, not yet reported */
+    private final Deque<File> ready = new ArrayDeque<File>();
+
+    public PollIngestMonitor(final File pathToMonitor, final long scanPeriod,
+            final long mtimeSlack, final int parallelism) {
+        this.pathToMonitor = pathToMonitor;
+        this.scanPeriod = scanPeriod;
+        this.mtimeSlack = mtimeSlack;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    @Override
+    public File nextReadyPath() throws InterruptedException {
+        while (ready.isEmpty()) {
+            scan();
+            if (ready.isEmpty()) {
+                Thread.sleep(scanPeriod);
+            }
+        }
+
+        return ready.poll();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @brief Performs a single pass over the Ingest Storage
+     *
+     * Directories found ready are added to the ready queue.
+     */
+    void scan() {
+        final File files[] = pathToMonitor.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final Queue<File> found = new ConcurrentLinkedQueue<File>();
+        pool.invoke(new CheckTask(files, 0, files.length, found,
+                System.currentTimeMillis()));
+        ready.addAll(found);
+
+        // Forget the directories that are gone
+        if (dirs.size() > files.length) {
+            Set<String> names = new HashSet<String>();
+            for (File f : files) {
+                names.add(f.getName());
+            }
+            dirs.keySet().retainAll(names);
+        }
+    }
+
+    /** Checks a range of directories, splitting it among the pool */
+    private class CheckTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File files[];
+        private final int from;
+        private final int to;
+        private final Queue<File> found;
+        private final long now;
+
+        CheckTask(final File files[], final int from, final int to,
+                final Queue<File> found, final long now) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.found = found;
+            this.now = now;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TASK_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    if (checkPath(files[i], now)) {
+                        found.add(files[i]);
+                    }
+                }
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+            invokeAll(new CheckTask(files, from, mid, found, now),
+                    new CheckTask(files, mid, to, found, now));
+        }
+    }
+
+    /**
+     * @brief Checks a single directory, updating its cached state
+     *
+     * @param[in]  path  candidate image sequence directory
+     * @param[in]  now   time at which the pass started
+     * @return true if the directory contains a job ready to be processed
+     */
+    private boolean checkPath(final File path, final long now) {
+        final BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path.toPath(),
+                    BasicFileAttributes.class);
+        } catch (NoSuchFileException nsfe) {
+            return false;
+        } catch (IOException ioe) {
+            Log.error("INGEST", ioe);
+            return false;
+        }
+
+        if (!attrs.isDirectory()) {
+            return false;
+        }
+
+        final DirState st = dirs.computeIfAbsent(path.getName(),
+                k -> new DirState());
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        if (st.mtime == mtime) {
+            // Nothing changed since the last check
+            return false;
+        }
+
+        // Only trust the modification time when it is old enough
+        st.mtime = (now - mtime < mtimeSlack) ? -1 : mtime;
+
+        if (st.desc == null) {
+            final File fdesc = new File(path, Ingestor.JOB_DESC_FILE);
+            if (!fdesc.exists()) {
+                // Do not list the frames until there is a job description
+                st.frames = -1;
+                return false;
+            }
+
+            st.desc = Ingestor.readJobDesc(fdesc);
+            if (st.desc == null) {
+                // It may be still being written, retry on the next pass
+                st.mtime = -1;
+                return false;
+            }
+        }
+
+        st.frames = Ingestor.countFrames(path);
+        if (st.frames < Ingestor.getReadyFrames(st.desc)) {
+            if (FrameArchive.find(path) != null) {
+                // Writing the archive does not change the directory's
+                // modification time, check it again on the next pass
+                st.mtime = -1;
+            }
+            return false;
+        }
+
+        // The Ingestor deletes the job description file once the Job is
+        // created. Clear it, so the directory is not reported again.
+        st.desc = null;
+        return true;
+    }
+}
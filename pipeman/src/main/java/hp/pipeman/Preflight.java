@@ -0,0 +1,350 @@
+package hp.pipeman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * The Preflight is the PipeStep that validates the image sequences before
+ * they are encoded, so a broken frame does not fail (or corrupt) an encoding
+ * that may take long.
+ * <p>
+ * Each frame is memory-mapped and only its JPEG markers are parsed (see
+ * JpegHeader): it must be complete, from the SOI to the EOI, and have the
+ * same format (dimensions, precision and sampling) as the rest of the
+ * sequence, which is the format of most of its frames. The frames are checked
+ * in parallel over a ForkJoin pool of P_PREFLIGHT_THREADS threads.
+ * <p>
+ * The broken frames are handled according to P_PREFLIGHT_POLICY:
+ * <ul>
+ * <li>reject (default): the Job fails.</li>
+ * <li>repair: the broken frames are moved into the "rejected" directory of
+ *     the image sequence and the Job encodes the rest, unless more than
+ *     P_PREFLIGHT_MAX_REJECTED_PCT percent of them are broken.</li>
+ * </ul>
+ * The frames of an archive (see FrameArchive) are mapped in place. Since the
+ * archive is not rewritten, the names of its broken frames are listed in the
+ * "rejected" directory instead, and they are left out of the Job's index.
+ * <p>
+ * The format of the frames is attached to the Job. Live Jobs pass through,
+ * since their frames are still arriving.
+ */
+class Preflight extends BaseThreadPipeStep {
+
+    /** Name of the validation step, used for the metrics and the journal */
+    static final String STEP_NAME = "PREFLIGHT";
+
+    /** Directory within the image sequence the broken frames are moved to */
+    static final String REJECTED_DIR = "rejected";
+
+    /** Frames checked by a single task, larger ranges are split */
+    private static final int TASK_THRESHOLD = 32;
+
+    /** Broken frames logged per Job, the rest are just counted */
+    private static final int MAX_LOGGED_FRAMES = 10;
+
+    private final ForkJoinPool pool;
+
+    /** Whether the broken frames are dropped instead of failing the Job */
+    private final boolean repair;
+
+    /** Percentage of broken frames above which a Job is not repaired */
+    private final double maxRejectedPct;
+
+    /** Total number of broken frames found */
+    private final AtomicLong rejectedFrames = new AtomicLong();
+
+    Preflight() {
+        this(Config.getInt("P_PREFLIGHT_THREADS",
+                Runtime.getRuntime().availableProcessors()),
+                "repair".equalsIgnoreCase(
+                        Config.getString("P_PREFLIGHT_POLICY", "reject")),
+                Config.getDouble("P_PREFLIGHT_MAX_REJECTED_PCT", 5));
+    }
+
+    Preflight(final int parallelism, final boolean repair,
+            final double maxRejectedPct) {
+        super(STEP_NAME);
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.repair = repair;
+        this.maxRejectedPct = maxRejectedPct;
+        Metrics.registerGauge("preflight_rejected_frames",
+                "Broken frames found by the preflight validation.",
+                rejectedFrames::get);
+    }
+
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    protected boolean doProcessJob(Job job) {
+        if (job.isLive()) {
+            return true;
+        }
+
+        final FrameArchive archive;
+        try {
+            archive = FrameArchive.of(job);
+        } catch (IOException ioe) {
+            pipeStepLog("JOB #" + job.getId() + " archive can not be read: " +
+                    ioe.getMessage());
+            return false;
+        }
+
+        final File frames[] = archive == null ? listFrames(job.getIn())
+                : null;
+        final int framesN = archive == null ? frames.length : archive.size();
+        if (framesN == 0) {
+            pipeStepLog("JOB #" + job.getId() + " has no frames");
+            return false;
+        }
+
+        final JpegHeader headers[] = new JpegHeader[framesN];
+        if (archive == null) {
+            pool.invoke(new CheckTask(i -> JpegHeader.parse(frames[i]),
+                    headers, 0, framesN));
+        } else {
+            // The frames are mapped in place, from a single open file
+            try (FileChannel ch = archive.openChannel()) {
+                pool.invoke(new CheckTask(i -> archive.parseHeader(ch, i),
+                        headers, 0, framesN));
+            } catch (IOException ioe) {
+                Log.error(STEP_NAME, "Unable to read the archive of JOB #" +
+                        job.getId(), ioe);
+                return false;
+            }
+        }
+
+        final JpegHeader format = getSequenceFormat(headers);
+        final List<Integer> rejected = new ArrayList<Integer>();
+        for (int i = 0; i < framesN; i++) {
+            final String error = format == null ? headers[i].getError()
+                    : getError(headers[i], format);
+            if (error != null) {
+                if (rejected.size() < MAX_LOGGED_FRAMES) {
+                    pipeStepLog("JOB #" + job.getId() + " frame " +
+                            (archive == null ? frames[i].getName()
+                                    : archive.getName(i)) + ": " + error);
+                }
+                rejected.add(i);
+            }
+        }
+
+        if (rejected.isEmpty()) {
+            job.setFrameFormat(format);
+            pipeStepLog("JOB #" + job.getId() + " " + framesN +
+                    " frames " + format);
+            return true;
+        }
+
+        rejectedFrames.addAndGet(rejected.size());
+        final double pct = 100.0 * rejected.size() / framesN;
+        if (!repair || format == null || pct > maxRejectedPct) {
+            pipeStepLog("JOB #" + job.getId() + " rejected, " +
+                    rejected.size() + " of " + framesN +
+                    " frames are broken");
+            return false;
+        }
+
+        final File rejectedDir = new File(job.getIn(), REJECTED_DIR);
+        rejectedDir.mkdirs();
+        try {
+            if (archive == null) {
+                for (int i : rejected) {
+                    Files.move(frames[i].toPath(), new File(rejectedDir,
+                            frames[i].getName()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            } else {
+                // The archive is left as it is, the broken frames are
+                // listed to be skipped
+                final Set<String> names = new TreeSet<String>();
+                for (int i : rejected) {
+                    names.add(archive.getName(i));
+                }
+                Files.write(getRejectedList(job.getIn(), archive).toPath(),
+                        names, StandardCharsets.UTF_8);
+                job.setArchive(archive.without(names));
+            }
+        } catch (IOException ioe) {
+            Log.error(STEP_NAME, "Unable to drop the broken frames of JOB #" +
+                    job.getId(), ioe);
+            return false;
+        }
+
+        job.setFrameFormat(format);
+        job.setFramesN(framesN - rejected.size());
+        job.setRejectedFramesN(rejected.size());
+        pipeStepLog("JOB #" + job.getId() + " repaired, dropped " +
+                rejected.size() + " of " + framesN + " frames into " +
+                rejectedDir);
+        return true;
+    }
+
+    /**
+     * @brief Gets the file listing the broken frames dropped from an archive
+     */
+    private static File getRejectedList(final File dir,
+            final FrameArchive archive) {
+        return new File(new File(dir, REJECTED_DIR),
+                archive.getFile().getName() + ".txt");
+    }
+
+    /**
+     * @brief Restores the frame count of a recovered Job repaired before the
+     *        restart
+     *
+     * The Job's frame count comes from its description, so the frames
+     * dropped by a previous Preflight have to be discounted before the Job
+     * is resumed past this step. The broken frames of an archive are left
+     * out of its index again.
+     *
+     * @param[in,out] job  recovered Job
+     */
+    static void restore(final Job job) {
+        final FrameArchive archive;
+        try {
+            archive = FrameArchive.of(job);
+        } catch (IOException ioe) {
+            // The encoding fails, as it would have done before the restart
+            Log.error(STEP_NAME, "Unable to read the archive of JOB #" +
+                    job.getId(), ioe);
+            return;
+        }
+
+        if (archive != null) {
+            final File list = getRejectedList(job.getIn(), archive);
+            if (!list.exists()) {
+                return;
+            }
+            try {
+                final Set<String> names = new HashSet<String>(
+                        Files.readAllLines(list.toPath(),
+                                StandardCharsets.UTF_8));
+                job.setArchive(archive.without(names));
+                job.setFramesN(job.getArchive().size());
+                job.setRejectedFramesN(names.size());
+            } catch (IOException ioe) {
+                Log.error(STEP_NAME, ioe);
+            }
+            return;
+        }
+
+        final String rejected[] =
+                new File(job.getIn(), REJECTED_DIR).list();
+        if (rejected != null && rejected.length > 0) {
+            job.setFramesN(listFrames(job.getIn()).length);
+            job.setRejectedFramesN(rejected.length);
+        }
+    }
+
+    /**
+     * @brief Lists the frames of an image sequence, in file name order
+     */
+    static File[] listFrames(final File dir) {
+        final File frames[] = dir.listFiles(
+                (d, name) -> name.endsWith(Ingestor.FRAME_FILE_EXT));
+        if (frames == null) {
+            return new File[0];
+        }
+        Arrays.sort(frames, Comparator.comparing(File::getName));
+        return frames;
+    }
+
+    /**
+     * @brief Gets the format of most of the valid frames
+     *
+     * @return the header of a frame with that format, null if none
+     *         of the frames is valid
+     */
+    static JpegHeader getSequenceFormat(final JpegHeader headers[]) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        JpegHeader format = null;
+        int formatCount = 0;
+        for (JpegHeader h : headers) {
+            if (!h.isValid()) {
+                continue;
+            }
+            final int count = counts.merge(h.getFormat(), 1, Integer::sum);
+            if (count > formatCount) {
+                formatCount = count;
+                if (count == 1 || !h.getFormat().equals(format.getFormat())) {
+                    format = h;
+                }
+            }
+        }
+        return format;
+    }
+
+    /**
+     * @brief Checks a frame against the format of its sequence
+     *
+     * @return why the frame can not be encoded, null if it can
+     */
+    private static String getError(final JpegHeader header,
+            final JpegHeader format) {
+        if (!header.isValid()) {
+            return header.getError();
+        }
+        if (!header.getFormat().equals(format.getFormat())) {
+            return header.getFormat() + " does not match " +
+                    format.getFormat();
+        }
+        return null;
+    }
+
+    /** Parses the headers of a range of frames, splitting it among the pool */
+    private static class CheckTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** Parses the header of the frame of the given index */
+        private final IntFunction<JpegHeader> parser;
+        private final JpegHeader headers[];
+        private final int from;
+        private final int to;
+
+        CheckTask(final IntFunction<JpegHeader> parser,
+                final JpegHeader headers[], final int from, final int to) {
+            this.parser = parser;
+            this.headers = headers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TASK_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    headers[i] = parser.apply(i);
+                }
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+            invokeAll(new CheckTask(parser, headers, from, mid),
+                    new CheckTask(parser, headers, mid, to));
+        }
+    }
+}
@@ -1,19 +1,46 @@
 package hp.pipeman;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriter;
 
+/**
+ * The Publisher is the last PipeStep in the pipeline. It is responsible for
+ * adding the Job information to the streams.json file in the Video Feed.
+ * <p>
+ * The streams.json file is maintained by a Catalog, so publishing a Job only
+ * appends an entry to the catalog's journal, no matter how many streams have
+ * been published.
+ * <p>
+ * Jobs are published in groups: once a Job is retired from the queue, the
+ * Publisher keeps retiring the Jobs already queued, or queued within the
+ * linger time, up to the maximum batch size. All of them are committed to the
+ * catalog with a single (synced) write, and only then they are completed,
+ * also recorded together in the JobJournal.
+ * <p>
+ * The thumbnail staged by the Thumbnailer, if any, is installed into the
+ * stream's output directory before the Job is published.
+ * <p>
+ * Jobs failed by a previous step are not published, they end here.
+ * <p>
+ * Live Jobs are also published while they are being encoded, as soon as their
+ * manifest is written, with the "live" field set. Their entry is replaced once
+ * they are completed, or by one with the "failed" field set if they fail, so
+ * a partial stream is not shown as live anymore.
+ * @see Catalog
+ */
 class Publisher extends BaseThreadPipeStep {
+
+    /** Name of the publishing step, used for the metrics and the journal */
+    static final String STEP_NAME = "PUBLISH";
+
     private static Publisher sm_instance = null;
  
     public static Publisher getInstance() {
@@ -26,51 +53,252 @@ class Publisher extends BaseThreadPipeStep {
         return sm_instance;
     }
 
+    /** Catalog of published streams */
+    private final Catalog catalog;
+
+    /** Maximum number of jobs committed together */
+    private final int batchMax;
+
+    /** Maximum time to wait for more jobs to join a batch (ms) */
+    private final long lingerTime;
+
+    /** Ids of the live jobs published while being encoded */
+    private final Set<Integer> liveJobs = ConcurrentHashMap.newKeySet();
+
     /** Singleton private constructor */
     private Publisher() {
-        super("PUBLISH");
+        this(new Catalog(EncodeCache.OUT_DIR,
+                Config.getLong("P_CATALOG_COMPACT_MS", 1000),
+                Config.getBoolean("P_CATALOG_FSYNC", true)));
+    }
+
+    /**
+     * @brief Creates a Publisher on the given catalog
+     *
+     * Besides the singleton, it is only intended for the benchmarks, which
+     * publish into a temporary catalog.
+     */
+    Publisher(final Catalog catalog) {
+        super(STEP_NAME);
+        this.catalog = catalog;
+        batchMax = Math.max(1, Config.getInt("P_PUBLISH_BATCH_MAX", 64));
+        lingerTime = Config.getLong("P_PUBLISH_LINGER_MS", 20);
+    }
+
+    /**
+     * @brief Gets the catalog the Jobs are published into
+     */
+    Catalog getCatalog() {
+        return catalog;
+    }
+
+    @Override
+    public void run() {
+        pipeStepLog("Started");
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                Job first = getNextJob();
+                if (first == null) {
+                    // The thread has been interrupted
+                    continue;
+                }
+
+                publishBatch(collectBatch(first));
+            }
+        } finally {
+            catalog.close();
+        }
+        pipeStepLog("Ended");
+    }
+
+    /**
+     * @brief Retires the jobs that join the given one in a batch
+     *
+     * @param[in]  first  first job of the batch
+     * @return the batch of jobs
+     */
+    private List<Job> collectBatch(final Job first) {
+        final List<Job> batch = new ArrayList<Job>();
+        batch.add(first);
+        drainJobs(batch, batchMax - 1);
+
+        final long deadline = System.currentTimeMillis() + lingerTime;
+        while (batch.size() < batchMax) {
+            Job job = pollNextJob(
+                    Math.max(0, deadline - System.currentTimeMillis()));
+            if (job == null) {
+                break;
+            }
+            batch.add(job);
+        }
+
+        return batch;
+    }
+
+    /**
+     * @brief Commits a batch of jobs into the catalog as a single update
+     *
+     * Besides run(), it is only called by the benchmarks, with a batch of
+     * one job.
+     *
+     * @param[in,out] batch  jobs to be published, the failed ones are removed
+     * @return whether the batch was committed, false if it failed or all its
+     *         jobs were failed
+     */
+    boolean publishBatch(final List<Job> batch) {
+        final List<Job> failedLive = new ArrayList<Job>();
+        batch.removeIf(job -> {
+            if (!job.isFailed()) {
+                return false;
+            }
+            Log.event(Log.Level.WARN, STEP_NAME, "not published, failed",
+                    job.getId(), -1);
+            if (liveJobs.remove(job.getId())) {
+                failedLive.add(job);
+            }
+            return true;
+        });
+        retractLive(failedLive);
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        final List<JsonObject> entries = new ArrayList<JsonObject>();
+        for (Job job : batch) {
+            Log.event(Log.Level.DEBUG, STEP_NAME, "processing", job.getId(),
+                    -1);
+            synchronized(job) {
+                job.setStatus(Job.JobStatus.RUNNING);
+            }
+            Thumbnailer.install(job);
+            entries.add(createEntry(job));
+        }
+
+        boolean ret = false;
+        final long startTime = System.nanoTime();
+        try {
+            catalog.appendAll(entries);
+            ret = true;
+        } catch (IOException ioe) {
+            Log.error(STEP_NAME, ioe);
+        } catch (RuntimeException re) {
+            Log.error(STEP_NAME, re);
+        }
+
+        if (batch.size() > 1) {
+            pipeStepLog("Committed " + batch.size() + " jobs");
+        }
+
+        for (Job job : batch) {
+            // All the jobs in the batch took the time of the single commit
+            getMetrics().jobServiced(startTime);
+            liveJobs.remove(job.getId());
+        }
+        // and they are recorded as done in the journal with a single write
+        completeJobs(batch, ret);
+        return ret;
     }
-    
+
+    /**
+     * Not used: run() retires the jobs in batches and publishes them with
+     * publishBatch.
+     */
     @Override
     protected boolean doProcessJob(final Job job) {
-        JsonArray jsonFeeds;
+        throw new UnsupportedOperationException(
+                "Jobs are published by publishBatch");
+    }
+
+    /**
+     * @brief Replaces the live entries of failed Jobs
+     *
+     * The Jobs published while being encoded that failed afterwards get a
+     * final entry with the "failed" field set (and without "live").
+     *
+     * @param[in]  jobs  failed Jobs published as live
+     */
+    private void retractLive(final List<Job> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
 
+        final List<JsonObject> entries = new ArrayList<JsonObject>();
+        for (Job job : jobs) {
+            entries.add(Json.createObjectBuilder(createEntry(job))
+                    .add("failed", true).build());
+        }
         try {
-            InputStream is = new FileInputStream("/jobs_out/streams.json");
-            jsonFeeds = Json.createReader(is).readArray();
-            is.close();
-        } catch (Exception e) {
-            e.printStackTrace(System.out);
-            jsonFeeds = Json.createReader(new StringReader("[]")).readArray();
+            catalog.appendAll(entries);
+            pipeStepLog("Retracted " + jobs.size() + " failed live jobs");
+        } catch (IOException ioe) {
+            Log.error(STEP_NAME, ioe);
+        } catch (RuntimeException re) {
+            Log.error(STEP_NAME, re);
+        }
+    }
+
+    /**
+     * @brief Publishes a live Job while it is being encoded
+     *
+     * It does nothing until the Job's manifest is written, or once the Job
+     * has been published. Called by the encoder on each progress update.
+     *
+     * @param[in]  job  live Job being encoded
+     */
+    void publishLive(final Job job) {
+        if (liveJobs.contains(job.getId()) || !new File(
+                EncodeCache.getOutputDir(job), "stream.mpd").exists()) {
+            return;
+        }
+
+        publishLiveEntry(job);
+    }
+
+    /**
+     * @brief Publishes the entry of a live Job whose manifest is written
+     *
+     * @param[in]  job  live Job being encoded
+     */
+    void publishLiveEntry(final Job job) {
+        if (!liveJobs.add(job.getId())) {
+            return;
         }
-        
-        JsonObject jobDesc = job.getJSONDescription();
-        jobDesc = insertValue(jobDesc, "dir", job.getIn().getName());
-        jsonFeeds = insertValue(jsonFeeds, jobDesc);
-        
         try {
-            OutputStream os = new FileOutputStream("/jobs_out/streams.json");
-            JsonWriter writer = Json.createWriter(os);
-            writer.writeArray(jsonFeeds);
-            os.close();
-        } catch (Exception e) {
-            e.printStackTrace(System.out);
+            catalog.append(Json.createObjectBuilder(createEntry(job))
+                    .add("live", true).build());
+            pipeStepLog("Published live JOB #" + job.getId());
+        } catch (IOException ioe) {
+            Log.error(STEP_NAME, ioe);
+            liveJobs.remove(job.getId());
+        }
+    }
+
+    /**
+     * @brief Creates the catalog entry describing the Job's stream
+     *
+     * The job description's "live" field is not copied, so the final entry
+     * of a live Job differs from (and replaces) the one published while it
+     * was being encoded.
+     */
+    static JsonObject createEntry(final Job job) {
+        JsonObject jobDesc = Json.createObjectBuilder(
+                job.getJSONDescription()).remove("live").build();
+        JsonObject entry = insertValue(jobDesc, "dir", job.getIn().getName());
+        if (job.getRenditions().isEmpty()) {
+            return entry;
         }
 
-        return true;
+        // The renditions actually encoded, in the manifest's order
+        return Json.createObjectBuilder(entry)
+                .add("renditions", Rendition.toJson(job.getRenditions()))
+                .build();
     }
 
-    private JsonObject insertValue(JsonObject src, String key, String val) {
+    private static JsonObject insertValue(JsonObject src, String key,
+            String val) {
         JsonObjectBuilder builder = Json.createObjectBuilder();
         builder.add(key, val);
         src.entrySet().forEach(e -> builder.add(e.getKey(), e.getValue()));
         return builder.build();
     }
-
-    private JsonArray insertValue(JsonArray src, JsonObject val) {
-        JsonArrayBuilder builder = Json.createArrayBuilder();
-        src.forEach(e -> builder.add(e));
-        builder.add(val);
-        return builder.build();
-    }
-}
\ No newline at end of file
+}
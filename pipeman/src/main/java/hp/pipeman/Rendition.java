@@ -0,0 +1,123 @@
+package hp.pipeman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ * A rendition of an adaptive bitrate (ABR) ladder: the height (the width keeps
+ * the aspect ratio) and the bitrate a stream is encoded with.
+ * <p>
+ * The ladder is declared in the job description file, i.e.:
+ * <pre>
+ * "renditions": [ { "height": 720, "bitrate": 2500 },
+ *                 { "height": 360, "bitrate": 800 } ]
+ * </pre>
+ * All the renditions are encoded from a single decoding of the frames, as the
+ * representations of a single adaptation set of the stream's manifest.
+ * Instances are immutable.
+ */
+class Rendition {
+
+    /** Maximum number of renditions of a ladder */
+    static final int MAX_RENDITIONS = 8;
+
+    /** Height of the video (pixels), even as required by H.264 4:2:0 */
+    private final int height;
+
+    /** Target bitrate (kbits/s) */
+    private final int bitrate;
+
+    public Rendition(final int height, final int bitrate) {
+        this.height = height;
+        this.bitrate = bitrate;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * @brief Parses the ABR ladder of a job description
+     *
+     * Renditions without a valid height and bitrate are ignored, as well as
+     * those beyond MAX_RENDITIONS. Odd heights are rounded down.
+     *
+     * @param[in]  jsonDesc  job description
+     * @return the renditions, highest bitrate first. Empty if the job does
+     *         not declare a ladder, so a single rendition is encoded.
+     */
+    static List<Rendition> parseLadder(final JsonObject jsonDesc) {
+        final List<Rendition> ladder = new ArrayList<Rendition>();
+        final JsonValue value = jsonDesc == null ? null
+                : jsonDesc.get("renditions");
+        if (value == null || value.getValueType() != JsonValue.ValueType.ARRAY) {
+            return ladder;
+        }
+
+        for (JsonValue v : (JsonArray) value) {
+            if (v.getValueType() != JsonValue.ValueType.OBJECT) {
+                continue;
+            }
+            final JsonObject r = v.asJsonObject();
+            final int height = r.getInt("height", 0) & ~1;
+            final int bitrate = r.getInt("bitrate", 0);
+            if (height > 0 && bitrate > 0 && ladder.size() < MAX_RENDITIONS) {
+                ladder.add(new Rendition(height, bitrate));
+            }
+        }
+
+        ladder.sort(Comparator.comparingInt(Rendition::getBitrate)
+                .reversed());
+        return Collections.unmodifiableList(ladder);
+    }
+
+    /**
+     * @brief Formats a ladder as the encoding script's argument
+     *
+     * @return the renditions as height:bitrate, separated by commas
+     */
+    static String toArg(final List<Rendition> ladder) {
+        final StringBuilder sb = new StringBuilder();
+        for (Rendition r : ladder) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(r);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @brief Describes a ladder in the stream's catalog entry
+     *
+     * The renditions are listed in the order of the manifest's
+     * representations.
+     */
+    static JsonArray toJson(final List<Rendition> ladder) {
+        final JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (int i = 0; i < ladder.size(); i++) {
+            builder.add(Json.createObjectBuilder()
+                    .add("id", i)
+                    .add("height", ladder.get(i).height)
+                    .add("bitrate", ladder.get(i).bitrate));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return height + ":" + bitrate;
+    }
+}
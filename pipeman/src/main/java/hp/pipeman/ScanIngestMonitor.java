@@ -0,0 +1,60 @@
+package hp.pipeman;
+
+import java.io.File;
+
+/**
+ * Original Ingest Storage monitoring strategy: once per second, list all the
+ * directories in the Ingest Storage and, for each one, read its job
+ * description file and count its frame files.
+ * <p>
+ * It is the simplest and more robust strategy, but its cost grows with the
+ * number of directories waiting in the Ingest Storage.
+ * @see IngestMonitor
+ */
+class ScanIngestMonitor implements IngestMonitor {
+
+    /** full path to the directory to look after new image sequeces */
+    private final File pathToMonitor;
+
+    /** time between two consecutive scans (ms) */
+    private final long scanPeriod;
+
+    public ScanIngestMonitor(final File pathToMonitor, final long scanPeriod) {
+        this.pathToMonitor = pathToMonitor;
+        this.scanPeriod = scanPeriod;
+    }
+
+    @Override
+    public File nextReadyPath() throws InterruptedException {
+        while (true) {
+            File f = scan();
+            if (f != null) {
+                return f;
+            }
+
+            Thread.sleep(scanPeriod);
+        }
+    }
+
+    /**
+     * @brief Performs a single pass over the Ingest Storage
+     *
+     * @return the first directory found ready or null if none is ready
+     */
+    File scan() {
+        File files[] = pathToMonitor.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (Ingestor.isPathReady(f)) {
+                    return f;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
@@ -0,0 +1,100 @@
+package hp.pipeman;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The SchedulingPolicy interface defines the order in which the queued Jobs
+ * are retired from a SchedulingQueue.
+ * <p>
+ * Each policy assigns a rank to the Job when it is queued. Jobs with lower
+ * rank are retired first. In order to avoid starvation, the rank decreases
+ * (the job ages) as time goes by, at a rate given by the policy's aging
+ * parameter (rank units per second). Since all the queued Jobs age at the
+ * same rate, aging does not change their relative order once queued, so it
+ * is accounted by adding the queuing time to the rank.
+ * @see SchedulingQueue
+ */
+interface SchedulingPolicy {
+
+    /**
+     * @brief Gets the rank of a Job, not considering its aging
+     *
+     * @param[in]  job  the Job to be queued
+     * @return the Job's rank. Lower ranks are retired first.
+     */
+    public double rank(final Job job);
+
+    /**
+     * @brief Gets the aging rate (rank units per second)
+     */
+    public double getAging();
+
+    /**
+     * @brief Gets the policy name, used for logging
+     */
+    public String getName();
+
+    /**
+     * @brief Creates a policy by name
+     *
+     * Known policies are:
+     *  - fifo:     first queued, first retired.
+     *  - priority: the Job with higher "priority" (from its job description
+     *              file, 0 by default) first. Aging in priority levels per
+     *              second (default 0.05, one level every 20 seconds).
+     *  - sjf:      shortest job first, the Job with less frames first. Aging
+     *              in frames per second (default 100).
+     *
+     * @param[in]  name   policy name. Unknown names fall back to fifo.
+     * @param[in]  aging  aging rate (rank units per second). Negative to use
+     *                    the policy's default.
+     * @return the policy
+     */
+    public static SchedulingPolicy create(final String name,
+            final double aging) {
+        switch (name.toLowerCase()) {
+            case "priority":
+                return new Simple("priority", aging < 0 ? 0.05 : aging,
+                        job -> -job.getPriority());
+            case "sjf":
+                return new Simple("sjf", aging < 0 ? 100 : aging,
+                        job -> job.getFramesN());
+            case "fifo":
+                break;
+            default:
+                Log.log(Log.Level.WARN, "SCHED",
+                        "Unknown scheduling policy '{}', using fifo", name);
+                break;
+        }
+        return new Simple("fifo", 0, job -> 0);
+    }
+
+    /** Policy defined by a rank function and an aging rate */
+    static class Simple implements SchedulingPolicy {
+        private final String name;
+        private final double aging;
+        private final ToDoubleFunction<Job> ranker;
+
+        Simple(final String name, final double aging,
+                final ToDoubleFunction<Job> ranker) {
+            this.name = name;
+            this.aging = aging;
+            this.ranker = ranker;
+        }
+
+        @Override
+        public double rank(final Job job) {
+            return ranker.applyAsDouble(job);
+        }
+
+        @Override
+        public double getAging() {
+            return aging;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package hp.pipeman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded, blocking Job queue that retires the Jobs in the order defined by a
+ * SchedulingPolicy.
+ * <p>
+ * Producers block while the queue is full and consumers block while it is
+ * empty. Each queued Job wakes up a single consumer, so idle consumers are
+ * not woken up when there is no work for them.
+ * <p>
+ * Consumers may skip the Jobs they are not eligible for (i.e. the Jobs that
+ * failed on their encoder), in which case they get the first Job, in the
+ * policy's order, they are eligible for.
+ * <p>
+ * It also keeps the statistics of the time the Jobs wait in the queue, so the
+ * policy can be tuned.
+ * @see SchedulingPolicy
+ */
+class SchedulingQueue {
+
+    /** A queued Job and its scheduling information */
+    private static class Entry implements Comparable<Entry> {
+        final Job job;
+        final double rank;
+        final long seq;
+        final long queuedTime;
+
+        Entry(final Job job, final double rank, final long seq,
+                final long queuedTime) {
+            this.job = job;
+            this.rank = rank;
+            this.seq = seq;
+            this.queuedTime = queuedTime;
+        }
+
+        @Override
+        public int compareTo(final Entry o) {
+            final int c = Double.compare(rank, o.rank);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private final SchedulingPolicy policy;
+
+    /** Maximum number of queued Jobs */
+    private final int capacity;
+
+    /** Queued Jobs, guarded by lock */
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /** Queuing sequence number, used to keep FIFO order for equal ranks.
+     *  Guarded by lock */
+    private long seq = 0;
+
+    /** Time the Jobs waited in the queue (ms) */
+    private final Histogram waitStats = new Histogram();
+
+    /** Reference time for aging (ms) */
+    private final long epoch = System.currentTimeMillis();
+
+    public SchedulingQueue(final SchedulingPolicy policy, final int capacity) {
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public SchedulingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @brief Gets the statistics of the time the Jobs waited in the queue
+     */
+    public Histogram getWaitStats() {
+        return waitStats;
+    }
+
+    /**
+     * @brief Queues a Job if there is room for it
+     *
+     * @return true if the Job has been queued, false if the queue is full
+     */
+    public boolean offer(final Job job) {
+        lock.lock();
+        try {
+            if (queue.size() >= capacity) {
+                return false;
+            }
+            enqueue(job);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @brief Queues a Job, waiting for room if the queue is full
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(final Job job) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.size() >= capacity) {
+                notFull.await();
+            }
+            enqueue(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @brief Queues again a Job already admitted, even if the queue is full
+     *
+     * Used for the Jobs that have been taken from the queue and must be
+     * processed again (i.e. retried), so the consumers re-queuing them never
+     * block waiting for themselves. It wakes up all the consumers, since some
+     * of them may not be eligible for the Job.
+     */
+    public void requeue(final Job job) {
+        lock.lock();
+        try {
+            enqueue(job);
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @brief Retires the next Job, waiting for one if the queue is empty
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Job take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @brief Retires the next Job the consumer is eligible for, waiting for
+     *        one if there is none
+     *
+     * @param[in]  eligible   whether the consumer is eligible for a Job
+     * @param[in]  recheckMs  time after which the Jobs skipped are checked
+     *                        again, since their eligibility may change
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Job take(final Predicate<Job> eligible, final long recheckMs)
+            throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                final Job job = dequeue(eligible);
+                if (job != null) {
+                    return job;
+                }
+                if (queue.isEmpty()) {
+                    notEmpty.await();
+                } else {
+                    notEmpty.await(recheckMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @brief Retires the next Job the consumer is eligible for, if any
+     *
+     * @return the Job or null if there is none
+     */
+    public Job poll(final Predicate<Job> eligible) {
+        lock.lock();
+        try {
+            return dequeue(eligible);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @brief Retires the next Job, if any
+     *
+     * @return the Job or null if the queue is empty
+     */
+    public Job poll() {
+        lock.lock();
+        try {
+            return queue.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Must be called holding the lock */
+    private void enqueue(final Job job) {
+        final long now = System.currentTimeMillis();
+        // Aging: the sooner queued, the lower the rank
+        final double rank = policy.rank(job) +
+                policy.getAging() * (now - epoch) / 1000.0;
+        queue.add(new Entry(job, rank, seq++, now));
+        notEmpty.signal();
+    }
+
+    /**
+     * @brief Retires the first Job the consumer is eligible for. Must be
+     *        called holding the lock.
+     *
+     * @return the Job or null if there is none
+     */
+    private Job dequeue(final Predicate<Job> eligible) {
+        if (queue.isEmpty()) {
+            return null;
+        }
+        if (eligible.test(queue.peek().job)) {
+            return dequeue();
+        }
+
+        // Skip the Jobs the consumer is not eligible for, keeping their order
+        final List<Entry> skipped = new ArrayList<Entry>();
+        Job job = null;
+        while (job == null && !queue.isEmpty()) {
+            if (eligible.test(queue.peek().job)) {
+                job = dequeue();
+            } else {
+                skipped.add(queue.poll());
+            }
+        }
+        queue.addAll(skipped);
+        return job;
+    }
+
+    /** Must be called holding the lock, with the queue not empty */
+    private Job dequeue() {
+        final Entry e = queue.poll();
+        notFull.signal();
+        waitStats.record(System.currentTimeMillis() - e.queuedTime);
+        return e.job;
+    }
+}
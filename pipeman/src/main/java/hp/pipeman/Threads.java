@@ -0,0 +1,99 @@
+package hp.pipeman;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Creates the threads that run the pipeline steps and their blocking tasks
+ * (i.e. waiting for the encoding processes and their output).
+ * <p>
+ * The execution mode is selected with the P_THREAD_MODE setting:
+ *  - platform: (default) each task runs in its own OS thread.
+ *  - virtual:  each task runs in a virtual thread, so hundreds of encoder
+ *              slots and I/O bound steps do not require one OS thread and
+ *              stack each. It requires a Java 21 (or later) runtime, see the
+ *              jdk21 build profile. On older runtimes it falls back to
+ *              platform threads.
+ * <p>
+ * Virtual threads are created by reflection, so the same build runs on both
+ * kinds of runtimes.
+ */
+final class Threads {
+
+    /** Builder of virtual threads, null if running in platform mode */
+    private static final Object virtualBuilder = createVirtualBuilder();
+
+    /** Thread.Builder.unstarted(Runnable) */
+    private static MethodHandle unstarted;
+
+    /** Thread.Builder.name(String) */
+    private static MethodHandle name;
+
+    private Threads() {
+    }
+
+    /**
+     * @brief Creates the virtual thread builder if running in virtual mode
+     *
+     * @return the Thread.Builder.OfVirtual instance or null
+     */
+    private static Object createVirtualBuilder() {
+        final String mode = Config.getString("P_THREAD_MODE", "platform");
+        if (!mode.equalsIgnoreCase("virtual")) {
+            return null;
+        }
+
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final Class<?> builderClass =
+                    Class.forName("java.lang.Thread$Builder");
+            final Object builder = lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(Class.forName(
+                            "java.lang.Thread$Builder$OfVirtual"))).invoke();
+            unstarted = lookup.findVirtual(builderClass, "unstarted",
+                    MethodType.methodType(Thread.class, Runnable.class));
+            name = lookup.findVirtual(builderClass, "name",
+                    MethodType.methodType(builderClass, String.class));
+            Log.log(Log.Level.INFO, "THREADS", "Using virtual threads");
+            return builder;
+        } catch (Throwable t) {
+            Log.log(Log.Level.WARN, "THREADS", "Virtual threads not " +
+                    "available ({}), using platform threads", t.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @brief Whether the tasks run in virtual threads
+     */
+    static boolean isVirtual() {
+        return virtualBuilder != null;
+    }
+
+    /**
+     * @brief Creates a new (not started) thread to run a task
+     *
+     * @param[in]  threadName  name of the thread
+     * @param[in]  task        task to run
+     * @param[in]  daemon      whether the thread must not prevent the JVM
+     *                         exit. Virtual threads are always daemon.
+     * @return the new thread
+     */
+    static Thread newThread(final String threadName, final Runnable task,
+            final boolean daemon) {
+        if (virtualBuilder != null) {
+            try {
+                Object builder = name.invoke(virtualBuilder, threadName);
+                return (Thread) unstarted.invoke(builder, task);
+            } catch (Throwable t) {
+                throw new IllegalStateException(
+                        "Unable to create virtual thread", t);
+            }
+        }
+
+        final Thread thread = new Thread(task, threadName);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
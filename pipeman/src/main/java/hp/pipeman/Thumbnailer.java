@@ -0,0 +1,170 @@
+package hp.pipeman;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The Thumbnailer is the PipeStep that extracts the thumbnail shown by the web
+ * client for each stream. It runs in a branch parallel to the encoding (see
+ * ParallelPipeStep), so it is not in the Jobs' critical path.
+ * <p>
+ * The thumbnail is the first frame of the image sequence (in file name order,
+ * the broken ones were already dropped by the Preflight, read in place if
+ * the frames are archived) scaled down to
+ * P_THUMBNAIL_WIDTH pixels wide. It is staged in the P_THUMBNAIL_DIR directory
+ * until the Job's stream is output, and the Publisher installs it as the
+ * stream's thumbnail.jpg.
+ * <p>
+ * The thumbnail is optional: if it can not be extracted (i.e. the frames were
+ * deleted because the stream was fetched from the cache), the Job does not
+ * fail and the stream keeps the full size thumbnail copied by the encoder.
+ * Live Jobs pass through, since the encoder copies their first frame as soon
+ * as it arrives.
+ */
+class Thumbnailer extends BaseThreadPipeStep {
+
+    /** Name of the thumbnail step, used for the metrics and the journal */
+    static final String STEP_NAME = "THUMBNAIL";
+
+    /** Name of the thumbnail within the stream's output directory */
+    static final String THUMBNAIL_FILE = "thumbnail.jpg";
+
+    /** Directory the thumbnails are staged in, null if disabled */
+    private static final File STAGE_DIR = getStageDir();
+
+    /** Width of the thumbnails (pixels) */
+    private final int width;
+
+    Thumbnailer() {
+        this(Config.getInt("P_THUMBNAIL_WIDTH", 320));
+    }
+
+    Thumbnailer(final int width) {
+        super(STEP_NAME);
+        this.width = Math.max(1, width);
+    }
+
+    private static File getStageDir() {
+        final String dir = Config.getString("P_THUMBNAIL_DIR",
+                new File(EncodeCache.OUT_DIR, ".thumbnails").getPath());
+        return dir.isEmpty() ? null : new File(dir);
+    }
+
+    /**
+     * @brief Gets the file the thumbnail of a Job is staged as
+     */
+    static File getStagedFile(final Job job) {
+        return new File(STAGE_DIR, job.getIn().getName() + ".jpg");
+    }
+
+    @Override
+    protected boolean doProcessJob(Job job) {
+        if (STAGE_DIR == null || job.isLive()) {
+            return true;
+        }
+
+        try {
+            final FrameArchive archive = FrameArchive.of(job);
+            final File frames[] = archive == null ?
+                    Preflight.listFrames(job.getIn()) : null;
+            if (archive == null ? frames.length == 0 : archive.size() == 0) {
+                pipeStepLog("JOB #" + job.getId() + " has no frames, " +
+                        "keeping the encoder's thumbnail");
+                return true;
+            }
+
+            final BufferedImage frame = archive == null ?
+                    ImageIO.read(frames[0]) : ImageIO.read(
+                            new ByteArrayInputStream(archive.read(0)));
+            if (frame == null) {
+                pipeStepLog("JOB #" + job.getId() + " frame " +
+                        (archive == null ? frames[0].getName()
+                                : archive.getName(0)) +
+                        " can not be decoded");
+                return true;
+            }
+
+            STAGE_DIR.mkdirs();
+            final File staged = getStagedFile(job);
+            final File tmp = new File(STAGE_DIR, "." + staged.getName());
+            if (!ImageIO.write(scale(frame, width), "jpg", tmp)) {
+                pipeStepLog("No JPEG writer available");
+                return true;
+            }
+            Files.move(tmp.toPath(), staged.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            // i.e. the frames were deleted meanwhile
+            Log.log(Log.Level.WARN, STEP_NAME,
+                    "Unable to extract the thumbnail of JOB #{}: {}",
+                    job.getId(), ioe.toString());
+        }
+        return true;
+    }
+
+    /**
+     * @brief Scales an image down to the given width, keeping its aspect
+     *        ratio. Narrower images are not scaled.
+     */
+    static BufferedImage scale(final BufferedImage image, final int width) {
+        if (image.getWidth() <= width) {
+            return image;
+        }
+
+        final int h = Math.max(1, (int) Math.round(
+                (double) image.getHeight() * width / image.getWidth()));
+        final BufferedImage scaled = new BufferedImage(width, h,
+                BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, h, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * @brief Installs the staged thumbnail of a Job into its stream's output
+     *        directory
+     *
+     * Done by the Publisher, once the stream has been output. The thumbnail
+     * copied by the encoder (which may be linked from the EncodeCache) is
+     * replaced, not overwritten.
+     *
+     * @param[in]  job  Job being published
+     */
+    static void install(final Job job) {
+        if (STAGE_DIR == null) {
+            return;
+        }
+
+        final File staged = getStagedFile(job);
+        final File outDir = EncodeCache.getOutputDir(job);
+        try {
+            if (!outDir.isDirectory()) {
+                Files.deleteIfExists(staged.toPath());
+                return;
+            }
+            if (staged.exists()) {
+                Files.move(staged.toPath(),
+                        new File(outDir, THUMBNAIL_FILE).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            Log.error(STEP_NAME, "Unable to install the thumbnail of JOB #" +
+                    job.getId(), ioe);
+        }
+    }
+}
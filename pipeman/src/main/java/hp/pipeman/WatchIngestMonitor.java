@@ -0,0 +1,262 @@
+package hp.pipeman;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.json.JsonObject;
+
+/**
+ * Event driven Ingest Storage monitoring strategy, based on the file system's
+ * WatchService.
+ * <p>
+ * The monitor watches the Ingest Storage root directory for new image sequence
+ * directories, and each image sequence directory for frame files and job
+ * description file changes. It keeps a per-directory frame count that is
+ * updated from the create and delete events, so the directories are listed
+ * only once, when they are discovered. A directory is reported as ready as
+ * soon as its frame count reaches the job description's frames_n.
+ * <p>
+ * If the WatchService reports an overflow (events have been lost), the
+ * monitor falls back to a full rescan of the Ingest Storage to rebuild its
+ * state.
+ * <p>
+ * This monitor is only accessed from the Ingestor's thread, so it is not
+ * thread safe.
+ * @see IngestMonitor
+ */
+class WatchIngestMonitor implements IngestMonitor {
+
+    /** State tracked for each image sequence directory */
+    private static class DirState {
+        /** Watch key of the directory */
+        WatchKey key = null;
+
+        /** Frames needed to start the job (see Ingestor.getReadyFrames),
+         *  -1 if not yet known */
+        int framesN = -1;
+
+        /** Number of frame files currently in the directory */
+        int frames = 0;
+
+        /** Whether the frames come in an archive, which is only counted
+         *  once complete (see checkReady) */
+        boolean archive = false;
+    }
+
+    /** full path to the directory to look after new image sequeces */
+    private final Path root;
+
+    private final WatchService watcher;
+
+    /** Watch key of the Ingest Storage root directory */
+    private WatchKey rootKey;
+
+    /** State of each image sequence directory, by directory path */
+    private final Map<Path, DirState> dirs = new HashMap<Path, DirState>();
+
+    /** Directories ready to be processed, not yet reported */
+    private final Deque<Path> ready = new ArrayDeque<Path>();
+
+    public WatchIngestMonitor(final File pathToMonitor) throws IOException {
+        this.root = pathToMonitor.toPath();
+        this.watcher = FileSystems.getDefault().newWatchService();
+        rescan();
+    }
+
+    @Override
+    public File nextReadyPath() throws InterruptedException {
+        while (ready.isEmpty()) {
+            WatchKey key = watcher.take();
+            try {
+                processEvents(key);
+            } finally {
+                key.reset();
+            }
+        }
+
+        return ready.poll().toFile();
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException ioe) {
+            Log.error("INGEST-WATCH", ioe);
+        }
+    }
+
+    /**
+     * @brief Updates the directories state from the events of a watch key
+     */
+    private void processEvents(final WatchKey key) {
+        final Path dir = (Path) key.watchable();
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (ev.kind() == OVERFLOW) {
+                log("Events overflow, rescanning " + root);
+                rescan();
+                return;
+            }
+
+            final Path child = dir.resolve((Path) ev.context());
+            if (key == rootKey) {
+                onRootEvent(ev.kind(), child);
+            } else {
+                // Ignore events from keys cancelled by a rescan
+                DirState st = dirs.get(dir);
+                if (st != null && st.key == key) {
+                    onDirEvent(ev.kind(), dir, st, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * @brief Handles an event on the Ingest Storage root directory
+     */
+    private void onRootEvent(final WatchEvent.Kind<?> kind, final Path child) {
+        if (kind == ENTRY_CREATE) {
+            addDir(child);
+        } else if (kind == ENTRY_DELETE) {
+            DirState st = dirs.remove(child);
+            if (st != null && st.key != null) {
+                st.key.cancel();
+            }
+            ready.remove(child);
+        }
+    }
+
+    /**
+     * @brief Handles an event on an image sequence directory
+     */
+    private void onDirEvent(final WatchEvent.Kind<?> kind, final Path dir,
+            final DirState st, final Path child) {
+        final String name = child.getFileName().toString();
+        if (name.equals(Ingestor.JOB_DESC_FILE)) {
+            if (kind == ENTRY_DELETE) {
+                st.framesN = -1;
+            } else {
+                // The file may be created empty and written afterwards, so
+                // retry on each modification until it can be parsed.
+                loadJobDesc(dir, st);
+            }
+        } else if (FrameArchive.isArchiveFile(name)) {
+            // Its writes are reported as modifications
+            st.archive = kind != ENTRY_DELETE;
+        } else if (Ingestor.isFrameFile(name)) {
+            if (kind == ENTRY_CREATE) {
+                st.frames++;
+            } else if (kind == ENTRY_DELETE && st.frames > 0) {
+                st.frames--;
+            }
+        } else {
+            return;
+        }
+
+        checkReady(dir, st);
+    }
+
+    /**
+     * @brief Starts tracking a new image sequence directory
+     *
+     * The directory is registered before being listed, so no frame file is
+     * missed between both operations.
+     */
+    private void addDir(final Path dir) {
+        if (!dir.toFile().isDirectory() || dirs.containsKey(dir)) {
+            return;
+        }
+
+        DirState st = new DirState();
+        try {
+            st.key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE,
+                    ENTRY_MODIFY);
+        } catch (IOException ioe) {
+            Log.error("INGEST-WATCH", ioe);
+            return;
+        }
+
+        st.frames = Ingestor.countFrames(dir.toFile());
+        st.archive = FrameArchive.find(dir.toFile()) != null;
+        dirs.put(dir, st);
+        loadJobDesc(dir, st);
+        checkReady(dir, st);
+    }
+
+    /**
+     * @brief (Re)loads frames_n from the directory's job description file
+     */
+    private void loadJobDesc(final Path dir, final DirState st) {
+        JsonObject desc = Ingestor.readJobDesc(
+                dir.resolve(Ingestor.JOB_DESC_FILE).toFile());
+        st.framesN = desc == null ? -1 : Ingestor.getReadyFrames(desc);
+    }
+
+    /**
+     * @brief Queues the directory as ready if it has all its frames
+     *
+     * The event based count may be slightly off (e.g. a frame created while
+     * the directory was being registered is counted twice), so it is
+     * confirmed with a directory listing before reporting the directory.
+     * Once queued, frames_n is cleared. It will be set again only if a new
+     * job description file is placed in the directory. An archive is counted
+     * on each of its events, until it is complete.
+     */
+    private void checkReady(final Path dir, final DirState st) {
+        if (st.framesN < 0 || (st.frames < st.framesN && !st.archive)) {
+            return;
+        }
+
+        st.frames = Ingestor.countFrames(dir.toFile());
+        if (st.frames >= st.framesN) {
+            st.framesN = -1;
+            ready.add(dir);
+        }
+    }
+
+    /**
+     * @brief Rebuilds the whole state from a full scan of the Ingest Storage
+     */
+    private void rescan() {
+        for (DirState st : dirs.values()) {
+            if (st.key != null) {
+                st.key.cancel();
+            }
+        }
+        dirs.clear();
+        ready.clear();
+
+        try {
+            if (rootKey == null) {
+                rootKey = root.register(watcher, ENTRY_CREATE, ENTRY_DELETE);
+            }
+        } catch (IOException ioe) {
+            Log.error("INGEST-WATCH", ioe);
+        }
+
+        File files[] = root.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                addDir(f.toPath());
+            }
+        }
+    }
+
+    private void log(final String msg) {
+        Log.log(Log.Level.INFO, "INGEST-WATCH", msg);
+    }
+}
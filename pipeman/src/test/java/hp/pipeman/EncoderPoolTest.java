@@ -0,0 +1,65 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import javax.json.Json;
+
+import org.junit.Test;
+
+/**
+ * Checks the chunks queued again when a split Job is recovered.
+ */
+public class EncoderPoolTest {
+
+    @Test
+    public void resumesOnlyThePendingChunks() {
+        final Job job = job(1);
+        final Job chunks[] = job.split(10);
+
+        final List<Job> pending = EncoderPool.pendingChunks(job, chunks,
+                Set.of(1, 2));
+
+        assertEquals(List.of(chunks[0]), pending);
+        assertTrue(job.chunkCompleted(true));
+        assertFalse(job.isChunkFailed());
+    }
+
+    @Test
+    public void stitchesAJobWhoseChunksWereAllEncoded() {
+        final Job job = job(2);
+        final Job chunks[] = job.split(10);
+
+        final List<Job> pending = EncoderPool.pendingChunks(job, chunks,
+                Set.of(0, 1, 2));
+
+        assertEquals(List.of(chunks[2]), pending);
+        // Completing the last chunk stitches the job
+        assertTrue(job.chunkCompleted(true));
+    }
+
+    @Test
+    public void resumesAllTheChunksOfAJobNotStarted() {
+        final Job job = job(3);
+        final Job chunks[] = job.split(10);
+
+        final List<Job> pending = EncoderPool.pendingChunks(job, chunks,
+                Set.of());
+
+        assertEquals(List.of(chunks), pending);
+        assertFalse(job.chunkCompleted(true));
+        assertFalse(job.chunkCompleted(true));
+        assertTrue(job.chunkCompleted(true));
+    }
+
+    /** A job of 30 frames, i.e. 3 chunks of 10 frames */
+    private static Job job(final int id) {
+        return new Job(id, new File("seq" + id), 5,
+                Json.createObjectBuilder().add("frames_n", 30).build());
+    }
+}
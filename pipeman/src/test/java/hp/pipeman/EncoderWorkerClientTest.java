@@ -0,0 +1,259 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the EncoderWorkerClient against the actual worker agent
+ * (encoder/worker.sh), with a stand-in encoding command instead of encode.sh.
+ */
+public class EncoderWorkerClientTest {
+
+    /** The worker agent, relative to the pipeman module */
+    private static final File WORKER_SH = new File("../encoder/worker.sh");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private StandInWorker worker = null;
+
+    @After
+    public void tearDown() throws IOException {
+        if (worker != null) {
+            worker.close();
+        }
+    }
+
+    @Test
+    public void submitReportsOutputAndResult() throws Exception {
+        worker = new StandInWorker("/bin/echo");
+        final EncoderWorkerClient client = worker.client();
+        final List<String> output = new ArrayList<String>();
+
+        final int ret = client.encode(job(1), List.of("seq_01", "5", "full",
+                "10", "preset=fast"), output::add);
+
+        assertEquals(0, ret);
+        assertEquals(List.of("seq_01 5 full 10 preset=fast"), output);
+        assertTrue(client.ping());
+    }
+
+    @Test
+    public void reportsTheExitCode() throws Exception {
+        worker = new StandInWorker("/bin/false");
+        final EncoderWorkerClient client = worker.client();
+
+        assertEquals(1, client.encode(job(2), List.of("seq01", "5"),
+                line -> { }));
+        // The connection is kept for the next job
+        assertEquals(1, client.encode(job(3), List.of("seq01", "5"),
+                line -> { }));
+    }
+
+    @Test
+    public void acceptsOnlySafeArguments() {
+        assertTrue(EncoderWorkerClient.accepts(List.of("seq-01.a_b", "5",
+                "chunk", "0", "0", "100", "10", "360:800,720:2500",
+                "preset=fast", "input=pipe")));
+        assertFalse(EncoderWorkerClient.accepts(Collections.emptyList()));
+        for (String dir : List.of("", ".", "..", ".hidden", "a b", "it's",
+                "x$(touch${IFS}/tmp/f)", "a;b", "a\\b", "a*", "a/b")) {
+            assertFalse(dir, EncoderWorkerClient.accepts(List.of(dir, "5")));
+        }
+        assertFalse(EncoderWorkerClient.accepts(List.of("seq01", "5",
+                "tune=a b")));
+    }
+
+    @Test
+    public void clientDoesNotSendUnsafeArguments() throws Exception {
+        worker = new StandInWorker("/bin/echo");
+        final EncoderWorkerClient client = worker.client();
+        try {
+            client.encode(job(4), List.of("a b", "5"), line -> { });
+            fail("Unsafe arguments sent");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    @Test
+    public void workerRejectsShellInjection() throws Exception {
+        worker = new StandInWorker("/bin/echo");
+        final File pwned = new File(tmp.getRoot(), "pwned");
+        try (Socket s = worker.connect()) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.UTF_8));
+            final OutputStream out = s.getOutputStream();
+            for (String dir : List.of("x$(touch${IFS}" + pwned + ")",
+                    "x`touch${IFS}" + pwned + "`", "x\";touch${IFS}" + pwned +
+                    ";\"", "../x", "*")) {
+                out.write(("SUBMIT 5 " + dir + " 5\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                final String line = in.readLine();
+                assertTrue(line, line.startsWith("ERROR "));
+            }
+            out.write("CANCEL ../5\nPING\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("PONG", in.readLine());
+        }
+        assertFalse(pwned.exists());
+    }
+
+    @Test(timeout = 10000)
+    public void interruptionCancelsTheEncoding() throws Exception {
+        final File pidFile = new File(tmp.getRoot(), "pid");
+        final File script = tmp.newFile("encode.sh");
+        Files.write(script.toPath(), ("#!/bin/sh\necho $$ > " + pidFile +
+                "\nsleep 60\n").getBytes(StandardCharsets.UTF_8));
+        script.setExecutable(true);
+        worker = new StandInWorker(script.getPath());
+        final EncoderWorkerClient client = worker.client();
+
+        final Throwable error[] = new Throwable[1];
+        final Thread t = new Thread(() -> {
+            try {
+                client.encode(job(6), List.of("seq01", "5"), line -> { });
+                error[0] = new AssertionError("Encoding not cancelled");
+            } catch (InterruptedException ie) {
+                // expected
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        t.start();
+        while (pidFile.length() == 0) {
+            Thread.sleep(50);
+        }
+        t.interrupt();
+        t.join();
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+
+        final long pid = Long.parseLong(new String(
+                Files.readAllBytes(pidFile.toPath()),
+                StandardCharsets.UTF_8).trim());
+        while (ProcessHandle.of(pid).map(ProcessHandle::isAlive)
+                .orElse(false)) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static Job job(final int id) {
+        return new Job(id, new File("seq01"), 5, null);
+    }
+
+    /**
+     * Serves each connection with a worker.sh process, as socat does in the
+     * encoder containers.
+     */
+    private static final class StandInWorker implements Runnable {
+        private final String encodeCmd;
+        private final ServerSocket server;
+        private final List<Process> processes = new ArrayList<Process>();
+
+        StandInWorker(final String encodeCmd) throws IOException {
+            this.encodeCmd = encodeCmd;
+            server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+            final Thread t = new Thread(this, "STAND-IN-WORKER");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        EncoderWorkerClient client() {
+            return new EncoderWorkerClient("127.0.0.1",
+                    server.getLocalPort(), 5000);
+        }
+
+        Socket connect() throws IOException {
+            return new Socket(InetAddress.getLoopbackAddress(),
+                    server.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    serve(server.accept());
+                } catch (IOException ioe) {
+                    // Closed
+                }
+            }
+        }
+
+        private void serve(final Socket s) throws IOException {
+            final ProcessBuilder pb = new ProcessBuilder("sh",
+                    WORKER_SH.getPath());
+            pb.environment().put("E_ENCODE_CMD", encodeCmd);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            final Process p = pb.start();
+            synchronized (processes) {
+                processes.add(p);
+            }
+            pump(s.getInputStream(), p.getOutputStream(), s);
+            pump(p.getInputStream(), s.getOutputStream(), s);
+        }
+
+        /** Copies the input into the output until the end of the input */
+        private static void pump(final InputStream in, final OutputStream out,
+                final Socket s) {
+            final Thread t = new Thread(() -> {
+                final byte buf[] = new byte[8192];
+                int n;
+                try {
+                    while ((n = in.read(buf)) != -1) {
+                        out.write(buf, 0, n);
+                        out.flush();
+                    }
+                } catch (IOException ioe) {
+                    // Closed
+                }
+                try {
+                    // The worker ends when its input does, the client when
+                    // the connection is closed
+                    if (out == s.getOutputStream()) {
+                        s.close();
+                    } else {
+                        out.close();
+                    }
+                } catch (IOException ioe) {
+                    // Closed
+                }
+            }, "STAND-IN-PUMP");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void close() throws IOException {
+            server.close();
+            synchronized (processes) {
+                for (Process p : processes) {
+                    p.destroy();
+                }
+            }
+        }
+    }
+}
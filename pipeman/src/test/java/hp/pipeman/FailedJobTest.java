@@ -0,0 +1,133 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that a Job failed by a step goes through the rest of the pipeline,
+ * branches included, without being processed.
+ *
+ *                         +-> WORK_A -+
+ *  (new job) -> CHECK ----+           +-> (end)
+ *                         +-> WORK_B -+
+ */
+public class FailedJobTest {
+
+    private PipeStep pipeline = null;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.pipeStop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failedJobsSkipTheFollowingSteps() throws Exception {
+        final Step check = new Step("FAILED_CHECK", job -> job.getId() != 1);
+        final Step workA = new Step("FAILED_WORK_A", job -> true);
+        final Step workB = new Step("FAILED_WORK_B", job -> true);
+        final End end = new End();
+        final ParallelPipeStep work = new ParallelPipeStep("FAILED_WORK");
+        work.addBranch("FAILED_A", workA, workA);
+        work.addBranch("FAILED_B", workB, workB);
+        check.pipeStepSetNext(work).pipeStepSetNext(end);
+        pipeline = check;
+        check.pipeStart();
+
+        check.pipeStepQueueJob(job(1));
+        check.pipeStepQueueJob(job(2));
+
+        final Job failed = end.jobs.poll(5, TimeUnit.SECONDS);
+        final Job passed = end.jobs.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, failed.getId());
+        assertTrue(failed.isFailed());
+        assertEquals(2, passed.getId());
+        assertFalse(passed.isFailed());
+        assertEquals(List.of(1, 2), check.processed);
+        assertEquals(List.of(2), workA.processed);
+        assertEquals(List.of(2), workB.processed);
+    }
+
+    @Test(timeout = 10000)
+    public void failedJobsSkipTheFollowingStepsOfTheBranch()
+            throws Exception {
+        final Step workA = new Step("BRANCH_WORK_A", job -> false);
+        final Step nextA = new Step("BRANCH_NEXT_A", job -> true);
+        final Step workB = new Step("BRANCH_WORK_B", job -> true);
+        final End end = new End();
+        final ParallelPipeStep work = new ParallelPipeStep("BRANCH_WORK");
+        workA.pipeStepSetNext(nextA);
+        work.addBranch("BRANCH_A", workA, nextA);
+        work.addBranch("BRANCH_B", workB, workB);
+        work.pipeStepSetNext(end);
+        pipeline = work;
+        work.pipeStart();
+
+        work.pipeStepQueueJob(job(3));
+
+        final Job failed = end.jobs.poll(5, TimeUnit.SECONDS);
+        assertEquals(3, failed.getId());
+        assertTrue(failed.isFailed());
+        assertEquals(List.of(3), workA.processed);
+        assertTrue(nextA.processed.isEmpty());
+    }
+
+    private static Job job(final int id) {
+        return new Job(id, new File("seq" + id), 5, null);
+    }
+
+    /** A step that records the Jobs it processes */
+    private static final class Step extends BaseThreadPipeStep {
+        private final Predicate<Job> result;
+        final List<Integer> processed =
+                Collections.synchronizedList(new ArrayList<Integer>());
+
+        Step(final String name, final Predicate<Job> result) {
+            super(name);
+            this.result = result;
+        }
+
+        @Override
+        protected boolean doProcessJob(final Job job) {
+            processed.add(job.getId());
+            return result.test(job);
+        }
+    }
+
+    /** The end of the pipeline, where the Jobs are collected */
+    private static final class End implements PipeStep {
+        final BlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+
+        @Override
+        public PipeStep pipeStepSetNext(final PipeStep nextPipeStep) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void pipeStart() {
+        }
+
+        @Override
+        public void pipeStop() {
+        }
+
+        @Override
+        public void pipeStepQueueJob(final Job job) {
+            jobs.add(job);
+        }
+    }
+}
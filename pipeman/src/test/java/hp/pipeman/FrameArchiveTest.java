@@ -0,0 +1,335 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Indexes small crafted tar and zip archives.
+ */
+public class FrameArchiveTest {
+
+    private static final int BLOCK = 512;
+
+    /** A name too long for the ustar name field, and its prefix */
+    private static final String LONG_NAME = String.join("/",
+            "a".repeat(120), "b".repeat(120), "frame_0002.jpg");
+
+    private static final byte FRAME_1[] = frame(1);
+    private static final byte FRAME_2[] = frame(2);
+    private static final byte FRAME_3[] = frame(3);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void indexesTheFramesOfATar() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tarEntry(out, "seq/frame_0003.jpg", '0', FRAME_3);
+        tarEntry(out, "seq/", '5', new byte[0]);
+        tarEntry(out, "seq/.frame_0000.jpg", '0', FRAME_1);
+        tarEntry(out, "seq/notes.txt", '0', new byte[700]);
+        tarEntry(out, "seq/frame_0001.jpg", '0', FRAME_1);
+        final File f = write(tarEnd(out), FrameArchive.TAR_FILE);
+
+        final FrameArchive a = FrameArchive.open(f);
+
+        assertEquals(2, a.size());
+        assertEquals("seq/frame_0001.jpg", a.getName(0));
+        assertEquals("seq/frame_0003.jpg", a.getName(1));
+        assertEquals(FRAME_1.length, a.getSize(0));
+        assertEquals(0, a.getOffset(1) % BLOCK);
+        assertTrue(a.isStored(0));
+        assertArrayEquals(FRAME_3, a.read(1));
+        try (FileChannel ch = a.openChannel()) {
+            final JpegHeader h = a.parseHeader(ch, 0);
+            assertTrue(h.getError(), h.isValid());
+        }
+        assertArrayEquals(concat(FRAME_1, FRAME_3), transfer(a));
+    }
+
+    @Test
+    public void usesTheGnuLongName() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tarEntry(out, "././@LongLink", 'L', (LONG_NAME + "\0")
+                .getBytes(StandardCharsets.UTF_8));
+        tarEntry(out, LONG_NAME.substring(0, 99), '0', FRAME_2);
+        // The long name only applies to the next entry
+        tarEntry(out, "frame_0001.jpg", '0', FRAME_1);
+        final File f = write(tarEnd(out), FrameArchive.TAR_FILE);
+
+        final FrameArchive a = FrameArchive.open(f);
+
+        assertEquals(List.of(LONG_NAME, "frame_0001.jpg"), names(a));
+        assertArrayEquals(FRAME_2, a.read(0));
+    }
+
+    @Test
+    public void usesThePaxPath() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tarEntry(out, "PaxHeaders/frame", 'x', (paxRecord("mtime",
+                "1700000000.5") + paxRecord("path", LONG_NAME))
+                .getBytes(StandardCharsets.UTF_8));
+        tarEntry(out, "frame", '0', FRAME_2);
+        // A pax header without path keeps the entry's name
+        tarEntry(out, "PaxHeaders/frame_0001.jpg", 'x',
+                paxRecord("mtime", "1700000000").getBytes(
+                        StandardCharsets.UTF_8));
+        tarEntry(out, "frame_0001.jpg", '0', FRAME_1);
+        final File f = write(tarEnd(out), FrameArchive.TAR_FILE);
+
+        final FrameArchive a = FrameArchive.open(f);
+
+        assertEquals(List.of(LONG_NAME, "frame_0001.jpg"), names(a));
+        assertArrayEquals(FRAME_2, a.read(0));
+    }
+
+    @Test
+    public void rejectsATruncatedTar() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tarEntry(out, "frame_0001.jpg", '0', FRAME_1);
+        tarEntry(out, "frame_0002.jpg", '0', FRAME_2);
+        final byte tar[] = tarEnd(out);
+
+        // Still being written: within an entry, or before the end marker
+        assertIncomplete(Arrays.copyOf(tar, BLOCK + 100));
+        assertIncomplete(Arrays.copyOf(tar, 3 * BLOCK));
+        assertIncomplete(Arrays.copyOf(tar, tar.length - 2 * BLOCK));
+        // An entry going past the end, despite zeroed blocks
+        final ByteArrayOutputStream big = new ByteArrayOutputStream();
+        tarEntry(big, "frame_0001.jpg", '0', new byte[8 * BLOCK]);
+        final byte cut[] = Arrays.copyOf(big.toByteArray(), 5 * BLOCK);
+        assertIncomplete(cut);
+    }
+
+    @Test
+    public void rejectsACorruptedTarHeader() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tarEntry(out, "frame_0001.jpg", '0', FRAME_1);
+        final byte tar[] = tarEnd(out);
+        tar[3] = 'X';
+        final File f = write(tar, FrameArchive.TAR_FILE);
+
+        try {
+            FrameArchive.open(f);
+            fail("Corrupted header indexed");
+        } catch (IOException ioe) {
+            assertEquals("Invalid tar header at 0", ioe.getMessage());
+        }
+    }
+
+    @Test
+    public void indexesTheStoredFramesOfAZip() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("seq/"));
+            stored(zip, "seq/frame_0002.jpg", FRAME_2);
+            stored(zip, "__MACOSX/seq/._frame_0002.jpg", new byte[10]);
+            final ZipEntry deflated = new ZipEntry("seq/frame_0001.jpg");
+            deflated.setMethod(ZipEntry.DEFLATED);
+            zip.putNextEntry(deflated);
+            zip.write(FRAME_1);
+            stored(zip, "seq/frame_0003.jpg", FRAME_3);
+            zip.setComment("comment after the end of central directory");
+        }
+        final File f = write(out.toByteArray(), FrameArchive.ZIP_FILE);
+
+        final FrameArchive a = FrameArchive.open(f);
+
+        assertEquals(List.of("seq/frame_0001.jpg", "seq/frame_0002.jpg",
+                "seq/frame_0003.jpg"), names(a));
+        assertFalse(a.isStored(0));
+        assertTrue(a.isStored(1));
+        assertArrayEquals(FRAME_2, a.read(1));
+        try (FileChannel ch = a.openChannel()) {
+            assertFalse(a.parseHeader(ch, 0).isValid());
+            assertTrue(a.parseHeader(ch, 2).isValid());
+        }
+        try {
+            a.read(0);
+            fail("Compressed frame read in place");
+        } catch (IOException ioe) {
+            // expected
+        }
+        try {
+            transfer(a);
+            fail("Compressed frame streamed");
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        final FrameArchive stored = a.without(Set.of("seq/frame_0001.jpg"));
+        assertArrayEquals(concat(FRAME_2, FRAME_3), transfer(stored));
+        assertArrayEquals(FRAME_3, transfer(stored.range(1, 5)));
+    }
+
+    @Test
+    public void rejectsZip64() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            stored(zip, "frame_0001.jpg", FRAME_1);
+        }
+        final byte bytes[] = out.toByteArray();
+        // The ZIP64 marker of the central directory offset
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(bytes.length - 6, 0xFFFFFFFF);
+        final File f = write(bytes, FrameArchive.ZIP_FILE);
+
+        try {
+            FrameArchive.open(f);
+            fail("ZIP64 archive indexed");
+        } catch (IOException ioe) {
+            assertEquals("ZIP64 archives are not supported",
+                    ioe.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsATruncatedZip() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            stored(zip, "frame_0001.jpg", FRAME_1);
+            zip.setComment("comment");
+        }
+        final byte bytes[] = out.toByteArray();
+        // Within the comment, so the record does not reach the end
+        final File f = write(Arrays.copyOf(bytes, bytes.length - 2),
+                FrameArchive.ZIP_FILE);
+
+        try {
+            FrameArchive.open(f);
+            fail("Truncated zip indexed");
+        } catch (IOException ioe) {
+            assertEquals("Incomplete zip archive", ioe.getMessage());
+        }
+    }
+
+    private void assertIncomplete(final byte tar[]) throws IOException {
+        final File f = write(tar, FrameArchive.TAR_FILE);
+        try {
+            FrameArchive.open(f);
+            fail("Incomplete archive of " + tar.length + " bytes indexed");
+        } catch (IOException ioe) {
+            assertEquals("Incomplete tar archive", ioe.getMessage());
+        }
+    }
+
+    private File write(final byte content[], final String name)
+            throws IOException {
+        final File f = new File(tmp.getRoot(), name);
+        Files.write(f.toPath(), content);
+        return f;
+    }
+
+    private static List<String> names(final FrameArchive a) {
+        final String names[] = new String[a.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = a.getName(i);
+        }
+        return Arrays.asList(names);
+    }
+
+    private byte[] transfer(final FrameArchive a) throws IOException {
+        final File f = new File(tmp.getRoot(), "transfer");
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            final long n = a.transferTo(Channels.newChannel(out));
+            out.flush();
+            assertEquals(n, f.length());
+        }
+        return Files.readAllBytes(f.toPath());
+    }
+
+    private static byte[] frame(final int n) {
+        return JpegHeaderTest.jpeg(new byte[0], new byte[n]);
+    }
+
+    private static byte[] concat(final byte a[], final byte b[]) {
+        final byte c[] = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    /** A pax extended header record, "<length> <key>=<value>\n" */
+    private static String paxRecord(final String key, final String value) {
+        final String rec = " " + key + "=" + value + "\n";
+        int len = rec.length() + 1;
+        while (len != rec.length() + Integer.toString(len).length()) {
+            len++;
+        }
+        return len + rec;
+    }
+
+    private static void stored(final ZipOutputStream zip, final String name,
+            final byte data[]) throws IOException {
+        final ZipEntry e = new ZipEntry(name);
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        e.setMethod(ZipEntry.STORED);
+        e.setSize(data.length);
+        e.setCompressedSize(data.length);
+        e.setCrc(crc.getValue());
+        zip.putNextEntry(e);
+        zip.write(data);
+    }
+
+    /** Writes an ustar entry: its header, then its data padded to blocks */
+    private static void tarEntry(final ByteArrayOutputStream out,
+            final String name, final char type, final byte data[]) {
+        final byte h[] = new byte[BLOCK];
+        final byte n[] = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(n, 0, h, 0, Math.min(n.length, 100));
+        field(h, 100, "0000644");
+        field(h, 108, "0001750");
+        field(h, 116, "0001750");
+        field(h, 124, String.format("%011o", data.length));
+        field(h, 136, "14535627400");
+        h[156] = (byte) type;
+        field(h, 257, "ustar");
+        field(h, 263, "00");
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        int sum = 0;
+        for (byte b : h) {
+            sum += b & 0xFF;
+        }
+        field(h, 148, String.format("%06o", sum));
+        out.writeBytes(h);
+        out.writeBytes(data);
+        out.writeBytes(new byte[(BLOCK - data.length % BLOCK) % BLOCK]);
+    }
+
+    private static void field(final byte h[], final int off,
+            final String value) {
+        final byte v[] = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(v, 0, h, off, v.length);
+        h[off + v.length] = 0;
+    }
+
+    /** Writes the end of archive marker, two zeroed blocks */
+    private static byte[] tarEnd(final ByteArrayOutputStream out) {
+        out.writeBytes(new byte[2 * BLOCK]);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.json.Json;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Records Jobs' transitions into a journal and recovers them, as a new
+ * pipeman instance does.
+ */
+public class JobJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void recordsAGroupOfJobsAtOnce() throws Exception {
+        final JobJournal journal = new JobJournal(tmp.getRoot(), true, 1000);
+        final List<Job> jobs = List.of(job(1), job(2), job(3));
+        jobs.forEach(journal::created);
+
+        journal.stepCompleted(jobs, "ENCODE");
+        journal.done(jobs.subList(0, 2));
+        journal.close();
+
+        final File file = new File(tmp.getRoot(), JobJournal.JOURNAL_FILE);
+        assertEquals(8, Files.readAllLines(file.toPath()).size());
+        final List<JobJournal.PendingJob> pending =
+                new JobJournal(tmp.getRoot(), true, 1000).recover();
+        assertEquals(1, pending.size());
+        assertEquals(3, pending.get(0).job.getId());
+        assertEquals("ENCODE", pending.get(0).lastStep);
+    }
+
+    @Test
+    public void recordsConcurrentTransitions() throws Exception {
+        // Compacted several times meanwhile
+        final JobJournal journal = new JobJournal(tmp.getRoot(), true, 20);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int first = 100 + t * 25;
+            threads.add(new Thread(() -> {
+                for (int id = first; id < first + 25; id++) {
+                    final Job job = job(id);
+                    journal.created(job);
+                    journal.stepCompleted(job, "HASH");
+                    if (id % 5 == 0) {
+                        journal.failed(List.of(job));
+                    } else if (id % 2 == 0) {
+                        journal.done(job);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+        journal.close();
+
+        final Set<Integer> ids = new TreeSet<Integer>();
+        for (JobJournal.PendingJob p :
+                new JobJournal(tmp.getRoot(), true, 20).recover()) {
+            ids.add(p.job.getId());
+            assertTrue(p.hasCompleted("HASH"));
+        }
+        final Set<Integer> expected = new TreeSet<Integer>();
+        for (int id = 100; id < 200; id++) {
+            if (id % 5 != 0 && id % 2 != 0) {
+                expected.add(id);
+            }
+        }
+        assertEquals(expected, ids);
+    }
+
+    private Job job(final int id) {
+        return new Job(id, new File(tmp.getRoot(), "seq" + id), 5,
+                Json.createObjectBuilder().add("fps", 5).build());
+    }
+}
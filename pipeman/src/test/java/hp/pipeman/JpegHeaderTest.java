@@ -0,0 +1,137 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JpegHeaderTest {
+
+    @Test
+    public void parsesTheFrameFormat() {
+        final JpegHeader h = parse(jpeg(new byte[0], new byte[0]));
+
+        assertTrue(h.getError(), h.isValid());
+        assertNull(h.getError());
+        assertEquals(64, h.getWidth());
+        assertEquals(36, h.getHeight());
+        assertEquals(8, h.getPrecision());
+        assertEquals("2x2,1x1,1x1", h.getSampling());
+    }
+
+    @Test
+    public void skipsFillBytesBeforeMarkers() {
+        final byte fill[] = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+
+        final JpegHeader h = parse(jpeg(fill, new byte[0]));
+
+        assertTrue(h.getError(), h.isValid());
+        assertEquals(64, h.getWidth());
+    }
+
+    @Test
+    public void acceptsTrailingPadding() {
+        assertTrue(parse(jpeg(new byte[0], new byte[16])).isValid());
+        assertTrue(parse(jpeg(new byte[0], new byte[64])).isValid());
+    }
+
+    @Test
+    public void rejectsTooMuchTrailingData() {
+        final JpegHeader h = parse(jpeg(new byte[0], new byte[65]));
+
+        assertFalse(h.isValid());
+        assertTrue(h.getError(), h.getError().contains("EOI"));
+    }
+
+    @Test
+    public void rejectsAMissingEoi() {
+        final byte img[] = jpeg(new byte[0], new byte[0]);
+
+        final JpegHeader h = parse(Arrays.copyOf(img, img.length - 2));
+
+        assertFalse(h.isValid());
+        assertTrue(h.getError(), h.getError().contains("EOI"));
+    }
+
+    @Test
+    public void rejectsATruncatedHeader() {
+        final byte img[] = jpeg(new byte[0], new byte[0]);
+
+        // Within the SOF segment
+        final JpegHeader h = parse(Arrays.copyOf(img, 12));
+
+        assertFalse(h.isValid());
+        assertTrue(h.getError(), h.getError().startsWith("truncated"));
+    }
+
+    @Test
+    public void rejectsAMissingSoi() {
+        final byte img[] = jpeg(new byte[0], new byte[0]);
+
+        final JpegHeader h = parse(Arrays.copyOfRange(img, 2, img.length));
+
+        assertFalse(h.isValid());
+        assertEquals("missing SOI", h.getError());
+    }
+
+    @Test
+    public void rejectsAMissingSof() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(bytes(0xFF, 0xD8));
+        out.writeBytes(sos());
+        out.writeBytes(bytes(0x12, 0x34, 0xFF, 0xD9));
+
+        final JpegHeader h = parse(out.toByteArray());
+
+        assertFalse(h.isValid());
+        assertEquals("missing SOF", h.getError());
+    }
+
+    private static JpegHeader parse(final byte img[]) {
+        return JpegHeader.parse(ByteBuffer.wrap(img));
+    }
+
+    /**
+     * @brief Builds a 64x36 baseline JPEG image (its markers, the scan data
+     *        is not valid)
+     *
+     * @param[in]  fill     fill bytes inserted before the SOF marker
+     * @param[in]  padding  bytes appended after the EOI
+     */
+    static byte[] jpeg(final byte fill[], final byte padding[]) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(bytes(0xFF, 0xD8));
+        // APP0 (JFIF)
+        out.writeBytes(bytes(0xFF, 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00,
+                0x01, 0x01, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00));
+        out.writeBytes(fill);
+        // SOF0: 8 bits, 36x64, Y 2x2, Cb 1x1, Cr 1x1
+        out.writeBytes(bytes(0xFF, 0xC0, 0x00, 0x11, 0x08, 0x00, 36, 0x00, 64,
+                0x03, 0x01, 0x22, 0x00, 0x02, 0x11, 0x01, 0x03, 0x11, 0x01));
+        out.writeBytes(sos());
+        // Entropy coded data, with a stuffed 0xFF
+        out.writeBytes(bytes(0x12, 0x34, 0xFF, 0x00, 0x56, 0x78));
+        out.writeBytes(bytes(0xFF, 0xD9));
+        out.writeBytes(padding);
+        return out.toByteArray();
+    }
+
+    private static byte[] sos() {
+        return bytes(0xFF, 0xDA, 0x00, 0x0C, 0x03, 0x01, 0x00, 0x02, 0x11,
+                0x03, 0x11, 0x00, 0x3F, 0x00);
+    }
+
+    private static byte[] bytes(final int... values) {
+        final byte b[] = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+}
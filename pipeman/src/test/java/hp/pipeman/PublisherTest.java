@@ -0,0 +1,76 @@
+package hp.pipeman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PublisherTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void finalEntryIsNotLive() {
+        final Job job = liveJob(1);
+
+        final JsonObject entry = Publisher.createEntry(job);
+
+        assertFalse(entry.containsKey("live"));
+        assertEquals("seq01", entry.getString("dir"));
+        assertEquals("Sequence #01", entry.getString("title"));
+    }
+
+    @Test(timeout = 10000)
+    public void failedLiveJobIsNotLiveAnymore() throws Exception {
+        final Catalog catalog = new Catalog(tmp.getRoot(), 1000, false);
+        final Publisher publisher = new Publisher(catalog);
+        final Job job = liveJob(2);
+        publisher.publishLiveEntry(job);
+        final List<JsonObject> live = new ArrayList<JsonObject>();
+        final long seq = catalog.getChangesSince(0, live);
+        assertTrue(live.get(0).getBoolean("live"));
+
+        job.setStatus(Job.JobStatus.ERROR);
+        publisher.pipeStart();
+        try {
+            publisher.pipeStepQueueJob(job);
+            catalog.awaitChange(seq, 5000);
+        } finally {
+            publisher.pipeStop();
+            // Waits for the last compaction, the interrupted publisher's
+            // thread does not
+            catalog.close();
+        }
+
+        final List<JsonObject> entries = new ArrayList<JsonObject>();
+        final Catalog reloaded = new Catalog(tmp.getRoot(), 1000, false);
+        reloaded.getChangesSince(0, entries);
+        reloaded.close();
+        assertEquals(1, entries.size());
+        assertEquals("seq02", entries.get(0).getString("dir"));
+        assertFalse(entries.get(0).containsKey("live"));
+        assertTrue(entries.get(0).getBoolean("failed"));
+    }
+
+    private static Job liveJob(final int id) {
+        final JsonObject desc = Json.createObjectBuilder()
+                .add("title", "Sequence #0" + id)
+                .add("desc", "A live sequence")
+                .add("frames_n", 150)
+                .add("fps", 5)
+                .add("live", true)
+                .build();
+        return new Job(id, new File("seq0" + id), 5, desc);
+    }
+}
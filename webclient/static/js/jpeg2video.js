@@ -101,6 +101,13 @@ function StreamItem(obj) {
 		this.dir = inobj.dir == undefined ? this.dir : inobj.dir;
 		this.title = inobj.title == undefined ? this.title : inobj.title;
 		this.desc = inobj.desc == undefined ? this.desc : inobj.desc;
+		// Live streams are still being encoded (dynamic DASH manifest)
+		this.live = inobj.live == true;
+		// Live streams whose encoding failed, their stream is partial
+		this.failed = inobj.failed == true;
+		// Renditions of the ABR ladder, dash.js switches among them
+		this.renditions = inobj.renditions == undefined ? [] :
+				inobj.renditions;
 	}
 
 	/**
@@ -119,14 +126,16 @@ function StreamItem(obj) {
  * This is a very basic AngularJS controller for managing the stream list and 
  * the current selected stream.
  * 
- * On each 5 seconds, the controller queries the server for updates on the
- * stream list (vidfeed/streams.json).
+ * The controller follows the updates on the stream list from the pipeline
+ * manager's catalog feed (feed/changes), falling back to query the whole
+ * stream list (vidfeed/streams.json) on each 5 seconds while it is not
+ * available.
  * 
  * Also, the controller instantiates a DashMediaPlayerWrapper to control the
  * playback of the current selected stream. 
  */
 angular.module('jpeg2videoApp', ['ngAnimate'])
-.controller('jpeg2videoController', function($scope, $http, $interval) {
+.controller('jpeg2videoController', function($scope, $http, $timeout) {
 	$scope.stream_curr = undefined;
 	$scope.stream_list = [];
 
@@ -137,47 +146,77 @@ angular.module('jpeg2videoApp', ['ngAnimate'])
 	}
 
 	/**
-	 * Internal function to poll the stream list and update it.
+	 * Internal function to add/update the stream list with the given entries.
 	 */
-	var stream_list_refresh = function() {
-		$http.get('vidfeed/streams.json').then(function(response) {
-			// Note: AngularJS keeps track of the elements on the stream_list
-			// by inserting metadata. For this reason, it is necessary to update
-			// each single element, one by one.
-			// Known limitation of the current implementation: just adds/updates
-			// but do not removes elements if no longer included in the server
-			// response.  
-			for (var strid in response.data) {
-				var updated = false;
-
-				if (response.data[strid].dir == undefined) {
-					continue;
-				}
-
-				for (var i = 0; i < $scope.stream_list.length; i++) {
-					if ($scope.stream_list[i].is_same_id(response.data[strid])) {
-						// Update our entry
-						$scope.stream_list[i].update(response.data[strid]);
-						updated = true;
-						break;
-					}
-				}
+	var stream_list_update = function(streams) {
+		// Note: AngularJS keeps track of the elements on the stream_list
+		// by inserting metadata. For this reason, it is necessary to update
+		// each single element, one by one.
+		// Known limitation of the current implementation: just adds/updates
+		// but do not removes elements if no longer included in the server
+		// response.  
+		for (var strid in streams) {
+			var updated = false;
+
+			if (streams[strid].dir == undefined) {
+				continue;
+			}
 
-				if (!updated) {
-					// This is a new entry, add to our list.
-					$scope.stream_list.push(new StreamItem(
-							response.data[strid]));
+			for (var i = 0; i < $scope.stream_list.length; i++) {
+				if ($scope.stream_list[i].is_same_id(streams[strid])) {
+					// Update our entry
+					$scope.stream_list[i].update(streams[strid]);
+					updated = true;
+					break;
 				}
-			} 
+			}
 
-			if ($scope.utils.is_empty($scope.stream_curr) &&
-					$scope.stream_list.length > 0) {
-				$scope.stream_select($scope.stream_list[0])
+			if (!updated) {
+				// This is a new entry, add to our list.
+				$scope.stream_list.push(new StreamItem(streams[strid]));
 			}
+		} 
+
+		if ($scope.utils.is_empty($scope.stream_curr) &&
+				$scope.stream_list.length > 0) {
+			$scope.stream_select($scope.stream_list[0])
+		}
+	};
+
+	/**
+	 * Internal function to poll the whole stream list and update it.
+	 */
+	var stream_list_refresh = function() {
+		return $http.get('vidfeed/streams.json').then(function(response) {
+			stream_list_update(response.data);
 		});
 	};
 
-	$interval(stream_list_refresh, 5000);
+	/**
+	 * Internal function to wait for the changes on the stream list (from the
+	 * pipeline manager's catalog feed) and update it.
+	 * The feed answers as soon as a stream is published, or after 25 seconds
+	 * without changes, and the next request is sent right away. If the feed
+	 * is not available, the whole stream list is polled each 5 seconds until
+	 * it is back.
+	 */
+	var feed_cursor = "";
+
+	var stream_list_follow = function() {
+		$http.get('feed/changes', {
+			params: { since: feed_cursor, wait: 25 },
+			timeout: 60000
+		}).then(function(response) {
+			feed_cursor = response.data.cursor;
+			stream_list_update(response.data.streams);
+			stream_list_follow();
+		}, function() {
+			feed_cursor = "";
+			stream_list_refresh().finally(function() {
+				$timeout(stream_list_follow, 5000);
+			});
+		});
+	};
 
 	/**
 	 * Some utilities to simplify the dynamic code within the HTML. 
@@ -190,6 +229,6 @@ angular.module('jpeg2videoApp', ['ngAnimate'])
 
 	$scope.player = new DashPlayerWrapper($scope);
 
-	stream_list_refresh();
+	stream_list_follow();
 });
 